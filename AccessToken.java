@@ -0,0 +1,84 @@
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.HexFormat;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Jetons d'accès direct aux serveurs de stockage. Le serveur principal autorise un client à
+ * lire ("GET") ou écrire ("PUT") une partie jusqu'à une échéance en signant l'opération avec
+ * HMAC-SHA256 et le secret partagé transfert.secret ; le serveur de stockage vérifie la
+ * signature et l'échéance sans contacter le serveur principal. Après une écriture directe,
+ * le serveur de stockage signe un reçu donnant son adresse, la taille et le CRC32C des octets
+ * écrits, que le serveur principal vérifie avant d'enregistrer la copie sous cette adresse.
+ *
+ * Le serveur principal s'identifie aussi auprès des serveurs de stockage (commande AUTH) en
+ * signant un défi aléatoire choisi par le serveur de stockage : une réponse captée sur le
+ * réseau ne sert pas pour une autre connexion.
+ */
+class AccessToken {
+
+    private static final String ALGORITHM = "HmacSHA256";
+
+    private final SecretKeySpec key;
+    private final SecureRandom random = new SecureRandom();
+
+    AccessToken(String secret) {
+        this.key = new SecretKeySpec(secret.getBytes(StandardCharsets.UTF_8), ALGORITHM);
+    }
+
+    /** Retourne null si aucun secret n'est configuré : l'accès direct est alors désactivé. */
+    static AccessToken fromSystemProperties() {
+        String secret = System.getProperty("transfert.secret");
+        return secret == null || secret.isEmpty() ? null : new AccessToken(secret);
+    }
+
+    String grant(String operation, String partName, long expiresAt) {
+        return sign(operation + "|" + partName + "|" + expiresAt);
+    }
+
+    boolean allows(String token, String operation, String partName, long expiresAt) {
+        return System.currentTimeMillis() <= expiresAt && matches(token, grant(operation, partName, expiresAt));
+    }
+
+    // node : adresse "ip:port" du serveur de stockage, telle qu'elle figure dans config.txt
+    String receipt(String node, String partName, long size, long checksum) {
+        return sign("STORED|" + node + "|" + partName + "|" + size + "|" + Long.toHexString(checksum));
+    }
+
+    boolean validReceipt(String receipt, String node, String partName, long size, long checksum) {
+        return matches(receipt, receipt(node, partName, size, checksum));
+    }
+
+    String challenge() {
+        byte[] nonce = new byte[16];
+        random.nextBytes(nonce);
+        return HexFormat.of().formatHex(nonce);
+    }
+
+    String answer(String challenge) {
+        return sign("COORDINATOR|" + challenge);
+    }
+
+    boolean validAnswer(String answer, String challenge) {
+        return matches(answer, answer(challenge));
+    }
+
+    private String sign(String message) {
+        try {
+            // Mac n'est pas partagé entre threads : une instance par signature
+            Mac mac = Mac.getInstance(ALGORITHM);
+            mac.init(key);
+            return HexFormat.of().formatHex(mac.doFinal(message.getBytes(StandardCharsets.UTF_8)));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("HMAC indisponible : " + e.getMessage(), e);
+        }
+    }
+
+    // Comparaison en temps constant : la durée ne révèle pas le nombre de caractères corrects
+    private static boolean matches(String token, String expected) {
+        return MessageDigest.isEqual(token.getBytes(StandardCharsets.UTF_8), expected.getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -1,218 +1,919 @@
-import java.io.*;
-import java.net.*;
-import java.util.*;
-
-public class ClientApplication {
-    private Socket socket;
-    private PrintWriter out;
-    private BufferedReader in;
-    private Scanner scanner;
-
-    public static void main(String[] args) {
-        ClientApplication app = new ClientApplication();
-        app.run();
-    }
-
-    public ClientApplication() {
-        scanner = new Scanner(System.in);
-    }
-
-    private void run() {
-        while (true) {
-            System.out.println("Entrez l'adresse IP du serveur :");
-            String ip = scanner.nextLine();
-            System.out.println("Entrez le port du serveur :");
-            int port = Integer.parseInt(scanner.nextLine());
-
-            connectToServer(ip, port);
-
-            if (socket != null && !socket.isClosed()) {
-                while (true) {
-                    System.out.println("\nQue voulez-vous faire ?");
-                    System.out.println("1. Lister les fichiers");
-                    System.out.println("2. Télécharger un fichier");
-                    System.out.println("3. Envoyer un fichier");
-                    System.out.println("4. Supprimer un fichier");
-                    System.out.println("5. Quitter");
-
-                    String choice = scanner.nextLine();
-
-                    switch (choice) {
-                        case "1":
-                            listFiles();
-                            break;
-                        case "2":
-                            downloadFile();
-                            break;
-                        case "3":
-                            uploadFile();
-                            break;
-                        case "4":
-                            deleteFile();
-                            break;
-                        case "5":
-                            disconnect();
-                            return;
-                        default:
-                            System.out.println("Choix invalide.");
-                            break;
-                    }
-                }
-            }
-        }
-    }
-
-    private void connectToServer(String ip, int port) {
-        try {
-            socket = new Socket(ip, port);
-            out = new PrintWriter(socket.getOutputStream(), true);
-            in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-            System.out.println("Connecté au serveur.");
-        } catch (IOException e) {
-            System.out.println("Échec de la connexion : " + e.getMessage());
-        }
-    }
-
-    private void listFiles() {
-        if (socket == null || socket.isClosed()) {
-            System.out.println("Non connecté à un serveur.");
-            return;
-        }
-
-        try {
-            DataOutputStream dos = new DataOutputStream(socket.getOutputStream());
-            dos.writeUTF("list");
-            dos.flush();
-
-            DataInputStream dis = new DataInputStream(socket.getInputStream());
-            String response = dis.readUTF();
-
-            if (response.startsWith("Fichiers disponibles")) {
-                System.out.println("Fichiers disponibles :");
-                String[] files = response.split(":")[1].trim().split(", ");
-                for (String file : files) {
-                    System.out.println(file);
-                }
-            } else {
-                System.out.println(response);
-            }
-        } catch (IOException ex) {
-            System.out.println("Erreur lors de l'affichage des fichiers : " + ex.getMessage());
-        }
-    }
-
-    private void uploadFile() {
-        if (socket == null || socket.isClosed()) {
-            System.out.println("Non connecté à un serveur.");
-            return;
-        }
-
-        System.out.println("Entrez le chemin du fichier à envoyer :");
-        String filePath = scanner.nextLine();
-        File file = new File(filePath);
-
-        if (!file.exists()) {
-            System.out.println("Fichier non trouvé.");
-            return;
-        }
-
-        try {
-            DataOutputStream dos = new DataOutputStream(socket.getOutputStream());
-            dos.writeUTF("upload");
-            dos.writeUTF(file.getName());
-            dos.writeLong(file.length());
-
-            try (FileInputStream fileIn = new FileInputStream(file)) {
-                byte[] buffer = new byte[4096];
-                int bytesRead;
-                while ((bytesRead = fileIn.read(buffer)) != -1) {
-                    dos.write(buffer, 0, bytesRead);
-                }
-            }
-
-            System.out.println("Fichier envoyé avec succès !");
-        } catch (IOException ex) {
-            System.out.println("Erreur lors de l'envoi du fichier : " + ex.getMessage());
-        }
-    }
-
-    private void downloadFile() {
-        if (socket == null || socket.isClosed()) {
-            System.out.println("Non connecté à un serveur.");
-            return;
-        }
-
-        System.out.println("Entrez le nom du fichier à télécharger :");
-        String fileName = scanner.nextLine();
-
-        try {
-            DataOutputStream dos = new DataOutputStream(socket.getOutputStream());
-            dos.writeUTF("download");
-            dos.writeUTF(fileName);
-
-            DataInputStream dis = new DataInputStream(socket.getInputStream());
-            String response = dis.readUTF();
-
-            if (response.startsWith("Downloading")) {
-                String fileNameToSave = response.split(":")[1];
-                long fileLength = dis.readLong();
-
-                System.out.println("Enregistrement du fichier sous : " + fileNameToSave);
-                try (FileOutputStream fileOut = new FileOutputStream(fileNameToSave)) {
-                    byte[] buffer = new byte[4096];
-                    long totalRead = 0;
-                    int bytesRead;
-
-                    while (totalRead < fileLength &&
-                            (bytesRead = dis.read(buffer, 0, (int) Math.min(buffer.length, fileLength - totalRead))) != -1) {
-                        fileOut.write(buffer, 0, bytesRead);
-                        totalRead += bytesRead;
-                    }
-                }
-
-                System.out.println("Fichier téléchargé avec succès !");
-            } else {
-                System.out.println(response);
-            }
-        } catch (IOException ex) {
-            System.out.println("Erreur lors du téléchargement du fichier : " + ex.getMessage());
-        }
-    }
-
-    private void deleteFile() {
-        if (socket == null || socket.isClosed()) {
-            System.out.println("Non connecté à un serveur.");
-            return;
-        }
-
-        System.out.println("Entrez le nom du fichier à supprimer :");
-        String fileName = scanner.nextLine();
-
-        try {
-            DataOutputStream dos = new DataOutputStream(socket.getOutputStream());
-            dos.writeUTF("DELETE_FILE");
-            dos.writeUTF(fileName);
-
-            DataInputStream dis = new DataInputStream(socket.getInputStream());
-            String response = dis.readUTF();
-            if ("SUCCESS".equals(response)) {
-                System.out.println("Fichier supprimé avec succès.");
-            } else {
-                System.out.println("Erreur : " + dis.readUTF());
-            }
-        } catch (IOException ex) {
-            System.out.println("Erreur lors de la suppression du fichier : " + ex.getMessage());
-        }
-    }
-
-    private void disconnect() {
-        try {
-            if (socket != null && !socket.isClosed()) {
-                socket.close();
-                System.out.println("Déconnecté du serveur.");
-            }
-        } catch (IOException e) {
-            System.out.println("Erreur lors de la déconnexion : " + e.getMessage());
-        }
-    }
-}
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.CRC32C;
+
+public class ClientApplication {
+    // Tentatives de reconnexion pour reprendre un téléchargement ou un envoi coupé
+    private static final int MAX_RESUME_ATTEMPTS = 5;
+    // Connexions ouvertes en parallèle vers le serveur pour transférer les morceaux d'un fichier
+    private static final int PARALLEL_STREAMS = Math.max(1, Integer.getInteger("transfert.client.streams", 4));
+    // Morceaux demandés d'avance sur chaque connexion (protocole en trames) : la requête suivante
+    // part avant la lecture de la réponse en cours ; chacun peut occuper un morceau en mémoire
+    private static final int PIPELINE_DEPTH = Math.max(1, Integer.getInteger("transfert.client.pipeline", 2));
+    // Lecture et écriture des parties directement sur les serveurs de stockage, quand le serveur principal le permet
+    private static final boolean DIRECT_ACCESS = Boolean.parseBoolean(System.getProperty("transfert.client.direct", "true"));
+
+    private Socket socket;
+    private PrintWriter out;
+    private BufferedReader in;
+    private Scanner scanner;
+    private String serverIp;
+    private int serverPort;
+
+    public static void main(String[] args) {
+        ClientApplication app = new ClientApplication();
+        app.run();
+    }
+
+    public ClientApplication() {
+        scanner = new Scanner(System.in);
+    }
+
+    private void run() {
+        while (true) {
+            System.out.println("Entrez l'adresse IP du serveur :");
+            String ip = scanner.nextLine();
+            System.out.println("Entrez le port du serveur :");
+            int port = Integer.parseInt(scanner.nextLine());
+
+            connectToServer(ip, port);
+
+            if (socket != null && !socket.isClosed()) {
+                while (true) {
+                    System.out.println("\nQue voulez-vous faire ?");
+                    System.out.println("1. Lister les fichiers");
+                    System.out.println("2. Télécharger un fichier");
+                    System.out.println("3. Envoyer un fichier");
+                    System.out.println("4. Supprimer un fichier");
+                    System.out.println("5. Lire une plage d'un fichier");
+                    System.out.println("6. Quitter");
+
+                    String choice = scanner.nextLine();
+
+                    switch (choice) {
+                        case "1":
+                            listFiles();
+                            break;
+                        case "2":
+                            downloadFile();
+                            break;
+                        case "3":
+                            uploadFile();
+                            break;
+                        case "4":
+                            deleteFile();
+                            break;
+                        case "5":
+                            downloadRange();
+                            break;
+                        case "6":
+                            disconnect();
+                            return;
+                        default:
+                            System.out.println("Choix invalide.");
+                            break;
+                    }
+                }
+            }
+        }
+    }
+
+    private void connectToServer(String ip, int port) {
+        serverIp = ip;
+        serverPort = port;
+        try {
+            socket = new Socket(ip, port);
+            out = new PrintWriter(socket.getOutputStream(), true);
+            in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            System.out.println("Connecté au serveur.");
+        } catch (IOException e) {
+            System.out.println("Échec de la connexion : " + e.getMessage());
+        }
+    }
+
+    private void listFiles() {
+        if (socket == null || socket.isClosed()) {
+            System.out.println("Non connecté à un serveur.");
+            return;
+        }
+
+        try {
+            DataOutputStream dos = new DataOutputStream(socket.getOutputStream());
+            dos.writeUTF("list");
+            dos.flush();
+
+            DataInputStream dis = new DataInputStream(socket.getInputStream());
+            String response = dis.readUTF();
+
+            if (response.startsWith("Fichiers disponibles")) {
+                System.out.println("Fichiers disponibles :");
+                String[] files = response.split(":")[1].trim().split(", ");
+                for (String file : files) {
+                    System.out.println(file);
+                }
+            } else {
+                System.out.println(response);
+            }
+        } catch (IOException ex) {
+            System.out.println("Erreur lors de l'affichage des fichiers : " + ex.getMessage());
+        }
+    }
+
+    /**
+     * Envoie un fichier par morceaux dans une session d'envoi : chaque morceau part avec sa somme
+     * CRC32C et attend son accusé de réception. Les morceaux sont répartis entre PARALLEL_STREAMS
+     * connexions ; si le serveur principal l'autorise, chaque morceau est écrit directement sur
+     * les serveurs de stockage qu'il désigne, sinon il passe par lui. L'identifiant de la session est gardé dans nom.upload ; si une connexion tombe,
+     * ou si l'envoi est relancé plus tard sur le même fichier, le client demande au serveur les
+     * morceaux déjà reçus et n'envoie que les autres.
+     */
+    private void uploadFile() {
+        if (socket == null || socket.isClosed()) {
+            System.out.println("Non connecté à un serveur.");
+            return;
+        }
+
+        System.out.println("Entrez le chemin du fichier à envoyer :");
+        String filePath = scanner.nextLine();
+        File file = new File(filePath);
+
+        if (!file.exists()) {
+            System.out.println("Fichier non trouvé.");
+            return;
+        }
+        File sessionFile = new File(file.getPath() + ".upload");
+
+        for (int attempt = 1; ; attempt++) {
+            try {
+                DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+                DataInputStream dis = new DataInputStream(socket.getInputStream());
+
+                String sessionId = savedUploadSession(sessionFile, file);
+                long chunkSize = 0;
+                Set<Integer> received = new HashSet<>();
+                if (sessionId != null) {
+                    dos.writeUTF("UPLOAD_STATUS");
+                    dos.writeUTF(sessionId);
+                    dos.flush();
+                    String response = dis.readUTF();
+                    if (response.equals("UPLOAD_STATUS")) {
+                        String name = dis.readUTF();
+                        long size = dis.readLong();
+                        chunkSize = dis.readLong();
+                        int chunkCount = dis.readInt();
+                        int receivedCount = dis.readInt();
+                        for (int i = 0; i < receivedCount; i++) {
+                            received.add(dis.readInt());
+                        }
+                        if (name.equals(file.getName()) && size == file.length()) {
+                            System.out.println("Reprise de l'envoi : " + receivedCount + "/" + chunkCount + " morceaux déjà reçus");
+                        } else {
+                            sessionId = null;
+                        }
+                    } else {
+                        sessionId = null;
+                    }
+                }
+
+                if (sessionId == null) {
+                    received.clear();
+                    dos.writeUTF("UPLOAD_INIT");
+                    dos.writeUTF(file.getName());
+                    dos.writeLong(file.length());
+                    dos.flush();
+                    String response = dis.readUTF();
+                    if (!response.equals("UPLOAD_READY")) {
+                        System.out.println(response);
+                        return;
+                    }
+                    sessionId = dis.readUTF();
+                    chunkSize = dis.readLong();
+                    Files.write(sessionFile.toPath(), (sessionId + "\n" + file.length() + "\n" + file.lastModified())
+                            .getBytes(StandardCharsets.UTF_8));
+                }
+
+                long fileLength = file.length();
+                int chunkCount = (int) Math.max(1, (fileLength + chunkSize - 1) / chunkSize);
+                List<Integer> missing = new ArrayList<>();
+                for (int index = 0; index < chunkCount; index++) {
+                    if (!received.contains(index)) {
+                        missing.add(index);
+                    }
+                }
+
+                String id = sessionId;
+                long size = chunkSize;
+                AtomicBoolean direct = new AtomicBoolean(DIRECT_ACCESS);
+                try (FileChannel fileIn = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                    transferInParallel(missing, (index, stream) -> {
+                        int length = (int) Math.min(size, fileLength - index * size);
+                        if (stream.buffer == null || stream.buffer.length < length) {
+                            stream.buffer = new byte[length];
+                        }
+                        readFully(fileIn, stream.buffer, length, index * size);
+                        CRC32C checksum = new CRC32C();
+                        checksum.update(stream.buffer, 0, length);
+
+                        if (direct.get() && sendChunkDirect(id, index, length, checksum.getValue(), stream, direct)) {
+                            return () -> System.out.println("Morceau " + (index + 1) + "/" + chunkCount + " envoyé");
+                        }
+                        FramedClient.Call call = stream.connection.call();
+                        call.out.writeUTF("UPLOAD_CHUNK");
+                        call.out.writeUTF(id);
+                        call.out.writeInt(index);
+                        call.out.writeLong(length);
+                        call.out.writeLong(checksum.getValue());
+                        call.out.write(stream.buffer, 0, length);
+                        call.send();
+                        return () -> {
+                            String ack = call.in.readUTF();
+                            if (!ack.equals("CHUNK_OK")) {
+                                // Morceau refusé (corrompu en route, session expirée...) : on reprend l'envoi
+                                throw new IOException(ack);
+                            }
+                            System.out.println("Morceau " + (index + 1) + "/" + chunkCount + " envoyé");
+                        };
+                    });
+                }
+
+                dos.writeUTF("UPLOAD_COMMIT");
+                dos.writeUTF(sessionId);
+                dos.flush();
+                String result = dis.readUTF();
+                System.out.println(result);
+                if (!result.startsWith("Erreur")) {
+                    sessionFile.delete();
+                }
+                return;
+            } catch (IOException ex) {
+                System.out.println("Erreur lors de l'envoi du fichier : " + ex.getMessage());
+                if (attempt >= MAX_RESUME_ATTEMPTS || !reconnect(attempt)) {
+                    if (sessionFile.exists()) {
+                        System.out.println("Envoi interrompu ; les morceaux déjà reçus ne seront pas renvoyés à la prochaine demande.");
+                    }
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Écrit un morceau directement sur les serveurs de stockage désignés par le serveur principal
+     * (UPLOAD_PLACE, DIRECT_STORE envoyé à toutes les copies avant d'attendre leurs réponses)
+     * puis le confirme avec leurs reçus. Retourne false si le
+     * morceau doit passer par le serveur principal : accès direct désactivé (direct passe alors
+     * à false pour les morceaux suivants) ou aucun serveur de stockage joignable.
+     */
+    private boolean sendChunkDirect(String sessionId, int index, int length, long checksum, Stream stream,
+                                    AtomicBoolean direct) throws IOException {
+        FramedClient.Call place = stream.connection.call();
+        place.out.writeUTF("UPLOAD_PLACE");
+        place.out.writeUTF(sessionId);
+        place.out.writeInt(index);
+        place.send();
+        String response = place.in.readUTF();
+        if (response.equals("DIRECT_DISABLED")) {
+            direct.set(false);
+            return false;
+        }
+        if (!response.equals("PLACEMENT")) {
+            throw new IOException(response);
+        }
+        String partName = place.in.readUTF();
+        String[] servers = new String[place.in.readInt()];
+        for (int i = 0; i < servers.length; i++) {
+            servers[i] = place.in.readUTF();
+        }
+        long expiresAt = place.in.readLong();
+        String token = place.in.readUTF();
+
+        Map<String, FramedClient.Call> stores = new LinkedHashMap<>();
+        for (String server : servers) {
+            try {
+                FramedClient.Call store = stream.node(server).call();
+                store.out.writeUTF("DIRECT_STORE");
+                store.out.writeUTF(token);
+                store.out.writeLong(expiresAt);
+                store.out.writeUTF(partName);
+                store.out.writeLong(length);
+                store.out.write(stream.buffer, 0, length);
+                store.send();
+                stores.put(server, store);
+            } catch (IOException e) {
+                stream.dropNode(server);
+                System.out.println("Écriture directe sur " + server + " impossible : " + e.getMessage());
+            }
+        }
+        Map<String, String> receipts = new LinkedHashMap<>();
+        for (Map.Entry<String, FramedClient.Call> store : stores.entrySet()) {
+            try {
+                DataInputStream reply = store.getValue().in;
+                String stored = reply.readUTF();
+                if (!stored.equals("STORED")) {
+                    throw new IOException(stored);
+                }
+                reply.readLong();  // CRC32C calculé par le serveur de stockage, vérifié par le serveur principal
+                receipts.put(store.getKey(), reply.readUTF());
+            } catch (IOException e) {
+                stream.dropNode(store.getKey());
+                System.out.println("Écriture directe sur " + store.getKey() + " impossible : " + e.getMessage());
+            }
+        }
+        if (receipts.isEmpty()) {
+            return false;
+        }
+
+        FramedClient.Call confirm = stream.connection.call();
+        confirm.out.writeUTF("UPLOAD_CONFIRM");
+        confirm.out.writeUTF(sessionId);
+        confirm.out.writeInt(index);
+        confirm.out.writeUTF(partName);
+        confirm.out.writeLong(length);
+        confirm.out.writeLong(checksum);
+        confirm.out.writeInt(receipts.size());
+        for (Map.Entry<String, String> receipt : receipts.entrySet()) {
+            confirm.out.writeUTF(receipt.getKey());
+            confirm.out.writeUTF(receipt.getValue());
+        }
+        confirm.send();
+        String ack = confirm.in.readUTF();
+        if (!ack.equals("CHUNK_OK")) {
+            throw new IOException(ack);
+        }
+        return true;
+    }
+
+    // Identifiant de la session d'envoi gardée pour ce fichier, s'il n'a pas changé depuis
+    private String savedUploadSession(File sessionFile, File file) {
+        if (!sessionFile.exists()) {
+            return null;
+        }
+        try {
+            List<String> lines = Files.readAllLines(sessionFile.toPath(), StandardCharsets.UTF_8);
+            if (lines.size() >= 3 && Long.parseLong(lines.get(1).trim()) == file.length()
+                    && Long.parseLong(lines.get(2).trim()) == file.lastModified()) {
+                return lines.get(0).trim();
+            }
+        } catch (IOException | NumberFormatException e) {
+            // Fichier de session illisible : nouvel envoi
+        }
+        sessionFile.delete();
+        return null;
+    }
+
+    /**
+     * Télécharge un fichier dans nom.part puis le renomme une fois complet. Les parties du
+     * fichier (STAT) sont demandées en parallèle sur PARALLEL_STREAMS connexions, directement aux
+     * serveurs de stockage si le serveur principal fournit leurs emplacements (LOCATE), et chacune est
+     * vérifiée à l'arrivée avec sa somme CRC32C ; une partie corrompue est redemandée. La version
+     * et les parties terminées sont notées dans nom.part.version : si la connexion tombe, ou au
+     * prochain téléchargement du même fichier, seules les parties manquantes sont redemandées,
+     * tant que le fichier n'a pas changé sur le serveur.
+     */
+    private void downloadFile() {
+        if (socket == null || socket.isClosed()) {
+            System.out.println("Non connecté à un serveur.");
+            return;
+        }
+
+        System.out.println("Entrez le nom du fichier à télécharger :");
+        String fileName = scanner.nextLine();
+        File partial = new File(fileName + ".part");
+        File stateFile = new File(fileName + ".part.version");
+        Set<Integer> completed = ConcurrentHashMap.newKeySet();
+
+        for (int attempt = 1; ; attempt++) {
+            try {
+                FileStat stat = statFile(fileName);
+                if (stat == null) {
+                    return;
+                }
+                if (stat.totalSize < 0) {
+                    // Ancienne entrée du catalogue, sans tailles de parties : lecture d'un seul tenant
+                    downloadWhole(fileName, partial);
+                    stateFile.delete();
+                    return;
+                }
+
+                completed.clear();
+                List<String> state = partial.exists() && stateFile.exists()
+                        ? Files.readAllLines(stateFile.toPath(), StandardCharsets.UTF_8) : Collections.emptyList();
+                if (!state.isEmpty() && state.get(0).trim().equals(stat.version)) {
+                    for (String line : state.subList(1, state.size())) {
+                        if (!line.trim().isEmpty()) {
+                            completed.add(Integer.parseInt(line.trim()));
+                        }
+                    }
+                } else {
+                    if (!state.isEmpty()) {
+                        // Le fichier a changé depuis le début du téléchargement : on repart de zéro
+                        System.out.println("Le fichier a changé sur le serveur, le téléchargement recommence depuis le début.");
+                    }
+                    partial.delete();
+                    Files.write(stateFile.toPath(), (stat.version + "\n").getBytes(StandardCharsets.UTF_8));
+                }
+
+                List<Integer> missing = new ArrayList<>();
+                for (int i = 0; i < stat.sizes.length; i++) {
+                    if (!completed.contains(i)) {
+                        missing.add(i);
+                    }
+                }
+                if (!completed.isEmpty()) {
+                    System.out.println("Reprise du téléchargement : " + completed.size() + "/" + stat.sizes.length + " parties déjà reçues");
+                }
+                System.out.println("Enregistrement du fichier sous : " + fileName);
+
+                try (FileChannel fileOut = FileChannel.open(partial.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+                    transferInParallel(missing, (index, stream) -> {
+                        PendingTransfer part = startPart(fileName, stat, index, stream, fileOut);
+                        return () -> {
+                            part.finish();
+                            synchronized (completed) {
+                                Files.write(stateFile.toPath(), (index + "\n").getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+                                completed.add(index);
+                            }
+                        };
+                    });
+                    fileOut.truncate(stat.totalSize);
+                }
+
+                Files.move(partial.toPath(), Paths.get(fileName), StandardCopyOption.REPLACE_EXISTING);
+                stateFile.delete();
+                System.out.println("Fichier téléchargé avec succès ! (" + stat.sizes.length + " parties vérifiées)");
+                return;
+            } catch (IOException | NumberFormatException ex) {
+                System.out.println("Erreur lors du téléchargement du fichier : " + ex.getMessage());
+                if (attempt >= MAX_RESUME_ATTEMPTS || !reconnect(attempt)) {
+                    if (partial.exists()) {
+                        System.out.println("Téléchargement interrompu après " + completed.size()
+                                + " parties ; il reprendra à la prochaine demande.");
+                    }
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Version, taille et parties d'un fichier ; null si le fichier n'existe pas. Avec l'accès
+     * direct, LOCATE donne aussi les copies de chaque partie et les jetons pour les lire ;
+     * sinon (ou si le serveur principal le refuse) STAT ne donne que les tailles et sommes.
+     */
+    private FileStat statFile(String fileName) throws IOException {
+        DataOutputStream dos = new DataOutputStream(socket.getOutputStream());
+        DataInputStream dis = new DataInputStream(socket.getInputStream());
+        String response = "DIRECT_DISABLED";
+        if (DIRECT_ACCESS) {
+            dos.writeUTF("LOCATE");
+            dos.writeUTF(fileName);
+            dos.flush();
+            response = dis.readUTF();
+        }
+        if (response.equals("DIRECT_DISABLED")) {
+            dos.writeUTF("STAT");
+            dos.writeUTF(fileName);
+            dos.flush();
+            response = dis.readUTF();
+        }
+
+        boolean located = response.equals("LOCATIONS");
+        if (!located && !response.equals("STAT")) {
+            System.out.println(response);
+            return null;
+        }
+        FileStat stat = new FileStat(dis.readUTF(), dis.readLong(), dis.readInt(), located);
+        if (located) {
+            stat.expiresAt = dis.readLong();
+        }
+        for (int i = 0; i < stat.sizes.length; i++) {
+            stat.sizes[i] = dis.readLong();
+            stat.checksums[i] = dis.readLong();
+            if (located) {
+                stat.partNames[i] = dis.readUTF();
+                stat.locations[i] = new String[dis.readInt()];
+                for (int r = 0; r < stat.locations[i].length; r++) {
+                    stat.locations[i][r] = dis.readUTF();
+                }
+                stat.tokens[i] = dis.readUTF();
+            }
+        }
+        return stat;
+    }
+
+    /**
+     * Demande une partie ; finish reçoit la réponse et l'écrit à sa place dans le fichier, après
+     * vérification. Les copies annoncées par LOCATE sont essayées l'une après l'autre ; si aucune
+     * ne répond (jeton expiré, serveur arrêté, partie remplacée), la partie est demandée au
+     * serveur principal. Seule la première source est demandée d'avance.
+     */
+    private PendingTransfer startPart(String fileName, FileStat stat, int index, Stream stream,
+                                      FileChannel fileOut) throws IOException {
+        List<String> sources = new ArrayList<>();
+        if (stat.locations != null) {
+            sources.addAll(Arrays.asList(stat.locations[index]));
+        }
+        sources.add(null);  // le serveur principal
+
+        FramedClient.Call firstCall = null;
+        IOException firstFailure = null;
+        try {
+            firstCall = requestPart(fileName, stat, index, stream, sources.get(0));
+        } catch (IOException e) {
+            if (sources.get(0) == null) {
+                throw e;
+            }
+            firstFailure = e;
+        }
+        FramedClient.Call first = firstCall;
+        IOException failure = firstFailure;
+
+        return () -> {
+            for (int i = 0; i < sources.size(); i++) {
+                String server = sources.get(i);
+                try {
+                    if (i == 0 && failure != null) {
+                        throw failure;
+                    }
+                    FramedClient.Call call = i == 0 ? first : requestPart(fileName, stat, index, stream, server);
+                    if (receivePart(stat, index, stream, fileOut, server, call)) {
+                        return;
+                    }
+                } catch (IOException e) {
+                    if (server == null) {
+                        throw e;
+                    }
+                    stream.dropNode(server);
+                    System.out.println("Lecture directe de la partie " + (index + 1) + " sur " + server
+                            + " impossible : " + e.getMessage());
+                }
+            }
+        };
+    }
+
+    // Requête d'une partie à un serveur de stockage (DIRECT_GET), ou au serveur principal si server est null
+    private FramedClient.Call requestPart(String fileName, FileStat stat, int index, Stream stream,
+                                          String server) throws IOException {
+        FramedClient.Call call;
+        if (server != null) {
+            call = stream.node(server).call();
+            call.out.writeUTF("DIRECT_GET");
+            call.out.writeUTF(stat.tokens[index]);
+            call.out.writeLong(stat.expiresAt);
+            call.out.writeUTF(stat.partNames[index]);
+            call.out.writeLong(0);
+            call.out.writeLong(-1);
+        } else {
+            call = stream.connection.call();
+            call.out.writeUTF("download_range");
+            call.out.writeUTF(fileName);
+            call.out.writeUTF(stat.version);
+            call.out.writeLong(stat.offset(index));
+            call.out.writeLong(stat.sizes[index]);
+        }
+        call.send();
+        return call;
+    }
+
+    // Retourne false si le serveur de stockage n'a pas donné la partie et qu'il faut essayer la source suivante
+    private boolean receivePart(FileStat stat, int index, Stream stream, FileChannel fileOut, String server,
+                                FramedClient.Call call) throws IOException {
+        if (stream.buffer == null) {
+            stream.buffer = new byte[64 * 1024];
+        }
+        String response = call.in.readUTF();
+        long length;
+        if (server != null) {
+            if (!response.equals("PART_FOUND")) {
+                System.out.println("Lecture directe de la partie " + (index + 1) + " sur " + server + " : " + response);
+                return false;
+            }
+            length = call.in.readLong();
+            if (length != stat.sizes[index]) {
+                throw new IOException("taille " + length + " au lieu de " + stat.sizes[index]);
+            }
+        } else {
+            if (!response.startsWith("Downloading")) {
+                throw new IOException(response);
+            }
+            call.in.readUTF();  // version
+            call.in.readLong();  // taille totale
+            call.in.readLong();  // début
+            length = call.in.readLong();
+            if (length != stat.sizes[index]) {
+                throw new IOException("partie " + (index + 1) + " incomplète : " + length + "/" + stat.sizes[index] + " octets");
+            }
+        }
+        receiveInto(call.in, stream.buffer, length, stat.offset(index), fileOut, stat.checksums[index], index);
+        return true;
+    }
+
+    // Copie length octets du flux dans le fichier à partir de position, puis vérifie leur CRC32C (-1 : inconnu)
+    private static void receiveInto(DataInputStream in, byte[] buffer, long length, long position, FileChannel fileOut,
+                                    long expectedChecksum, int index) throws IOException {
+        CRC32C checksum = new CRC32C();
+        long received = 0;
+        while (received < length) {
+            int bytesRead = in.read(buffer, 0, (int) Math.min(buffer.length, length - received));
+            if (bytesRead == -1) {
+                throw new EOFException("Connexion interrompue après " + received + "/" + length + " octets");
+            }
+            checksum.update(buffer, 0, bytesRead);
+            ByteBuffer data = ByteBuffer.wrap(buffer, 0, bytesRead);
+            while (data.hasRemaining()) {
+                fileOut.write(data, position + received + data.position());
+            }
+            received += bytesRead;
+        }
+        if (expectedChecksum >= 0 && checksum.getValue() != expectedChecksum) {
+            throw new IOException("somme de contrôle incorrecte pour la partie " + (index + 1));
+        }
+    }
+
+    // Téléchargement d'un seul tenant, pour les fichiers dont les tailles de parties sont inconnues
+    private void downloadWhole(String fileName, File partial) throws IOException {
+        DataOutputStream dos = new DataOutputStream(socket.getOutputStream());
+        dos.writeUTF("download");
+        dos.writeUTF(fileName);
+        dos.flush();
+
+        DataInputStream dis = new DataInputStream(socket.getInputStream());
+        String response = dis.readUTF();
+        if (!response.startsWith("Downloading")) {
+            System.out.println(response);
+            return;
+        }
+        long fileLength = dis.readLong();
+        System.out.println("Enregistrement du fichier sous : " + fileName);
+        try (FileOutputStream fileOut = new FileOutputStream(partial)) {
+            receiveBytes(dis, fileLength, fileOut);
+        }
+        Files.move(partial.toPath(), Paths.get(fileName), StandardCopyOption.REPLACE_EXISTING);
+        System.out.println("Fichier téléchargé avec succès !");
+    }
+
+    /**
+     * Répartit les morceaux à transférer entre PARALLEL_STREAMS connexions au serveur, chacune
+     * gardant PIPELINE_DEPTH morceaux en cours : elle demande le suivant dès qu'elle a fini de
+     * lire la réponse du plus ancien. Une connexion en erreur
+     * s'arrête et laisse les autres finir ; l'erreur est ensuite relancée pour que l'appelant
+     * reprenne les morceaux manquants.
+     */
+    private void transferInParallel(List<Integer> indices, ChunkTransfer transfer) throws IOException {
+        if (indices.isEmpty()) {
+            return;
+        }
+        Queue<Integer> pending = new ConcurrentLinkedQueue<>(indices);
+        int streamCount = Math.min(PARALLEL_STREAMS, indices.size());
+        ExecutorService workers = Executors.newFixedThreadPool(streamCount);
+        List<Future<Void>> results = new ArrayList<>();
+        for (int i = 0; i < streamCount; i++) {
+            results.add(workers.submit(() -> {
+                try (Stream stream = new Stream(serverIp, serverPort)) {
+                    Deque<PendingTransfer> inFlight = new ArrayDeque<>();
+                    while (true) {
+                        Integer index;
+                        while (inFlight.size() < PIPELINE_DEPTH && (index = pending.poll()) != null) {
+                            inFlight.add(transfer.start(index, stream));
+                        }
+                        if (inFlight.isEmpty()) {
+                            break;
+                        }
+                        inFlight.poll().finish();
+                    }
+                }
+                return null;
+            }));
+        }
+        workers.shutdown();
+
+        IOException failure = null;
+        for (Future<Void> result : results) {
+            try {
+                result.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                workers.shutdownNow();
+                throw new InterruptedIOException("Transfert interrompu");
+            } catch (ExecutionException e) {
+                if (failure == null) {
+                    failure = e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    private static void readFully(FileChannel channel, byte[] buffer, int length, long position) throws IOException {
+        ByteBuffer target = ByteBuffer.wrap(buffer, 0, length);
+        while (target.hasRemaining()) {
+            if (channel.read(target, position + target.position()) == -1) {
+                throw new EOFException("Fichier raccourci pendant l'envoi");
+            }
+        }
+    }
+
+    private void downloadRange() {
+        if (socket == null || socket.isClosed()) {
+            System.out.println("Non connecté à un serveur.");
+            return;
+        }
+
+        System.out.println("Entrez le nom du fichier :");
+        String fileName = scanner.nextLine();
+        long offset;
+        long length;
+        try {
+            System.out.println("Entrez la position du premier octet :");
+            offset = Long.parseLong(scanner.nextLine().trim());
+            System.out.println("Entrez le nombre d'octets (-1 : jusqu'à la fin) :");
+            length = Long.parseLong(scanner.nextLine().trim());
+        } catch (NumberFormatException e) {
+            System.out.println("Nombre invalide.");
+            return;
+        }
+
+        try {
+            DataOutputStream dos = new DataOutputStream(socket.getOutputStream());
+            dos.writeUTF("download_range");
+            dos.writeUTF(fileName);
+            dos.writeUTF("");
+            dos.writeLong(offset);
+            dos.writeLong(length);
+            dos.flush();
+
+            DataInputStream dis = new DataInputStream(socket.getInputStream());
+            String response = dis.readUTF();
+            if (!response.startsWith("Downloading")) {
+                System.out.println(response);
+                return;
+            }
+
+            dis.readUTF();  // version
+            long fileLength = dis.readLong();
+            long start = dis.readLong();
+            long count = dis.readLong();
+            String target = fileName + "." + start + "-" + (start + count);
+            try (FileOutputStream fileOut = new FileOutputStream(target)) {
+                receiveBytes(dis, count, fileOut);
+            }
+            System.out.println(count + " octets (sur " + fileLength + ") enregistrés dans " + target);
+        } catch (IOException ex) {
+            System.out.println("Erreur lors de la lecture du fichier : " + ex.getMessage());
+        }
+    }
+
+    private void receiveBytes(DataInputStream dis, long length, OutputStream fileOut) throws IOException {
+        byte[] buffer = new byte[64 * 1024];
+        long totalRead = 0;
+        while (totalRead < length) {
+            int bytesRead = dis.read(buffer, 0, (int) Math.min(buffer.length, length - totalRead));
+            if (bytesRead == -1) {
+                throw new EOFException("Connexion interrompue après " + totalRead + "/" + length + " octets");
+            }
+            fileOut.write(buffer, 0, bytesRead);
+            totalRead += bytesRead;
+        }
+    }
+
+    // Ferme la connexion interrompue et en ouvre une nouvelle, après une pause croissante
+    private boolean reconnect(int attempt) {
+        try {
+            socket.close();
+        } catch (IOException ignored) {
+        }
+        try {
+            Thread.sleep(1000L * attempt);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        System.out.println("Reconnexion au serveur (tentative " + attempt + "/" + (MAX_RESUME_ATTEMPTS - 1) + ")...");
+        connectToServer(serverIp, serverPort);
+        return socket != null && !socket.isClosed();
+    }
+
+    private void deleteFile() {
+        if (socket == null || socket.isClosed()) {
+            System.out.println("Non connecté à un serveur.");
+            return;
+        }
+
+        System.out.println("Entrez le nom du fichier à supprimer :");
+        String fileName = scanner.nextLine();
+
+        try {
+            DataOutputStream dos = new DataOutputStream(socket.getOutputStream());
+            dos.writeUTF("DELETE_FILE");
+            dos.writeUTF(fileName);
+
+            DataInputStream dis = new DataInputStream(socket.getInputStream());
+            System.out.println(dis.readUTF());
+        } catch (IOException ex) {
+            System.out.println("Erreur lors de la suppression du fichier : " + ex.getMessage());
+        }
+    }
+
+    private void disconnect() {
+        try {
+            if (socket != null && !socket.isClosed()) {
+                socket.close();
+                System.out.println("Déconnecté du serveur.");
+            }
+        } catch (IOException e) {
+            System.out.println("Erreur lors de la déconnexion : " + e.getMessage());
+        }
+    }
+
+    // Transfert d'un morceau sur l'une des connexions parallèles : start envoie sa requête,
+    // la réponse est lue plus tard par finish, quand les requêtes suivantes sont déjà parties
+    private interface ChunkTransfer {
+        PendingTransfer start(int index, Stream stream) throws IOException;
+    }
+
+    private interface PendingTransfer {
+        void finish() throws IOException;
+    }
+
+    // Connexion supplémentaire au serveur, en trames, avec son tampon de transfert et ses connexions directes
+    // aux serveurs de stockage, ouvertes à la demande
+    private static class Stream implements Closeable {
+        final FramedClient connection;
+        byte[] buffer;
+        private final Map<String, FramedClient> nodes = new HashMap<>();
+
+        Stream(String ip, int port) throws IOException {
+            connection = new FramedClient(ip, port);
+        }
+
+        // address : "ip:port", tel que dans config.txt du serveur principal
+        FramedClient node(String address) throws IOException {
+            FramedClient node = nodes.get(address);
+            if (node == null) {
+                int separator = address.lastIndexOf(':');
+                node = new FramedClient(address.substring(0, separator), Integer.parseInt(address.substring(separator + 1)));
+                nodes.put(address, node);
+            }
+            return node;
+        }
+
+        // Ferme une connexion directe en erreur ; la suivante sera rouverte au besoin
+        void dropNode(String address) {
+            FramedClient node = nodes.remove(address);
+            if (node != null) {
+                try {
+                    node.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            for (FramedClient node : nodes.values()) {
+                node.close();
+            }
+            connection.close();
+        }
+    }
+
+    // Réponse à STAT : version du fichier, taille totale, taille et CRC32C de chaque partie ;
+    // avec LOCATE, aussi le nom, les copies et le jeton de lecture de chaque partie
+    private static class FileStat {
+        final String version;
+        final long totalSize;
+        final long[] sizes;
+        final long[] checksums;
+        final String[] partNames;
+        final String[][] locations;  // null sans accès direct
+        final String[] tokens;
+        long expiresAt;
+
+        FileStat(String version, long totalSize, int partCount, boolean located) {
+            this.version = version;
+            this.totalSize = totalSize;
+            this.sizes = new long[partCount];
+            this.checksums = new long[partCount];
+            this.partNames = located ? new String[partCount] : null;
+            this.locations = located ? new String[partCount][] : null;
+            this.tokens = located ? new String[partCount] : null;
+        }
+
+        long offset(int index) {
+            long offset = 0;
+            for (int i = 0; i < index; i++) {
+                offset += sizes[i];
+            }
+            return offset;
+        }
+    }
+}
@@ -0,0 +1,203 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Exécute les connexions acceptées par un serveur selon le modèle choisi au lancement :
+ *   -Dtransfert.execution=pool     pool borné de transfert.pool.threads threads (200 par défaut)
+ *                                  et file d'attente de transfert.pool.queue connexions (1000) ;
+ *   -Dtransfert.execution=virtual  un thread virtuel par connexion (Java 21 et plus ; sinon pool).
+ * Quand le pool et sa file sont pleins, -Dtransfert.pool.rejection choisit entre fermer la
+ * nouvelle connexion ("close", par défaut) ou suspendre les accept jusqu'à ce qu'une place se
+ * libère ("block"), ce qui laisse les connexions suivantes dans la file du système.
+ */
+class ConnectionExecutor {
+
+    private final String name;
+    private final ExecutorService executor;
+    private final BlockingQueue<Runnable> queue;  // null pour les threads virtuels
+    private final boolean blockWhenFull;
+    private final AtomicInteger active = new AtomicInteger();
+    private final AtomicLong accepted = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+
+    private ConnectionExecutor(String name, ExecutorService executor, BlockingQueue<Runnable> queue, boolean blockWhenFull) {
+        this.name = name;
+        this.executor = executor;
+        this.queue = queue;
+        this.blockWhenFull = blockWhenFull;
+    }
+
+    static ConnectionExecutor fromSystemProperties(String name) {
+        String mode = System.getProperty("transfert.execution", "pool");
+        boolean blockWhenFull = "block".equals(System.getProperty("transfert.pool.rejection", "close"));
+
+        if ("virtual".equals(mode)) {
+            ExecutorService virtual = virtualThreads(name);
+            if (virtual != null) {
+                Log.info(name + " : un thread virtuel par connexion.");
+                return new ConnectionExecutor(name, virtual, null, blockWhenFull);
+            }
+        }
+
+        int threads = poolThreads();
+        int queueSize = Integer.getInteger("transfert.pool.queue", 1000);
+        BlockingQueue<Runnable> queue = new ArrayBlockingQueue<>(queueSize);
+        AtomicInteger threadCount = new AtomicInteger();
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, queue, runnable -> {
+            Thread thread = new Thread(runnable, name + "-connexion-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }, new ThreadPoolExecutor.AbortPolicy());
+        pool.allowCoreThreadTimeOut(true);
+        Log.info(name + " : pool de threads", "threads", threads, "file", queueSize);
+        return new ConnectionExecutor(name, pool, queue, blockWhenFull);
+    }
+
+    /**
+     * Exécuteur des transferts que les connexions lancent vers les serveurs de stockage (un envoi
+     * par serveur pour un fichier reçu, des lectures en parallèle pour un téléchargement) : un
+     * thread virtuel par transfert en mode virtual, sinon au plus transfert.transfer.perConnection
+     * threads (8 par défaut) par thread du pool de connexions. Il n'a pas de file : un envoi en
+     * attente bloquerait la lecture du client qui le nourrit, et avec elle les autres envois du
+     * même fichier qui occupent déjà des threads. Au-delà de la limite, execute lève
+     * RejectedExecutionException après avoir appelé onRejected, et la requête échoue.
+     */
+    static ExecutorService transfersFromSystemProperties(String name, Runnable onRejected) {
+        if ("virtual".equals(System.getProperty("transfert.execution", "pool"))) {
+            ExecutorService virtual = virtualThreads(name);
+            if (virtual != null) {
+                return virtual;
+            }
+        }
+        int threads = poolThreads() * Integer.getInteger("transfert.transfer.perConnection", 8);
+        AtomicInteger threadCount = new AtomicInteger();
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(0, threads, 60, TimeUnit.SECONDS, new SynchronousQueue<>(), runnable -> {
+            Thread thread = new Thread(runnable, name + "-transfert-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }, (task, executor) -> {
+            onRejected.run();
+            throw new RejectedExecutionException(name + " : " + threads + " transferts en cours");
+        });
+        Log.info(name + " : pool de transferts", "threads", threads);
+        return pool;
+    }
+
+    private static int poolThreads() {
+        return Integer.getInteger("transfert.pool.threads", 200);
+    }
+
+    // Exécuteur à un thread virtuel par tâche (Java 21 et plus), ou null
+    private static ExecutorService virtualThreads(String name) {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            Log.warn(name + " : threads virtuels indisponibles sur cette JVM, utilisation d'un pool borné.");
+            return null;
+        }
+    }
+
+    /**
+     * Confie une connexion au modèle d'exécution. Si elle est refusée, elle est fermée
+     * et la méthode retourne false.
+     */
+    boolean submit(Closeable connection, Runnable handler) {
+        Runnable task = track(handler);
+        try {
+            try {
+                executor.execute(task);
+            } catch (RejectedExecutionException e) {
+                if (!blockWhenFull || queue == null || executor.isShutdown()) {
+                    throw e;
+                }
+                // Pool et file pleins : on suspend les accept jusqu'à ce qu'une place se libère
+                queue.put(task);
+                ((ThreadPoolExecutor) executor).prestartCoreThread();
+            }
+            accepted.incrementAndGet();
+            return true;
+        } catch (RejectedExecutionException | InterruptedException e) {
+            if (e instanceof InterruptedException) {
+                Thread.currentThread().interrupt();
+            }
+            rejected.incrementAndGet();
+            Log.warn(name + " : connexion refusée", "actives", activeConnections(), "en_attente", queuedConnections(),
+                    "refusees", rejectedConnections());
+            try {
+                connection.close();
+            } catch (IOException ignored) {
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Confie une tâche sans jamais bloquer ni fermer quoi que ce soit : retourne false si le
+     * pool et sa file sont pleins, l'appelant la représentant plus tard (frontal Selector).
+     */
+    boolean offer(Runnable handler) {
+        try {
+            executor.execute(track(handler));
+            accepted.incrementAndGet();
+            return true;
+        } catch (RejectedExecutionException e) {
+            return false;
+        }
+    }
+
+    private Runnable track(Runnable handler) {
+        return () -> {
+            active.incrementAndGet();
+            try {
+                handler.run();
+            } finally {
+                active.decrementAndGet();
+            }
+        };
+    }
+
+    int activeConnections() {
+        return active.get();
+    }
+
+    int queuedConnections() {
+        return queue == null ? 0 : queue.size();
+    }
+
+    long acceptedConnections() {
+        return accepted.get();
+    }
+
+    long rejectedConnections() {
+        return rejected.get();
+    }
+
+    void registerMetrics(Metrics metrics) {
+        metrics.gauge("transfert_connections_active", this::activeConnections);
+        metrics.gauge("transfert_connections_queued", this::queuedConnections);
+        metrics.gauge("transfert_connections_accepted_total", this::acceptedConnections);
+        metrics.gauge("transfert_connections_rejected_total", this::rejectedConnections);
+    }
+
+    String describe() {
+        return "actives=" + activeConnections() + " en attente=" + queuedConnections()
+                + " acceptées=" + acceptedConnections() + " refusées=" + rejectedConnections();
+    }
+
+    /** Affiche périodiquement l'état des connexions (-Dtransfert.stats.seconds, 0 pour désactiver). */
+    void startReporting() {
+        int seconds = Integer.getInteger("transfert.stats.seconds", 60);
+        if (seconds <= 0) {
+            return;
+        }
+        ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, name + "-statistiques");
+            thread.setDaemon(true);
+            return thread;
+        });
+        reporter.scheduleAtFixedRate(() -> Log.info(name + " : " + describe()), seconds, seconds, TimeUnit.SECONDS);
+    }
+}
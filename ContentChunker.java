@@ -0,0 +1,73 @@
+import java.util.Random;
+
+/**
+ * Découpage d'un flux en morceaux dont les frontières dépendent du contenu (FastCDC).
+ *
+ * Une empreinte glissante « gear » est mise à jour à chaque octet ; une frontière est posée
+ * quand ses bits de poids fort sont nuls. Comme l'empreinte ne dépend que des 64 derniers
+ * octets, une insertion au début d'un fichier ne déplace que les frontières voisines et les
+ * morceaux suivants restent identiques d'une version à l'autre.
+ *
+ * La taille des morceaux reste entre averageSize / 4 et averageSize * 4 : en dessous de la
+ * taille moyenne le masque est plus exigeant, au-dessus il l'est moins (normalisation FastCDC),
+ * ce qui resserre la distribution des tailles autour de la moyenne.
+ */
+class ContentChunker {
+
+    private static final long[] GEAR = new long[256];
+
+    static {
+        // Graine fixe : les frontières doivent être les mêmes à chaque démarrage
+        Random random = new Random(0x5EED_C0DEL);
+        for (int i = 0; i < GEAR.length; i++) {
+            GEAR[i] = random.nextLong();
+        }
+    }
+
+    final int minSize;
+    final int averageSize;
+    final int maxSize;
+    private final long strictMask;
+    private final long looseMask;
+
+    ContentChunker(int averageSize) {
+        int bits = 31 - Integer.numberOfLeadingZeros(Math.max(averageSize, 256));
+        this.averageSize = 1 << bits;
+        this.minSize = this.averageSize / 4;
+        this.maxSize = this.averageSize * 4;
+        this.strictMask = topBits(bits + 2);
+        this.looseMask = topBits(bits - 2);
+    }
+
+    private static long topBits(int count) {
+        return -1L << (64 - count);
+    }
+
+    /**
+     * Longueur du prochain morceau au début de data[offset, offset + length). Les données
+     * doivent contenir au moins maxSize octets, sauf en fin de flux où le reste forme
+     * éventuellement le dernier morceau.
+     */
+    int cut(byte[] data, int offset, int length) {
+        if (length <= minSize) {
+            return length;
+        }
+        int end = Math.min(length, maxSize);
+        int normal = Math.min(end, averageSize);
+        long fingerprint = 0;
+        int i = minSize;
+        for (; i < normal; i++) {
+            fingerprint = (fingerprint << 1) + GEAR[data[offset + i] & 0xff];
+            if ((fingerprint & strictMask) == 0) {
+                return i + 1;
+            }
+        }
+        for (; i < end; i++) {
+            fingerprint = (fingerprint << 1) + GEAR[data[offset + i] & 0xff];
+            if ((fingerprint & looseMask) == 0) {
+                return i + 1;
+            }
+        }
+        return end;
+    }
+}
@@ -0,0 +1,775 @@
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+
+/**
+ * Catalogue en mémoire des fichiers distribués : pour chaque nom de fichier, la liste
+ * ordonnée de ses parties avec les serveurs qui en stockent une copie et leur taille.
+ *
+ * Il est chargé une seule fois au démarrage depuis l'instantané (file_mapping.txt, une ligne
+ * "fichier,partie,serveur[|serveur...][,taille[,attribut...]]" par partie) puis depuis le
+ * journal, où chaque modification est ajoutée sur une seule ligne :
+ *   PUT,fichier,n,partie;serveurs;taille[;attribut...],...  remplace toutes les parties du fichier
+ *   DEL,fichier                                             supprime le fichier
+ * Les attributs facultatifs sont "k+m" pour une partie codée par effacement (la liste des
+ * serveurs donne alors, dans l'ordre, l'emplacement de chacun des k+m fragments, "-" pour un
+ * fragment perdu) et "crc32c=<hex>", la somme de contrôle de la partie.
+ * Les noms de fichiers et de parties sont échappés (voir escape) : '%', les séparateurs et les
+ * caractères de contrôle y sont écrits "%XX". Une ligne illisible est ignorée, pas le reste.
+ * Une modification n'est confirmée qu'une fois son enregistrement sur disque (fsync) ; les
+ * modifications concurrentes partagent le même fsync.
+ * Rejouer un enregistrement deux fois donne le même résultat, ce qui permet de compacter
+ * (réécrire l'instantané puis supprimer le journal) sans risque si le serveur s'arrête entre les deux.
+ * La compaction tourne sur son propre thread : le journal est d'abord renommé (".ancien") et les
+ * modifications suivantes vont dans un nouveau journal ; au chargement, l'ancien est rejoué avant.
+ *
+ * Les modifications d'un même nom de fichier sont sérialisées par un verrou choisi parmi un
+ * ensemble fixe (verrous répartis par hachage du nom) ; les lectures de la table ne prennent
+ * aucun verrou. Un téléchargement épingle la version qu'il lit : quand elle est remplacée ou
+ * supprimée, ses parties ne sont libérées qu'au départ du dernier lecteur.
+ *
+ * Une même partie peut appartenir à plusieurs fichiers : les morceaux adressés par leur contenu
+ * ("chunk-<sha256>.<suffixe>") sont repris par tout envoi qui contient les mêmes octets. Chaque
+ * partie compte donc ses références (versions de fichiers et envois en cours) et n'est libérée
+ * qu'à la dernière. L'index des morceaux par empreinte est reconstruit au chargement.
+ */
+class FileCatalog {
+
+    static class PartEntry {
+        static final String MISSING_SHARD = "-";
+
+        final String partName;
+        final List<String> servers;  // serveurs qui stockent une copie de la partie, ou ses fragments dans l'ordre
+        final long size;  // -1 pour les anciennes lignes sans taille
+        final int dataShards;  // 0 : partie répliquée
+        final int parityShards;
+        final long checksum;  // CRC32C du contenu de la partie, -1 si inconnu
+        final long compressedSize;  // octets stockés compressés (Deflate), -1 : partie stockée telle quelle
+        final String sha256;  // SHA-256 du contenu en hexadécimal, null si non calculé
+
+        PartEntry(String partName, List<String> servers, long size) {
+            this(partName, servers, size, 0, 0, -1);
+        }
+
+        PartEntry(String partName, List<String> servers, long size, int dataShards, int parityShards) {
+            this(partName, servers, size, dataShards, parityShards, -1);
+        }
+
+        PartEntry(String partName, List<String> servers, long size, int dataShards, int parityShards, long checksum) {
+            this(partName, servers, size, dataShards, parityShards, checksum, -1);
+        }
+
+        PartEntry(String partName, List<String> servers, long size, int dataShards, int parityShards, long checksum,
+                  long compressedSize) {
+            this(partName, servers, size, dataShards, parityShards, checksum, compressedSize, null);
+        }
+
+        PartEntry(String partName, List<String> servers, long size, int dataShards, int parityShards, long checksum,
+                  long compressedSize, String sha256) {
+            this.partName = partName;
+            this.servers = Collections.unmodifiableList(new ArrayList<>(servers));
+            this.size = size;
+            this.dataShards = dataShards;
+            this.parityShards = parityShards;
+            this.checksum = checksum;
+            this.compressedSize = compressedSize;
+            this.sha256 = sha256;
+        }
+
+        PartEntry withServers(List<String> servers) {
+            return new PartEntry(partName, servers, size, dataShards, parityShards, checksum, compressedSize, sha256);
+        }
+
+        PartEntry withChecksum(long checksum) {
+            return new PartEntry(partName, servers, size, dataShards, parityShards, checksum, compressedSize, sha256);
+        }
+
+        PartEntry withCompressedSize(long compressedSize) {
+            return new PartEntry(partName, servers, size, dataShards, parityShards, checksum, compressedSize, sha256);
+        }
+
+        PartEntry withSha256(String sha256) {
+            return new PartEntry(partName, servers, size, dataShards, parityShards, checksum, compressedSize, sha256);
+        }
+
+        boolean isErasureCoded() {
+            return dataShards > 0;
+        }
+
+        boolean isCompressed() {
+            return compressedSize >= 0;
+        }
+
+        // Taille de la partie sur les serveurs de stockage
+        long storedSize() {
+            return isCompressed() ? compressedSize : size;
+        }
+
+        String shardName(int index) {
+            return partName + ".s" + index;
+        }
+
+        // Les fragments de données découpent la partie en tranches de shardSize octets ; la dernière est plus courte
+        long shardSize() {
+            return (size + dataShards - 1) / dataShards;
+        }
+
+        long shardLength(int index) {
+            long shardSize = shardSize();
+            return index < dataShards ? Math.max(0, Math.min(shardSize, size - index * shardSize)) : shardSize;
+        }
+
+        String joinedServers() {
+            return String.join("|", servers);
+        }
+
+        // Attributs facultatifs écrits après la taille dans le journal et l'instantané
+        List<String> attributes() {
+            List<String> attributes = new ArrayList<>();
+            if (isErasureCoded()) {
+                attributes.add(dataShards + "+" + parityShards);
+            }
+            if (checksum >= 0) {
+                attributes.add("crc32c=" + Long.toHexString(checksum));
+            }
+            if (isCompressed()) {
+                attributes.add("deflate=" + compressedSize);
+            }
+            if (sha256 != null) {
+                attributes.add("sha256=" + sha256);
+            }
+            return attributes;
+        }
+
+        static List<String> splitServers(String servers) {
+            return Arrays.asList(servers.trim().split("\\|"));
+        }
+
+        static PartEntry parse(String partName, String servers, long size, String[] fields, int firstAttribute) {
+            int dataShards = 0;
+            int parityShards = 0;
+            long checksum = -1;
+            long compressedSize = -1;
+            String sha256 = null;
+            for (int i = firstAttribute; i < fields.length; i++) {
+                String attribute = fields[i].trim();
+                if (attribute.startsWith("crc32c=")) {
+                    checksum = Long.parseLong(attribute.substring("crc32c=".length()), 16);
+                } else if (attribute.startsWith("deflate=")) {
+                    compressedSize = Long.parseLong(attribute.substring("deflate=".length()));
+                } else if (attribute.startsWith("sha256=")) {
+                    sha256 = attribute.substring("sha256=".length());
+                } else if (attribute.contains("+")) {
+                    String[] shards = attribute.split("\\+");
+                    dataShards = Integer.parseInt(shards[0]);
+                    parityShards = Integer.parseInt(shards[1]);
+                }
+            }
+            return new PartEntry(partName, splitServers(servers), size, dataShards, parityShards, checksum, compressedSize, sha256);
+        }
+    }
+
+    /** Une version d'un fichier : ses parties et le nombre de téléchargements en cours. */
+    static class FileEntry {
+        final String fileName;
+        final List<PartEntry> parts;
+        private final AtomicInteger pins = new AtomicInteger();
+        private final AtomicBoolean released = new AtomicBoolean();
+        private volatile boolean retired;
+
+        FileEntry(String fileName, List<PartEntry> parts) {
+            this.fileName = fileName;
+            this.parts = Collections.unmodifiableList(new ArrayList<>(parts));
+        }
+
+        /**
+         * Identifiant de la version, calculé à partir des noms et tailles des parties : il change
+         * à chaque nouvel envoi, sauf si le même contenu est renvoyé et entièrement dédupliqué.
+         */
+        String version() {
+            long hash = 1125899906842597L;
+            for (PartEntry part : parts) {
+                String key = part.partName + ";" + part.size + ",";
+                for (int i = 0; i < key.length(); i++) {
+                    hash = 31 * hash + key.charAt(i);
+                }
+            }
+            return Long.toHexString(hash);
+        }
+    }
+
+    /** Une partie stockée et le nombre de versions de fichiers ou d'envois en cours qui la référencent. */
+    static class Chunk {
+        final String hash;  // null : partie qui n'est pas adressée par son contenu
+        private volatile PartEntry part;
+        private int references;
+        // Résultat du stockage, pour les envois qui reprennent un morceau encore en cours d'envoi
+        private final CompletableFuture<PartEntry> stored = new CompletableFuture<>();
+
+        Chunk(String hash, PartEntry part) {
+            this.hash = hash;
+            this.part = part;
+        }
+
+        PartEntry part() {
+            return part;
+        }
+
+        /** Attend la fin du stockage du morceau ; null s'il a échoué. */
+        PartEntry awaitStored() throws InterruptedException {
+            try {
+                return stored.get();
+            } catch (ExecutionException e) {
+                return null;
+            }
+        }
+    }
+
+    static final String CHUNK_PREFIX = "chunk-";
+
+    private final Map<String, FileEntry> files = new ConcurrentHashMap<>();
+    // Références par nom de partie et index des morceaux par empreinte, protégés par chunks
+    private final Map<String, Chunk> chunks = new HashMap<>();
+    private final Map<String, Chunk> chunkIndex = new HashMap<>();
+    private final ReadWriteLock[] locks;
+    private final Path snapshotPath;
+    private final Path journalPath;
+    private final int compactionThreshold;
+    private final Path previousJournalPath;
+    private final Consumer<List<PartEntry>> partReleaser;
+    private final ExecutorService compactor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "catalogue-compaction");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final Object compaction = new Object();
+    // Pris avant le moniteur du catalogue ; protège synced
+    private final Object sync = new Object();
+    private long synced;  // enregistrements déjà sur disque
+    // Protégés par le moniteur du catalogue
+    private Writer journal;
+    private FileChannel journalChannel;
+    private long appended;
+    private int journalRecords;
+    private boolean compactionScheduled;
+
+    private FileCatalog(Path snapshotPath, Path journalPath, int compactionThreshold, int lockStripes,
+                        Consumer<List<PartEntry>> partReleaser) {
+        this.snapshotPath = snapshotPath;
+        this.journalPath = journalPath;
+        this.previousJournalPath = journalPath.resolveSibling(journalPath.getFileName() + ".ancien");
+        this.compactionThreshold = compactionThreshold;
+        this.partReleaser = partReleaser;
+        this.locks = new ReadWriteLock[lockStripes];
+        for (int i = 0; i < lockStripes; i++) {
+            locks[i] = new ReentrantReadWriteLock();
+        }
+    }
+
+    /**
+     * Charge le catalogue. partReleaser est appelé avec les parties d'une version remplacée
+     * ou supprimée une fois qu'aucun téléchargement ne l'utilise plus.
+     */
+    static FileCatalog load(String snapshotFile, String journalFile, int compactionThreshold, int lockStripes,
+                            Consumer<List<PartEntry>> partReleaser) throws IOException {
+        FileCatalog catalog = new FileCatalog(Paths.get(snapshotFile), Paths.get(journalFile),
+                compactionThreshold, lockStripes, partReleaser);
+        catalog.loadSnapshot();
+        int replayed = catalog.replayJournal(catalog.previousJournalPath) + catalog.replayJournal(catalog.journalPath);
+        for (FileEntry entry : catalog.files.values()) {
+            catalog.retainParts(entry.parts);
+        }
+        synchronized (catalog) {
+            catalog.openJournal(true);
+        }
+        if (replayed > 0) {
+            catalog.compact();
+        }
+        return catalog;
+    }
+
+    /** Empreinte du contenu d'un morceau d'après son nom, ou null pour une autre partie. */
+    static String contentHash(String partName) {
+        if (!partName.startsWith(CHUNK_PREFIX)) {
+            return null;
+        }
+        int end = partName.indexOf('.', CHUNK_PREFIX.length());
+        return end < 0 ? null : partName.substring(CHUNK_PREFIX.length(), end);
+    }
+
+    /**
+     * Référence le morceau déjà connu pour ce contenu, ou enregistre candidate comme nouveau
+     * morceau. Le résultat compte une référence pour l'appelant, à rendre par releaseChunk ;
+     * si sa partie est candidate, l'appelant doit la stocker puis appeler chunkStored.
+     */
+    Chunk referenceChunk(String hash, PartEntry candidate) {
+        synchronized (chunks) {
+            Chunk chunk = chunkIndex.get(hash);
+            if (chunk == null) {
+                chunk = new Chunk(hash, candidate);
+                chunkIndex.put(hash, chunk);
+                chunks.put(candidate.partName, chunk);
+            }
+            chunk.references++;
+            return chunk;
+        }
+    }
+
+    /**
+     * Publie le résultat du stockage d'un nouveau morceau (stored : copies réussies, null en
+     * cas d'échec). Seul le premier appel compte.
+     */
+    void chunkStored(Chunk chunk, PartEntry stored) {
+        synchronized (chunks) {
+            if (chunk.stored.isDone()) {
+                return;
+            }
+            if (stored != null) {
+                chunk.part = stored;
+            } else {
+                chunkIndex.remove(chunk.hash, chunk);
+            }
+            chunk.stored.complete(stored);
+        }
+    }
+
+    void releaseChunk(Chunk chunk) {
+        List<PartEntry> released = new ArrayList<>();
+        synchronized (chunks) {
+            release(chunk, released);
+        }
+        if (!released.isEmpty()) {
+            partReleaser.accept(released);
+        }
+    }
+
+    private void retainParts(List<PartEntry> parts) {
+        synchronized (chunks) {
+            for (PartEntry part : parts) {
+                Chunk chunk = chunks.get(part.partName);
+                if (chunk == null) {
+                    chunk = new Chunk(contentHash(part.partName), part);
+                    chunk.stored.complete(part);
+                    chunks.put(part.partName, chunk);
+                    if (chunk.hash != null) {
+                        chunkIndex.putIfAbsent(chunk.hash, chunk);
+                    }
+                }
+                chunk.references++;
+            }
+        }
+    }
+
+    private void release(Chunk chunk, List<PartEntry> released) {
+        if (--chunk.references == 0) {
+            chunks.remove(chunk.part.partName, chunk);
+            if (chunk.hash != null) {
+                chunkIndex.remove(chunk.hash, chunk);
+            }
+            released.add(chunk.part);
+        }
+    }
+
+    FileEntry get(String fileName) {
+        return files.get(fileName);
+    }
+
+    /** Retourne la version courante du fichier en l'épinglant, ou null s'il n'existe pas. */
+    FileEntry acquire(String fileName) {
+        Lock lock = lockFor(fileName).readLock();
+        lock.lock();
+        try {
+            FileEntry entry = files.get(fileName);
+            if (entry != null) {
+                entry.pins.incrementAndGet();
+            }
+            return entry;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void release(FileEntry entry) {
+        if (entry.pins.decrementAndGet() == 0 && entry.retired) {
+            releaseParts(entry);
+        }
+    }
+
+    Set<String> fileNames() {
+        return files.keySet();
+    }
+
+    int size() {
+        return files.size();
+    }
+
+    /** Enregistre les parties d'un fichier ; la version précédente éventuelle est retirée. */
+    void put(String fileName, List<PartEntry> parts) throws IOException {
+        FileEntry previous;
+        Lock lock = lockFor(fileName).writeLock();
+        lock.lock();
+        try {
+            previous = store(fileName, parts);
+        } finally {
+            lock.unlock();
+        }
+        commit();
+        retire(previous);
+    }
+
+    // Appelé avec le verrou du fichier ; l'appelant doit ensuite appeler commit
+    private FileEntry store(String fileName, List<PartEntry> parts) throws IOException {
+        StringBuilder record = new StringBuilder("PUT,").append(escape(fileName)).append(',').append(parts.size());
+        for (PartEntry part : parts) {
+            record.append(',').append(escape(part.partName)).append(';').append(part.joinedServers()).append(';').append(part.size);
+            for (String attribute : part.attributes()) {
+                record.append(';').append(attribute);
+            }
+        }
+        synchronized (this) {
+            append(record.toString());
+            retainParts(parts);
+            return files.put(fileName, new FileEntry(fileName, parts));
+        }
+    }
+
+    /** La partie de ce nom telle que le catalogue la connaît (serveurs à jour), ou null. */
+    PartEntry part(String partName) {
+        synchronized (chunks) {
+            Chunk chunk = chunks.get(partName);
+            return chunk == null ? null : chunk.part;
+        }
+    }
+
+    /**
+     * Remplace la partie du même nom que updated (mêmes octets, autres serveurs : nouvelle
+     * copie, déplacement) dans la version courante de chacun des fichiers donnés. La version
+     * change d'objet mais pas d'identifiant ; un téléchargement en cours garde l'ancienne.
+     * Retourne le nombre de fichiers modifiés : 0 si tous ont été supprimés entre-temps.
+     */
+    int replacePart(Collection<String> fileNames, PartEntry updated) throws IOException {
+        int replaced = 0;
+        for (String fileName : fileNames) {
+            FileEntry previous = null;
+            Lock lock = lockFor(fileName).writeLock();
+            lock.lock();
+            try {
+                FileEntry current = files.get(fileName);
+                List<PartEntry> parts = current == null ? Collections.emptyList() : new ArrayList<>(current.parts);
+                boolean found = false;
+                for (int i = 0; i < parts.size(); i++) {
+                    if (parts.get(i).partName.equals(updated.partName)) {
+                        parts.set(i, updated);
+                        found = true;
+                    }
+                }
+                if (found) {
+                    previous = store(fileName, parts);
+                    replaced++;
+                }
+            } finally {
+                lock.unlock();
+            }
+            if (previous != null) {
+                commit();
+            }
+            retire(previous);
+        }
+        synchronized (chunks) {
+            Chunk chunk = chunks.get(updated.partName);
+            if (chunk != null) {
+                chunk.part = updated;
+            }
+        }
+        return replaced;
+    }
+
+    /** Supprime un fichier du catalogue ; retourne false s'il n'existait pas. */
+    boolean remove(String fileName) throws IOException {
+        FileEntry previous;
+        Lock lock = lockFor(fileName).writeLock();
+        lock.lock();
+        try {
+            if (!files.containsKey(fileName)) {
+                return false;
+            }
+            synchronized (this) {
+                append("DEL," + escape(fileName));
+                previous = files.remove(fileName);
+            }
+        } finally {
+            lock.unlock();
+        }
+        commit();
+        retire(previous);
+        return true;
+    }
+
+    private ReadWriteLock lockFor(String fileName) {
+        return locks[(fileName.hashCode() & 0x7fffffff) % locks.length];
+    }
+
+    private void retire(FileEntry entry) {
+        if (entry != null) {
+            entry.retired = true;
+            if (entry.pins.get() == 0) {
+                releaseParts(entry);
+            }
+        }
+    }
+
+    private void releaseParts(FileEntry entry) {
+        if (entry.released.compareAndSet(false, true)) {
+            List<PartEntry> released = new ArrayList<>();
+            synchronized (chunks) {
+                for (PartEntry part : entry.parts) {
+                    Chunk chunk = chunks.get(part.partName);
+                    if (chunk != null) {
+                        release(chunk, released);
+                    }
+                }
+            }
+            if (!released.isEmpty()) {
+                partReleaser.accept(released);
+            }
+        }
+    }
+
+    // Appelé sous le moniteur du catalogue ; l'enregistrement n'est durable qu'après commit()
+    private void append(String record) throws IOException {
+        journal.write(record);
+        journal.write('\n');
+        appended++;
+        if (++journalRecords >= compactionThreshold && !compactionScheduled) {
+            compactionScheduled = true;
+            compactor.execute(this::compactInBackground);
+        }
+    }
+
+    /**
+     * Attend que tous les enregistrements ajoutés jusqu'ici soient sur disque. Un appelant qui
+     * arrive pendant un fsync attend le suivant, qui couvre aussi les enregistrements des autres.
+     * Les parties d'une version remplacée ne sont libérées qu'après : un redémarrage ne peut pas
+     * revenir à une version dont les parties ont été effacées.
+     */
+    private void commit() throws IOException {
+        long target;
+        synchronized (this) {
+            target = appended;
+        }
+        synchronized (sync) {
+            if (synced >= target) {
+                return;
+            }
+            FileChannel channel;
+            long through;
+            synchronized (this) {
+                journal.flush();
+                channel = journalChannel;
+                through = appended;
+            }
+            channel.force(false);
+            synced = through;
+        }
+    }
+
+    private void compactInBackground() {
+        try {
+            compact();
+        } catch (IOException e) {
+            Log.warn("Compaction du catalogue impossible", "erreur", e.getMessage());
+        } finally {
+            synchronized (this) {
+                compactionScheduled = false;
+            }
+        }
+    }
+
+    /**
+     * Réécrit l'instantané à partir de l'état en mémoire puis supprime le journal qu'il remplace.
+     * Seul le renommage du journal bloque les modifications ; celles qui arrivent pendant l'écriture
+     * de l'instantané y figurent ou non, mais sont toujours dans le nouveau journal.
+     */
+    void compact() throws IOException {
+        synchronized (compaction) {
+            synchronized (sync) {
+                synchronized (this) {
+                    journal.flush();
+                    journalChannel.force(false);
+                    synced = appended;
+                    // Un ancien journal encore présent (compaction interrompue) n'est supprimé
+                    // qu'avec l'instantané qui le remplace : on garde alors le journal courant
+                    if (!Files.exists(previousJournalPath)) {
+                        journal.close();
+                        Files.move(journalPath, previousJournalPath, StandardCopyOption.ATOMIC_MOVE);
+                        openJournal(false);
+                        syncDirectory(journalPath);
+                        journalRecords = 0;
+                    }
+                }
+            }
+            writeSnapshot();
+            Files.deleteIfExists(previousJournalPath);
+        }
+        Log.info("Catalogue compacté", "fichiers", files.size());
+    }
+
+    private void writeSnapshot() throws IOException {
+        Path tempPath = snapshotPath.resolveSibling(snapshotPath.getFileName() + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(tempPath.toFile());
+             BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8))) {
+            for (Map.Entry<String, FileEntry> entry : files.entrySet()) {
+                for (PartEntry part : entry.getValue().parts) {
+                    StringBuilder line = new StringBuilder(escape(entry.getKey())).append(',').append(escape(part.partName))
+                            .append(',').append(part.joinedServers()).append(',').append(part.size);
+                    for (String attribute : part.attributes()) {
+                        line.append(',').append(attribute);
+                    }
+                    writer.write(line.toString());
+                    writer.newLine();
+                }
+            }
+            writer.flush();
+            out.getFD().sync();
+        }
+        Files.move(tempPath, snapshotPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        syncDirectory(snapshotPath);
+    }
+
+    // Rend durables les créations et renommages dans le répertoire du fichier, quand le système le permet
+    private static void syncDirectory(Path file) {
+        Path directory = file.toAbsolutePath().getParent();
+        try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            Log.debug("Synchronisation du répertoire impossible", "répertoire", directory, "erreur", e.getMessage());
+        }
+    }
+
+    // Appelé sous le moniteur du catalogue
+    private void openJournal(boolean append) throws IOException {
+        FileOutputStream out = new FileOutputStream(journalPath.toFile(), append);
+        journalChannel = out.getChannel();
+        journal = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+    }
+
+    private void loadSnapshot() throws IOException {
+        if (!Files.exists(snapshotPath)) {
+            return;
+        }
+        Map<String, List<PartEntry>> loaded = new LinkedHashMap<>();
+        for (String line : Files.readAllLines(snapshotPath, StandardCharsets.UTF_8)) {
+            String[] tokens = line.split(",");
+            try {
+                if (tokens.length >= 3) {
+                    long size = tokens.length >= 4 ? Long.parseLong(tokens[3].trim()) : -1;
+                    PartEntry part = PartEntry.parse(unescape(tokens[1]), tokens[2], size, tokens, 4);
+                    loaded.computeIfAbsent(unescape(tokens[0]), k -> new ArrayList<>()).add(part);
+                } else if (!line.isEmpty()) {
+                    Log.warn("Ligne de l'instantané ignorée", "ligne", line);
+                }
+            } catch (RuntimeException e) {
+                Log.warn("Ligne de l'instantané ignorée", "ligne", line, "erreur", e);
+            }
+        }
+        for (Map.Entry<String, List<PartEntry>> entry : loaded.entrySet()) {
+            files.put(entry.getKey(), new FileEntry(entry.getKey(), entry.getValue()));
+        }
+    }
+
+    private int replayJournal(Path journalPath) throws IOException {
+        if (!Files.exists(journalPath)) {
+            return 0;
+        }
+        String content = new String(Files.readAllBytes(journalPath), StandardCharsets.UTF_8);
+        // Une dernière ligne sans retour à la ligne est un enregistrement interrompu : on l'ignore
+        int end = content.lastIndexOf('\n');
+        if (end < 0) {
+            return 0;
+        }
+        int replayed = 0;
+        for (String line : content.substring(0, end).split("\n")) {
+            try {
+                if (replay(line.split(","))) {
+                    replayed++;
+                } else {
+                    Log.warn("Enregistrement du journal ignoré", "ligne", line);
+                }
+            } catch (RuntimeException e) {
+                Log.warn("Enregistrement du journal ignoré", "ligne", line, "erreur", e);
+            }
+        }
+        return replayed;
+    }
+
+    private boolean replay(String[] tokens) {
+        if (tokens.length == 2 && "DEL".equals(tokens[0])) {
+            files.remove(unescape(tokens[1]));
+            return true;
+        }
+        if (tokens.length < 3 || !"PUT".equals(tokens[0]) || tokens.length != 3 + Integer.parseInt(tokens[2])) {
+            return false;
+        }
+        List<PartEntry> parts = new ArrayList<>();
+        for (int i = 3; i < tokens.length; i++) {
+            String[] fields = tokens[i].split(";");
+            parts.add(PartEntry.parse(unescape(fields[0]), fields[1], Long.parseLong(fields[2]), fields, 3));
+        }
+        String fileName = unescape(tokens[1]);
+        files.put(fileName, new FileEntry(fileName, parts));
+        return true;
+    }
+
+    /**
+     * Nom tel qu'il est écrit dans l'instantané et le journal : '%', ',', ';', '|' et les
+     * caractères de contrôle deviennent "%XX" (code hexadécimal), le reste est inchangé.
+     */
+    static String escape(String name) {
+        StringBuilder escaped = null;
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (c < 0x20 || c == 0x7f || "%,;|".indexOf(c) >= 0) {
+                if (escaped == null) {
+                    escaped = new StringBuilder(name.length() + 8).append(name, 0, i);
+                }
+                escaped.append('%').append(Character.forDigit(c >> 4, 16)).append(Character.forDigit(c & 0xf, 16));
+            } else if (escaped != null) {
+                escaped.append(c);
+            }
+        }
+        return escaped == null ? name : escaped.toString();
+    }
+
+    // Inverse de escape ; un '%' qui n'est pas suivi de deux chiffres hexadécimaux (anciennes lignes) est gardé
+    static String unescape(String name) {
+        if (name.indexOf('%') < 0) {
+            return name;
+        }
+        StringBuilder unescaped = new StringBuilder(name.length());
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            int high = i + 2 < name.length() ? Character.digit(name.charAt(i + 1), 16) : -1;
+            int low = high >= 0 ? Character.digit(name.charAt(i + 2), 16) : -1;
+            if (c == '%' && low >= 0) {
+                unescaped.append((char) (high << 4 | low));
+                i += 2;
+            } else {
+                unescaped.append(c);
+            }
+        }
+        return unescaped.toString();
+    }
+}
@@ -0,0 +1,336 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * Trame du protocole binaire négocié par la commande FRAMED :
+ *   version (octet) | type (octet) | identifiant de requête (int) | longueur (int) | contenu
+ * Une requête commence par une trame REQUEST, qui porte la commande et son en-tête au format
+ * writeUTF habituel, continue éventuellement par des trames DATA (les octets envoyés) et se
+ * termine par END. La réponse revient sous le même identifiant : des trames DATA puis END, ou
+ * ERROR avec un message si la requête a échoué. Les trames de plusieurs requêtes s'entrelacent
+ * sur la connexion : un client peut en avoir plusieurs en cours sans attendre chaque réponse.
+ *
+ * Contrôle de flux par requête (version 2) : le client n'envoie pas plus de WINDOW trames d'une
+ * requête (REQUEST comprise) au-delà des crédits reçus ; le serveur rend des crédits (trame
+ * CREDIT, un int : nombre de trames) à mesure que le gestionnaire lit la requête. Une requête
+ * lente ne retient ainsi que son propre émetteur, jamais le lecteur partagé de la connexion.
+ * Les réponses ne sont pas limitées : le client les garde en mémoire et borne lui-même le
+ * nombre d'appels en cours.
+ */
+final class Frame {
+
+    static final int VERSION = 2;
+
+    static final byte REQUEST = 1;
+    static final byte DATA = 2;
+    static final byte END = 3;
+    static final byte ERROR = 4;
+    static final byte CREDIT = 5;
+
+    static final int HEADER_SIZE = 10;
+    static final int MAX_PAYLOAD = 64 * 1024;
+    // Trames d'une requête en route ou en attente de lecture au plus, sans nouveau crédit
+    static final int WINDOW = 16;
+
+    private static final byte[] EMPTY = new byte[0];
+
+    final byte type;
+    final int requestId;
+    final byte[] payload;
+
+    private Frame(byte type, int requestId, byte[] payload) {
+        this.type = type;
+        this.requestId = requestId;
+        this.payload = payload;
+    }
+
+    static Frame read(DataInputStream in) throws IOException {
+        int version = in.readUnsignedByte();
+        if (version != VERSION) {
+            throw new IOException("version de trame non prise en charge : " + version);
+        }
+        byte type = in.readByte();
+        int requestId = in.readInt();
+        int length = in.readInt();
+        if (length < 0 || length > MAX_PAYLOAD) {
+            throw new IOException("trame invalide de " + length + " octets");
+        }
+        byte[] payload = new byte[length];
+        in.readFully(payload);
+        return new Frame(type, requestId, payload);
+    }
+
+    /**
+     * Trame complète en tête de buffer (en mode lecture), qui avance alors au-delà ; null si
+     * tous ses octets ne sont pas encore reçus (lecture non bloquante, voir SelectorFrontEnd).
+     */
+    static Frame parse(ByteBuffer buffer) throws IOException {
+        if (buffer.remaining() < HEADER_SIZE) {
+            return null;
+        }
+        int start = buffer.position();
+        int version = buffer.get(start) & 0xFF;
+        if (version != VERSION) {
+            throw new IOException("version de trame non prise en charge : " + version);
+        }
+        int length = buffer.getInt(start + 6);
+        if (length < 0 || length > MAX_PAYLOAD) {
+            throw new IOException("trame invalide de " + length + " octets");
+        }
+        if (buffer.remaining() < HEADER_SIZE + length) {
+            return null;
+        }
+        byte type = buffer.get(start + 1);
+        int requestId = buffer.getInt(start + 2);
+        byte[] payload = new byte[length];
+        buffer.position(start + HEADER_SIZE);
+        buffer.get(payload);
+        return new Frame(type, requestId, payload);
+    }
+
+    // Les écritures sont synchronisées sur out : une trame n'est jamais coupée par une autre
+    static void write(DataOutputStream out, byte type, int requestId, byte[] payload, int offset, int length) throws IOException {
+        synchronized (out) {
+            out.writeByte(VERSION);
+            out.writeByte(type);
+            out.writeInt(requestId);
+            out.writeInt(length);
+            out.write(payload, offset, length);
+            out.flush();
+        }
+    }
+
+    static void writeCredit(DataOutputStream out, int requestId, int frames) throws IOException {
+        byte[] payload = {(byte) (frames >>> 24), (byte) (frames >>> 16), (byte) (frames >>> 8), (byte) frames};
+        write(out, CREDIT, requestId, payload, 0, payload.length);
+    }
+
+    /** Message d'une trame ERROR. */
+    String errorMessage() throws IOException {
+        return new DataInputStream(new ByteArrayInputStream(payload)).readUTF();
+    }
+
+    /** Nombre de trames d'une trame CREDIT. */
+    int credit() throws IOException {
+        return new DataInputStream(new ByteArrayInputStream(payload)).readInt();
+    }
+
+    /** Rend au correspondant les crédits des trames lues (voir Input). */
+    interface Credit {
+        void grant(int frames) throws IOException;
+    }
+
+    /**
+     * Octets d'une requête ou d'une réponse, découpés en trames d'au plus MAX_PAYLOAD octets :
+     * la première du type donné à la construction, les suivantes DATA. Avec une fenêtre, chaque
+     * trame consomme un crédit et l'écriture attend que le correspondant en rende (grant).
+     */
+    static class Output extends OutputStream {
+        private final DataOutputStream out;
+        private final int requestId;
+        private byte type;
+        private final byte[] buffer = new byte[MAX_PAYLOAD];
+        private int count;
+        private int credits;  // Integer.MAX_VALUE : pas de limite
+        private String aborted;
+
+        Output(DataOutputStream out, int requestId, byte firstType) {
+            this(out, requestId, firstType, Integer.MAX_VALUE);
+        }
+
+        Output(DataOutputStream out, int requestId, byte firstType, int window) {
+            this.out = out;
+            this.requestId = requestId;
+            this.type = firstType;
+            this.credits = window;
+        }
+
+        synchronized void grant(int frames) {
+            credits = (int) Math.min(Integer.MAX_VALUE, (long) credits + frames);
+            notifyAll();
+        }
+
+        // La réponse est arrivée : le correspondant ne lit plus la requête, la suite part sans crédit
+        synchronized void release() {
+            credits = Integer.MAX_VALUE;
+            notifyAll();
+        }
+
+        // Connexion perdue : une écriture en attente de crédit échoue
+        synchronized void abort(String reason) {
+            aborted = reason;
+            notifyAll();
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (count == buffer.length) {
+                emit();
+            }
+            buffer[count++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] data, int offset, int length) throws IOException {
+            while (length > 0) {
+                if (count == buffer.length) {
+                    emit();
+                }
+                int copied = Math.min(length, buffer.length - count);
+                System.arraycopy(data, offset, buffer, count, copied);
+                count += copied;
+                offset += copied;
+                length -= copied;
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (count > 0) {
+                emit();
+            }
+        }
+
+        /** Envoie ce qui reste puis la trame END. */
+        void finish() throws IOException {
+            flush();
+            Frame.write(out, END, requestId, EMPTY, 0, 0);
+        }
+
+        /** Abandonne ce qui n'est pas encore parti et envoie une trame ERROR. */
+        void fail(String message) throws IOException {
+            count = 0;
+            ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+            new DataOutputStream(encoded).writeUTF(message == null ? "erreur inconnue" : message);
+            Frame.write(out, ERROR, requestId, encoded.toByteArray(), 0, encoded.size());
+        }
+
+        private synchronized void acquireCredit() throws IOException {
+            while (credits == 0 && aborted == null) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("attente de crédit interrompue");
+                }
+            }
+            if (aborted != null) {
+                throw new IOException(aborted);
+            }
+            if (credits != Integer.MAX_VALUE) {
+                credits--;
+            }
+        }
+
+        private void emit() throws IOException {
+            acquireCredit();
+            Frame.write(out, type, requestId, buffer, 0, count);
+            type = DATA;
+            count = 0;
+        }
+    }
+
+    /**
+     * Octets reçus pour une requête ou une réponse, dans l'ordre de leurs trames. add ne bloque
+     * jamais le lecteur de la connexion. Avec une fenêtre, le correspondant n'a pas le droit
+     * d'envoyer plus de window trames non lues ; les crédits des trames lues lui sont rendus
+     * par moitié de fenêtre.
+     */
+    static class Input extends InputStream {
+        private final Deque<byte[]> frames = new ArrayDeque<>();
+        private final int window;
+        private final Credit credit;
+        private byte[] current = EMPTY;
+        private int position;
+        private int consumed;  // trames lues dont le crédit n'a pas encore été rendu
+        private boolean ended;
+        private boolean discarded;
+        private String error;
+
+        // Réponse : ni fenêtre ni crédits
+        Input() {
+            this(Integer.MAX_VALUE, null);
+        }
+
+        Input(int window, Credit credit) {
+            this.window = window;
+            this.credit = credit;
+        }
+
+        synchronized void add(byte[] payload) throws IOException {
+            if (discarded) {
+                return;
+            }
+            if (frames.size() >= window) {
+                throw new IOException("fenêtre de " + window + " trames dépassée");
+            }
+            frames.add(payload);
+            notifyAll();
+        }
+
+        synchronized void end() {
+            ended = true;
+            notifyAll();
+        }
+
+        synchronized void fail(String message) {
+            error = message;
+            notifyAll();
+        }
+
+        // Plus personne ne lira : les trames suivantes sont ignorées sans bloquer le lecteur
+        synchronized void discard() {
+            discarded = true;
+            frames.clear();
+            notifyAll();
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] single = new byte[1];
+            return read(single, 0, 1) == -1 ? -1 : single[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] target, int offset, int length) throws IOException {
+            if (length == 0) {
+                return 0;
+            }
+            int count;
+            int granted = 0;
+            synchronized (this) {
+                while (position == current.length) {
+                    if (!frames.isEmpty()) {
+                        current = frames.poll();
+                        position = 0;
+                        if (credit != null && ++consumed >= Math.max(1, window / 2)) {
+                            granted = consumed;
+                            consumed = 0;
+                        }
+                    } else if (error != null) {
+                        throw new IOException(error);
+                    } else if (ended || discarded) {
+                        return -1;
+                    } else {
+                        try {
+                            wait();
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            throw new InterruptedIOException("lecture interrompue");
+                        }
+                    }
+                }
+                count = Math.min(length, current.length - position);
+                System.arraycopy(current, position, target, offset, count);
+                position += count;
+            }
+            // Hors du verrou : l'écriture du crédit peut attendre la connexion
+            if (granted > 0) {
+                credit.grant(granted);
+            }
+            return count;
+        }
+    }
+}
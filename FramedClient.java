@@ -0,0 +1,134 @@
+import java.io.*;
+import java.net.Socket;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Côté client d'une connexion en trames (voir Frame). Chaque appel reçoit son identifiant,
+ * envoie sa requête et lit sa réponse dans son propre flux ; un thread lit les trames et les
+ * distribue aux appels, si bien que plusieurs requêtes peuvent être en cours sur la même
+ * connexion. L'envoi d'une requête attend les crédits du serveur (voir Frame.WINDOW) ; les
+ * réponses ne sont pas bornées en mémoire : l'appelant limite le nombre d'appels en cours.
+ * Un serveur saturé refuse une requête par une erreur commençant par BUSY.
+ */
+class FramedClient implements Closeable {
+
+    private final Socket socket;
+    private final DataOutputStream out;
+    private final DataInputStream in;
+    private final Map<Integer, Call> calls = new ConcurrentHashMap<>();
+    private final AtomicInteger nextRequestId = new AtomicInteger();
+    private volatile String failure;
+
+    FramedClient(String host, int port) throws IOException {
+        socket = new Socket(host, port);
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), Frame.HEADER_SIZE + Frame.MAX_PAYLOAD));
+            in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), Frame.HEADER_SIZE + Frame.MAX_PAYLOAD));
+            out.writeUTF("FRAMED");
+            out.writeInt(Frame.VERSION);
+            out.flush();
+            String response = in.readUTF();
+            if (!response.equals("FRAMED")) {
+                throw new IOException("protocole en trames refusé par " + host + ":" + port + " : " + response);
+            }
+            int version = in.readInt();
+            if (version != Frame.VERSION) {
+                throw new IOException("version de trames " + version + " non prise en charge par ce client");
+            }
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+        Thread reader = new Thread(this::readFrames, "trames-" + host + ":" + port);
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    /** Nouvel appel : écrire la requête dans out, send(), puis lire la réponse dans in. */
+    Call call() {
+        Call call = new Call(nextRequestId.incrementAndGet());
+        calls.put(call.requestId, call);
+        String failed = failure;
+        if (failed != null) {
+            call.fail(failed);
+        }
+        return call;
+    }
+
+    private void readFrames() {
+        String reason = "connexion fermée";
+        try {
+            while (true) {
+                Frame frame = Frame.read(in);
+                Call call = calls.get(frame.requestId);
+                if (call == null) {
+                    continue;
+                }
+                switch (frame.type) {
+                    case Frame.DATA:
+                        call.reply.add(frame.payload);
+                        break;
+                    case Frame.CREDIT:
+                        call.request.grant(frame.credit());
+                        break;
+                    case Frame.END:
+                        calls.remove(frame.requestId);
+                        call.reply.end();
+                        call.request.release();
+                        break;
+                    case Frame.ERROR:
+                        calls.remove(frame.requestId);
+                        call.reply.fail(frame.errorMessage());
+                        call.request.release();
+                        break;
+                    default:
+                        throw new IOException("trame de type " + frame.type + " inattendue");
+                }
+            }
+        } catch (IOException e) {
+            reason = e.getMessage();
+        } finally {
+            failure = reason;
+            for (Call call : calls.values()) {
+                call.fail(reason);
+            }
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        socket.close();
+    }
+
+    class Call {
+        final DataOutputStream out;
+        final DataInputStream in;
+        private final int requestId;
+        private final Frame.Output request;
+        private final Frame.Input reply = new Frame.Input();
+
+        private Call(int requestId) {
+            this.requestId = requestId;
+            this.request = new Frame.Output(FramedClient.this.out, requestId, Frame.REQUEST, Frame.WINDOW);
+            this.out = new DataOutputStream(request);
+            this.in = new DataInputStream(reply);
+        }
+
+        private void fail(String reason) {
+            reply.fail(reason);
+            request.abort(reason);
+        }
+
+        /** Termine la requête ; sa réponse peut ensuite être lue dans in. */
+        void send() throws IOException {
+            out.flush();
+            request.finish();
+        }
+    }
+}
@@ -0,0 +1,189 @@
+import java.io.*;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Côté serveur d'une connexion passée au protocole en trames (commande FRAMED, voir Frame).
+ * Les trames lues sur la connexion sont remises à receive, qui ne bloque jamais : chaque
+ * requête s'exécute sur un thread du modèle d'exécution borné du serveur (ConnectionExecutor)
+ * avec le gestionnaire de commandes habituel, qui lit sa requête et écrit sa réponse comme sur
+ * une connexion ordinaire. Au-delà de MAX_REQUESTS_IN_FLIGHT requêtes en cours sur la
+ * connexion, ou si le modèle d'exécution est saturé, la requête est refusée aussitôt par une
+ * trame ERROR commençant par BUSY ; le client peut la renvoyer plus tard.
+ *
+ * Les trames sont lues soit par le thread de la connexion (serve), soit par le Selector du
+ * frontal non bloquant, qui ne mobilise alors aucun thread tant que la connexion est inactive.
+ */
+class FramedSession {
+
+    private static final int MAX_REQUESTS_IN_FLIGHT = 32;
+
+    private final DataOutputStream out;
+    private final SelectorFrontEnd.CommandHandler handler;
+    private final ConnectionExecutor executor;
+    private final Map<Integer, Frame.Input> requests = new ConcurrentHashMap<>();
+    // Requêtes admises et pas encore terminées ; onIdle s'exécute quand elles le sont toutes après close
+    private int inFlight;
+    private Runnable onIdle;
+
+    FramedSession(DataOutputStream out, SelectorFrontEnd.CommandHandler handler, ConnectionExecutor executor) {
+        this.out = out;
+        this.handler = handler;
+        this.executor = executor;
+    }
+
+    /**
+     * Répond à FRAMED (la version proposée par le client vient d'être lue) avec la version
+     * retenue ; retourne false si elle est trop ancienne pour que la connexion passe en trames.
+     */
+    static boolean accept(int clientVersion, DataOutputStream out) throws IOException {
+        int version = Math.min(clientVersion, Frame.VERSION);
+        out.writeUTF("FRAMED");
+        out.writeInt(version);
+        out.flush();
+        return version == Frame.VERSION;
+    }
+
+    // Flux des trames de réponse : une trame complète par écriture sur la connexion
+    static DataOutputStream frameOutput(OutputStream out) {
+        return new DataOutputStream(new BufferedOutputStream(out, Frame.HEADER_SIZE + Frame.MAX_PAYLOAD));
+    }
+
+    /** Sert la connexion en trames sur le thread appelant jusqu'à sa fermeture (connexion bloquante). */
+    static void serve(int clientVersion, DataInputStream in, DataOutputStream out,
+                      SelectorFrontEnd.CommandHandler handler, ConnectionExecutor executor) throws IOException {
+        if (!accept(clientVersion, out)) {
+            return;
+        }
+        FramedSession session = new FramedSession(frameOutput(out), handler, executor);
+        String reason = "connexion fermée";
+        try {
+            while (true) {
+                Frame frame;
+                try {
+                    frame = Frame.read(in);
+                } catch (EOFException e) {
+                    return;
+                }
+                session.receive(frame);
+            }
+        } catch (IOException e) {
+            reason = e.getMessage();
+            throw e;
+        } finally {
+            // La connexion n'est rendue qu'après les requêtes en cours, qui écrivent encore dessus
+            CountDownLatch idle = new CountDownLatch(1);
+            session.close(reason, idle::countDown);
+            try {
+                idle.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /** Traite une trame reçue, sans jamais attendre. */
+    void receive(Frame frame) throws IOException {
+        Frame.Input input = requests.get(frame.requestId);
+        switch (frame.type) {
+            case Frame.REQUEST:
+                if (input != null) {
+                    throw new IOException("requête " + frame.requestId + " déjà en cours");
+                }
+                admit(frame);
+                break;
+            case Frame.DATA:
+                // Trame d'une requête terminée ou refusée : ignorée
+                if (input != null) {
+                    input.add(frame.payload);
+                }
+                break;
+            case Frame.END:
+                if (input != null) {
+                    input.end();
+                }
+                break;
+            default:
+                throw new IOException("trame de type " + frame.type + " inattendue");
+        }
+    }
+
+    /**
+     * Fin de la lecture des trames : les requêtes en cours échouent en lisant la suite de leur
+     * requête, puis then s'exécute quand la dernière est terminée (aussitôt s'il n'y en a pas).
+     */
+    void close(String reason, Runnable then) {
+        for (Frame.Input input : requests.values()) {
+            input.fail(reason);
+        }
+        synchronized (this) {
+            if (inFlight > 0) {
+                onIdle = then;
+                return;
+            }
+        }
+        then.run();
+    }
+
+    private void admit(Frame frame) throws IOException {
+        int requestId = frame.requestId;
+        synchronized (this) {
+            if (inFlight >= MAX_REQUESTS_IN_FLIGHT) {
+                reject(requestId, MAX_REQUESTS_IN_FLIGHT + " requêtes déjà en cours sur la connexion");
+                return;
+            }
+            inFlight++;
+        }
+        Frame.Input input = new Frame.Input(Frame.WINDOW, frames -> Frame.writeCredit(out, requestId, frames));
+        input.add(frame.payload);
+        requests.put(requestId, input);
+        if (!executor.offer(() -> execute(requestId, input))) {
+            requests.remove(requestId);
+            finished();
+            reject(requestId, "serveur saturé");
+        }
+    }
+
+    private void reject(int requestId, String reason) throws IOException {
+        new Frame.Output(out, requestId, Frame.DATA).fail("BUSY : " + reason);
+    }
+
+    private void finished() {
+        Runnable then;
+        synchronized (this) {
+            if (--inFlight > 0 || onIdle == null) {
+                return;
+            }
+            then = onIdle;
+            onIdle = null;
+        }
+        then.run();
+    }
+
+    private void execute(int requestId, Frame.Input input) {
+        Frame.Output output = new Frame.Output(out, requestId, Frame.DATA);
+        try {
+            DataInputStream request = new DataInputStream(input);
+            String operation = request.readUTF();
+            if (operation.equals("FRAMED")) {
+                throw new IOException("connexion déjà en trames");
+            }
+            handler.handle(operation, request, new DataOutputStream(output));
+            // Avant END : le client cesse alors d'attendre des crédits et envoie sans limite
+            // ce qui reste de sa requête, que plus personne ne lira
+            input.discard();
+            output.finish();
+        } catch (IOException | RuntimeException e) {
+            input.discard();
+            try {
+                output.fail(e.getMessage());
+            } catch (IOException | RuntimeException ignored) {
+                // La connexion est fermée : la lecture des trames s'arrête de son côté
+            }
+        } finally {
+            requests.remove(requestId);
+            finished();
+        }
+    }
+}
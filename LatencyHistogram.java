@@ -0,0 +1,116 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Histogramme de durées (en nanosecondes) à précision relative fixe, sur le principe de
+ * HdrHistogram : les valeurs sont rangées par puissance de deux, chacune découpée en 64
+ * intervalles égaux, ce qui garde une erreur inférieure à 1,6 % de 0 à Long.MAX_VALUE avec
+ * moins de 4000 compteurs. L'enregistrement ne prend aucun verrou : plusieurs threads
+ * peuvent enregistrer en même temps qu'un autre lit les centiles.
+ */
+class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 7;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;  // valeurs exactes en dessous
+    private static final int HALF = SUB_BUCKETS / 2;  // intervalles par puissance de deux au-delà
+    private static final int BUCKETS = (63 - (SUB_BUCKET_BITS - 1)) * HALF + SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder total = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    void record(long nanos) {
+        long value = Math.max(0, nanos);
+        counts.incrementAndGet(index(value));
+        total.increment();
+        sum.add(value);
+        if (value > max.get()) {
+            max.accumulateAndGet(value, Math::max);
+        }
+    }
+
+    /** Enregistre la durée écoulée depuis startNanos (valeur de System.nanoTime()). */
+    void recordSince(long startNanos) {
+        record(System.nanoTime() - startNanos);
+    }
+
+    /** Ajoute les valeurs d'un autre histogramme à celui-ci. */
+    void add(LatencyHistogram other) {
+        for (int i = 0; i < BUCKETS; i++) {
+            long count = other.counts.get(i);
+            if (count != 0) {
+                counts.addAndGet(i, count);
+            }
+        }
+        total.add(other.count());
+        sum.add(other.sum());
+        max.accumulateAndGet(other.max(), Math::max);
+    }
+
+    long count() {
+        return total.sum();
+    }
+
+    long max() {
+        return max.get();
+    }
+
+    /** Somme des valeurs enregistrées, en nanosecondes. */
+    long sum() {
+        return sum.sum();
+    }
+
+    double mean() {
+        long count = count();
+        return count == 0 ? 0 : (double) sum() / count;
+    }
+
+    /**
+     * Valeur sous laquelle se trouvent percentile % des valeurs enregistrées (borne haute de
+     * leur intervalle, jamais au-delà du maximum) ; 0 si l'histogramme est vide.
+     */
+    long percentile(double percentile) {
+        long count = count();
+        if (count == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100.0 * count));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= rank) {
+                return Math.min(highestValueAt(i), max());
+            }
+        }
+        return max();
+    }
+
+    /** Moyenne et centiles en millisecondes, pour les journaux et les rapports. */
+    String describe() {
+        return String.format("n=%d moy=%.2f p50=%.2f p90=%.2f p99=%.2f p99.9=%.2f max=%.2f ms",
+                count(), mean() / 1e6, percentile(50) / 1e6, percentile(90) / 1e6,
+                percentile(99) / 1e6, percentile(99.9) / 1e6, max() / 1e6);
+    }
+
+    private static int index(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - (SUB_BUCKET_BITS - 1);
+        return shift * HALF + (int) (value >>> shift);
+    }
+
+    private static long lowestValueAt(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int shift = index / HALF - 1;
+        return (long) (index % HALF + HALF) << shift;
+    }
+
+    private static long highestValueAt(int index) {
+        return index + 1 < BUCKETS ? lowestValueAt(index + 1) - 1 : Long.MAX_VALUE;
+    }
+}
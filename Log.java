@@ -0,0 +1,182 @@
+import java.io.PrintStream;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Journal des serveurs, écrit par un thread dédié pour que les threads de transfert ne se
+ * bloquent jamais sur la sortie standard. Chaque ligne porte l'heure, le niveau, le thread
+ * appelant, le message et des champs clé=valeur :
+ *   2026-10-18 14:03:12.418 INFO  [principal-connexion-3] Partie envoyée partie=a.bin.part1 serveur=127.0.0.1:5101
+ * Le niveau minimal se choisit avec -Dtransfert.log.level (DEBUG, INFO par défaut, WARN).
+ * La file est bornée (-Dtransfert.log.queue, 16384 lignes) : quand elle est pleine les lignes
+ * sont abandonnées plutôt que de ralentir l'appelant, et leur nombre est signalé dans le journal.
+ */
+final class Log {
+
+    enum Level { DEBUG, INFO, WARN }
+
+    private static final Level THRESHOLD = parseLevel(System.getProperty("transfert.log.level", "INFO"));
+    private static final BlockingQueue<Entry> queue =
+            new ArrayBlockingQueue<>(Integer.getInteger("transfert.log.queue", 16384));
+    private static final AtomicLong dropped = new AtomicLong();
+    private static final DateTimeFormatter TIME =
+            DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss.SSS").withZone(ZoneId.systemDefault());
+
+    static {
+        Thread writer = new Thread(Log::drain, "journal");
+        writer.setDaemon(true);
+        writer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(Log::flush, "journal-arret"));
+    }
+
+    /** Une ligne en attente : le formatage est laissé au thread d'écriture. */
+    private static final class Entry {
+        final long time = System.currentTimeMillis();
+        final String thread = Thread.currentThread().getName();
+        final Level level;
+        final String message;
+        final Object[] fields;
+
+        Entry(Level level, String message, Object[] fields) {
+            this.level = level;
+            this.message = message;
+            this.fields = fields;
+        }
+    }
+
+    private Log() {
+    }
+
+    static boolean enabled(Level level) {
+        return level.compareTo(THRESHOLD) >= 0;
+    }
+
+    static void debug(String message, Object... fields) {
+        log(Level.DEBUG, message, fields);
+    }
+
+    static void info(String message, Object... fields) {
+        log(Level.INFO, message, fields);
+    }
+
+    static void warn(String message, Object... fields) {
+        log(Level.WARN, message, fields);
+    }
+
+    private static void log(Level level, String message, Object[] fields) {
+        if (enabled(level) && !queue.offer(new Entry(level, message, fields))) {
+            dropped.incrementAndGet();
+        }
+    }
+
+    /** Nombre de lignes abandonnées parce que la file était pleine. */
+    static long dropped() {
+        return dropped.get();
+    }
+
+    private static void drain() {
+        List<Entry> batch = new ArrayList<>();
+        long reportedDrops = 0;
+        while (true) {
+            try {
+                batch.add(queue.take());
+            } catch (InterruptedException e) {
+                return;
+            }
+            queue.drainTo(batch);
+            long drops = dropped.get();
+            if (drops != reportedDrops) {
+                batch.add(new Entry(Level.WARN, "Lignes de journal abandonnées (file pleine)",
+                        new Object[] {"total", drops}));
+                reportedDrops = drops;
+            }
+            write(batch);
+            batch.clear();
+        }
+    }
+
+    /** Écrit ce qui reste dans la file, à l'arrêt de la JVM. */
+    private static void flush() {
+        try {
+            // laisse d'abord au thread d'écriture le temps de finir le lot qu'il a retiré
+            TimeUnit.MILLISECONDS.sleep(50);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        List<Entry> batch = new ArrayList<>();
+        queue.drainTo(batch);
+        write(batch);
+    }
+
+    private static void write(List<Entry> batch) {
+        if (batch.isEmpty()) {
+            return;
+        }
+        StringBuilder text = new StringBuilder(batch.size() * 128);
+        for (Entry entry : batch) {
+            format(entry, text);
+        }
+        // System.out est relu à chaque lot : il peut avoir été redirigé après le démarrage
+        PrintStream out = System.out;
+        out.print(text);
+        out.flush();
+    }
+
+    private static void format(Entry entry, StringBuilder text) {
+        TIME.formatTo(Instant.ofEpochMilli(entry.time), text);
+        text.append(' ').append(entry.level);
+        if (entry.level != Level.DEBUG) {
+            text.append(' ');
+        }
+        text.append(" [").append(entry.thread).append("] ").append(entry.message);
+        Object[] fields = entry.fields;
+        for (int i = 0; i + 1 < fields.length; i += 2) {
+            if (fields[i + 1] == null) {
+                continue;  // champ sans valeur : omis
+            }
+            text.append(' ').append(fields[i]).append('=');
+            appendValue(String.valueOf(fields[i + 1]), text);
+        }
+        text.append(System.lineSeparator());
+    }
+
+    /** Les valeurs contenant des espaces, des guillemets ou des '=' sont mises entre guillemets. */
+    private static void appendValue(String value, StringBuilder text) {
+        boolean quote = value.isEmpty();
+        for (int i = 0; i < value.length() && !quote; i++) {
+            char c = value.charAt(i);
+            quote = c <= ' ' || c == '"' || c == '=';
+        }
+        if (!quote) {
+            text.append(value);
+            return;
+        }
+        text.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                text.append('\\').append(c);
+            } else if (c == '\n' || c == '\r') {
+                text.append(' ');
+            } else {
+                text.append(c);
+            }
+        }
+        text.append('"');
+    }
+
+    private static Level parseLevel(String name) {
+        try {
+            return Level.valueOf(name.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            return Level.INFO;
+        }
+    }
+}
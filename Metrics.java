@@ -0,0 +1,243 @@
+import com.sun.net.httpserver.HttpServer;
+
+import javax.management.*;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Métriques d'un serveur : compteurs (LongAdder), histogrammes de durées (LatencyHistogram)
+ * et jauges lues à la demande. Les noms suivent la convention Prometheus, avec au plus une
+ * étiquette : transfert_node_bytes_sent_total{node="127.0.0.1:5101"}. L'enregistrement ne prend
+ * aucun verrou ; les appelants fréquents gardent la référence du compteur ou de l'histogramme
+ * plutôt que de le rechercher à chaque bloc.
+ *
+ * publish() les expose de deux façons :
+ *   - en texte sur http://127.0.0.1:<port>/metrics quand -Dtransfert.metrics.port est donné
+ *     (désactivé par défaut, l'adresse de bouclage seulement) ;
+ *   - par JMX, sous transfert:type=Metrics,name=<serveur> (jconsole, jcmd...), les histogrammes
+ *     y apparaissant sous forme de centiles en millisecondes.
+ */
+class Metrics {
+
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+    private static final String[] HISTOGRAM_ATTRIBUTES = {".count", ".p50_ms", ".p99_ms", ".p999_ms", ".max_ms"};
+
+    private final ConcurrentHashMap<String, LongAdder> counters = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, LatencyHistogram> histograms = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, LongSupplier> gauges = new ConcurrentHashMap<>();
+    private HttpServer http;
+
+    LongAdder counter(String name) {
+        return counters.computeIfAbsent(name, key -> new LongAdder());
+    }
+
+    LongAdder counter(String name, String label, Object value) {
+        return counter(key(name, label, value));
+    }
+
+    LatencyHistogram histogram(String name) {
+        return histograms.computeIfAbsent(name, key -> new LatencyHistogram());
+    }
+
+    LatencyHistogram histogram(String name, String label, Object value) {
+        return histogram(key(name, label, value));
+    }
+
+    void gauge(String name, LongSupplier value) {
+        gauges.put(name, value);
+    }
+
+    void gauge(String name, String label, Object value, LongSupplier supplier) {
+        gauge(key(name, label, value), supplier);
+    }
+
+    /** Retire une jauge, par exemple celle d'un serveur de stockage retiré de la configuration. */
+    void remove(String name, String label, Object value) {
+        gauges.remove(key(name, label, value));
+    }
+
+    private static String key(String name, String label, Object value) {
+        String text = String.valueOf(value).replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+        return name + "{" + label + "=\"" + text + "\"}";
+    }
+
+    /** Toutes les métriques au format texte de Prometheus, les durées en secondes. */
+    String text() {
+        StringBuilder text = new StringBuilder(4096);
+        Set<String> typed = new HashSet<>();
+        for (Map.Entry<String, LongAdder> counter : new TreeMap<>(counters).entrySet()) {
+            type(text, typed, counter.getKey(), "counter");
+            text.append(counter.getKey()).append(' ').append(counter.getValue().sum()).append('\n');
+        }
+        for (Map.Entry<String, LongSupplier> gauge : new TreeMap<>(gauges).entrySet()) {
+            type(text, typed, gauge.getKey(), "gauge");
+            text.append(gauge.getKey()).append(' ').append(read(gauge.getValue())).append('\n');
+        }
+        for (Map.Entry<String, LatencyHistogram> entry : new TreeMap<>(histograms).entrySet()) {
+            String key = entry.getKey();
+            LatencyHistogram histogram = entry.getValue();
+            type(text, typed, key, "summary");
+            String name = baseName(key);
+            String labels = key.length() > name.length() ? key.substring(name.length() + 1, key.length() - 1) + "," : "";
+            for (double quantile : QUANTILES) {
+                text.append(name).append('{').append(labels).append("quantile=\"").append(quantile).append("\"} ")
+                        .append(seconds(histogram.percentile(quantile * 100))).append('\n');
+            }
+            String suffixLabels = labels.isEmpty() ? "" : "{" + labels.substring(0, labels.length() - 1) + "}";
+            text.append(name).append("_sum").append(suffixLabels).append(' ').append(seconds(histogram.sum())).append('\n');
+            text.append(name).append("_count").append(suffixLabels).append(' ').append(histogram.count()).append('\n');
+        }
+        return text.toString();
+    }
+
+    private static void type(StringBuilder text, Set<String> typed, String key, String type) {
+        String name = baseName(key);
+        if (typed.add(name)) {
+            text.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+        }
+    }
+
+    private static String baseName(String key) {
+        int brace = key.indexOf('{');
+        return brace < 0 ? key : key.substring(0, brace);
+    }
+
+    private static String seconds(long nanos) {
+        return Double.toString(nanos / 1e9);
+    }
+
+    private static long read(LongSupplier gauge) {
+        try {
+            return gauge.getAsLong();
+        } catch (RuntimeException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Enregistre les métriques auprès de JMX sous le nom du serveur et démarre l'accès HTTP
+     * s'il est demandé. Peut être appelé plusieurs fois (plusieurs serveurs de stockage dans
+     * une même JVM) : l'accès HTTP n'est démarré qu'une fois.
+     */
+    synchronized void publish(String serverName) {
+        try {
+            ObjectName objectName = new ObjectName("transfert:type=Metrics,name=" + ObjectName.quote(serverName));
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            if (!server.isRegistered(objectName)) {
+                server.registerMBean(new MetricsMBean(), objectName);
+            }
+        } catch (JMException e) {
+            Log.warn("Enregistrement JMX des métriques impossible", "serveur", serverName, "erreur", e.getMessage());
+        }
+
+        int port = Integer.getInteger("transfert.metrics.port", 0);
+        if (port <= 0 || http != null) {
+            return;
+        }
+        try {
+            http = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+            http.createContext("/metrics", exchange -> {
+                byte[] body = text().getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+                exchange.sendResponseHeaders(200, body.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(body);
+                }
+            });
+            http.setExecutor(Executors.newSingleThreadExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "metriques-http");
+                thread.setDaemon(true);
+                return thread;
+            }));
+            http.start();
+            Log.info("Métriques disponibles", "url", "http://127.0.0.1:" + port + "/metrics");
+        } catch (IOException e) {
+            http = null;
+            Log.warn("Accès HTTP aux métriques impossible", "port", port, "erreur", e.getMessage());
+        }
+    }
+
+    /** Vue JMX : un attribut par compteur et par jauge, cinq par histogramme. */
+    private final class MetricsMBean implements DynamicMBean {
+
+        @Override
+        public Object getAttribute(String attribute) throws AttributeNotFoundException {
+            LongAdder counter = counters.get(attribute);
+            if (counter != null) {
+                return counter.sum();
+            }
+            LongSupplier gauge = gauges.get(attribute);
+            if (gauge != null) {
+                return read(gauge);
+            }
+            int dot = attribute.lastIndexOf('.');
+            LatencyHistogram histogram = dot < 0 ? null : histograms.get(attribute.substring(0, dot));
+            if (histogram != null) {
+                switch (attribute.substring(dot)) {
+                    case ".count": return (double) histogram.count();
+                    case ".p50_ms": return histogram.percentile(50) / 1e6;
+                    case ".p99_ms": return histogram.percentile(99) / 1e6;
+                    case ".p999_ms": return histogram.percentile(99.9) / 1e6;
+                    case ".max_ms": return histogram.max() / 1e6;
+                    default: break;
+                }
+            }
+            throw new AttributeNotFoundException(attribute);
+        }
+
+        @Override
+        public AttributeList getAttributes(String[] attributes) {
+            AttributeList list = new AttributeList();
+            for (String attribute : attributes) {
+                try {
+                    list.add(new Attribute(attribute, getAttribute(attribute)));
+                } catch (AttributeNotFoundException e) {
+                    // attribut disparu ou inconnu : ignoré, comme le prévoit l'interface
+                }
+            }
+            return list;
+        }
+
+        @Override
+        public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+            throw new AttributeNotFoundException("Les métriques sont en lecture seule : " + attribute.getName());
+        }
+
+        @Override
+        public AttributeList setAttributes(AttributeList attributes) {
+            return new AttributeList();
+        }
+
+        @Override
+        public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+            throw new ReflectionException(new NoSuchMethodException(actionName));
+        }
+
+        @Override
+        public MBeanInfo getMBeanInfo() {
+            List<MBeanAttributeInfo> attributes = new ArrayList<>();
+            for (String name : new TreeSet<>(counters.keySet())) {
+                attributes.add(new MBeanAttributeInfo(name, "long", "compteur", true, false, false));
+            }
+            for (String name : new TreeSet<>(gauges.keySet())) {
+                attributes.add(new MBeanAttributeInfo(name, "long", "jauge", true, false, false));
+            }
+            for (String name : new TreeSet<>(histograms.keySet())) {
+                for (String suffix : HISTOGRAM_ATTRIBUTES) {
+                    attributes.add(new MBeanAttributeInfo(name + suffix, "double", "durée", true, false, false));
+                }
+            }
+            return new MBeanInfo(Metrics.class.getName(), "Métriques du serveur",
+                    attributes.toArray(new MBeanAttributeInfo[0]), null, null, null);
+        }
+    }
+}
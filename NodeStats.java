@@ -0,0 +1,71 @@
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Latences observées vers chaque serveur de stockage, pour lire chaque partie depuis la copie
+ * la plus rapide. La latence d'un serveur est la moyenne mobile exponentielle du délai entre
+ * la demande d'une partie et la réception de son en-tête ; un serveur qui vient d'échouer
+ * passe après les autres pendant FAILURE_PENALTY_MS.
+ */
+class NodeStats {
+
+    private static final double SMOOTHING = 0.2;
+    private static final long FAILURE_PENALTY_MS = 30_000;
+
+    private static class Stats {
+        double latencyNanos = -1;  // -1 tant qu'aucune mesure n'a été faite
+        long lastFailure;
+    }
+
+    private final Map<String, Stats> stats = new ConcurrentHashMap<>();
+
+    void recordLatency(String server, long nanos) {
+        Stats s = stats.computeIfAbsent(server, k -> new Stats());
+        synchronized (s) {
+            s.latencyNanos = s.latencyNanos < 0 ? nanos : s.latencyNanos + SMOOTHING * (nanos - s.latencyNanos);
+        }
+    }
+
+    void recordFailure(String server) {
+        Stats s = stats.computeIfAbsent(server, k -> new Stats());
+        synchronized (s) {
+            s.lastFailure = System.currentTimeMillis();
+        }
+    }
+
+    /** Latence moyenne en millisecondes, ou -1 si le serveur n'a pas encore été mesuré. */
+    double latencyMillis(String server) {
+        Stats s = stats.get(server);
+        if (s == null) {
+            return -1;
+        }
+        synchronized (s) {
+            return s.latencyNanos < 0 ? -1 : s.latencyNanos / 1e6;
+        }
+    }
+
+    /**
+     * Trie les serveurs du plus rapide au plus lent. Un serveur jamais mesuré passe en premier
+     * afin d'être évalué ; les serveurs en échec récent passent en dernier.
+     */
+    List<String> rank(List<String> servers) {
+        long now = System.currentTimeMillis();
+        List<String> ranked = new ArrayList<>(servers);
+        Map<String, double[]> keys = new HashMap<>();
+        for (String server : servers) {
+            Stats s = stats.get(server);
+            double failing = 0;
+            double latency = 0;
+            if (s != null) {
+                synchronized (s) {
+                    failing = now - s.lastFailure < FAILURE_PENALTY_MS ? 1 : 0;
+                    latency = Math.max(0, s.latencyNanos);
+                }
+            }
+            keys.put(server, new double[] { failing, latency });
+        }
+        ranked.sort(Comparator.<String>comparingDouble(server -> keys.get(server)[0])
+                .thenComparingDouble(server -> keys.get(server)[1]));
+        return ranked;
+    }
+}
@@ -0,0 +1,188 @@
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cache en mémoire du contenu des parties lues par le serveur principal, pour que les fichiers
+ * demandés souvent soient servis sans solliciter les serveurs de stockage. Taille totale fixée
+ * par -Dtransfert.cache.bytes (64 Mo par défaut, 0 pour désactiver).
+ *
+ * L'éviction est un LRU segmenté : une partie entre dans le segment d'essai et ne passe dans le
+ * segment protégé (80 % du cache) qu'à sa deuxième lecture. La lecture unique d'un gros fichier
+ * ne remplace donc que le segment d'essai, sans chasser les parties lues régulièrement ; quand
+ * le segment protégé déborde, ses parties les plus anciennes retournent à l'essai.
+ *
+ * Les noms de parties sont uniques par envoi : une partie n'est jamais modifiée, elle est retirée
+ * du cache quand le catalogue la libère (suppression ou remplacement du fichier).
+ *
+ * Seules les lectures complètes remplissent le cache. Une lecture partielle d'une partie absente
+ * est notée (recordMiss) : à la deuxième, le serveur principal lit la partie entière pour l'y garder.
+ */
+class PartCache {
+
+    private static final int MAX_RECENT_MISSES = 4096;
+
+    private final long capacity;
+    private final long protectedCapacity;
+    // Ordre d'accès : la première entrée est la moins récemment lue
+    private final LinkedHashMap<String, byte[]> probation = new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashMap<String, byte[]> protectedSegment = new LinkedHashMap<>(16, 0.75f, true);
+    // Parties demandées récemment sans être dans le cache (noms seulement)
+    private final LinkedHashMap<String, Boolean> recentMisses = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+            return size() > MAX_RECENT_MISSES;
+        }
+    };
+    private long probationBytes;
+    private long protectedBytes;
+    private long hits;
+    private long misses;
+    private long evictions;
+    private long invalidations;
+
+    PartCache(long capacity) {
+        this.capacity = Math.max(0, capacity);
+        this.protectedCapacity = this.capacity * 4 / 5;
+    }
+
+    static PartCache fromSystemProperties() {
+        return new PartCache(Long.getLong("transfert.cache.bytes", 64L * 1024 * 1024));
+    }
+
+    /** Une partie de cette taille peut-elle entrer dans le cache ? (elle doit tenir dans le segment d'essai) */
+    boolean admits(long size) {
+        return size >= 0 && size <= capacity - protectedCapacity;
+    }
+
+    /** Contenu de la partie, ou null s'il n'est pas dans le cache ; la partie lue devient la plus récente. */
+    synchronized byte[] get(String partName) {
+        if (capacity == 0) {
+            return null;
+        }
+        byte[] data = protectedSegment.get(partName);
+        if (data != null) {
+            hits++;
+            return data;
+        }
+        data = probation.remove(partName);
+        if (data == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        probationBytes -= data.length;
+        protectedSegment.put(partName, data);
+        protectedBytes += data.length;
+        // Le segment protégé rend ses parties les plus anciennes au segment d'essai
+        Iterator<Map.Entry<String, byte[]>> oldest = protectedSegment.entrySet().iterator();
+        while (protectedBytes > protectedCapacity && oldest.hasNext()) {
+            Map.Entry<String, byte[]> demoted = oldest.next();
+            oldest.remove();
+            protectedBytes -= demoted.getValue().length;
+            probation.put(demoted.getKey(), demoted.getValue());
+            probationBytes += demoted.getValue().length;
+        }
+        evict();
+        return data;
+    }
+
+    /** Note une lecture partielle d'une partie absente ; retourne true si elle avait déjà été demandée récemment. */
+    synchronized boolean recordMiss(String partName) {
+        return capacity > 0 && recentMisses.put(partName, Boolean.TRUE) != null;
+    }
+
+    /** Ajoute le contenu complet et vérifié d'une partie au segment d'essai. */
+    synchronized void put(String partName, byte[] data) {
+        if (!admits(data.length) || probation.containsKey(partName) || protectedSegment.containsKey(partName)) {
+            return;
+        }
+        recentMisses.remove(partName);
+        probation.put(partName, data);
+        probationBytes += data.length;
+        evict();
+    }
+
+    synchronized void invalidate(String partName) {
+        byte[] data = probation.remove(partName);
+        if (data != null) {
+            probationBytes -= data.length;
+        } else if ((data = protectedSegment.remove(partName)) != null) {
+            protectedBytes -= data.length;
+        }
+        if (data != null) {
+            invalidations++;
+        }
+    }
+
+    // Les parties en essai partent d'abord, les moins récemment lues en premier
+    private void evict() {
+        evictOldest(probation, true);
+        evictOldest(protectedSegment, false);
+    }
+
+    private void evictOldest(LinkedHashMap<String, byte[]> segment, boolean inProbation) {
+        Iterator<byte[]> oldest = segment.values().iterator();
+        while (probationBytes + protectedBytes > capacity && oldest.hasNext()) {
+            int length = oldest.next().length;
+            oldest.remove();
+            if (inProbation) {
+                probationBytes -= length;
+            } else {
+                protectedBytes -= length;
+            }
+            evictions++;
+        }
+    }
+
+    void registerMetrics(Metrics metrics) {
+        metrics.gauge("transfert_cache_bytes", () -> {
+            synchronized (this) {
+                return probationBytes + protectedBytes;
+            }
+        });
+        metrics.gauge("transfert_cache_hits_total", () -> {
+            synchronized (this) {
+                return hits;
+            }
+        });
+        metrics.gauge("transfert_cache_misses_total", () -> {
+            synchronized (this) {
+                return misses;
+            }
+        });
+        metrics.gauge("transfert_cache_evictions_total", () -> {
+            synchronized (this) {
+                return evictions;
+            }
+        });
+    }
+
+    synchronized String describe() {
+        long lookups = hits + misses;
+        return "parties=" + (probation.size() + protectedSegment.size())
+                + " octets=" + (probationBytes + protectedBytes) + "/" + capacity
+                + " (protégés=" + protectedBytes + ")"
+                + " succès=" + hits + " échecs=" + misses
+                + (lookups > 0 ? String.format(" (%.1f %%)", 100.0 * hits / lookups) : "")
+                + " évictions=" + evictions + " invalidations=" + invalidations;
+    }
+
+    /** Affiche périodiquement l'état du cache (-Dtransfert.stats.seconds, 0 pour désactiver). */
+    void startReporting() {
+        int seconds = Integer.getInteger("transfert.stats.seconds", 60);
+        if (seconds <= 0 || capacity == 0) {
+            return;
+        }
+        ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "cache-parties-statistiques");
+            thread.setDaemon(true);
+            return thread;
+        });
+        reporter.scheduleAtFixedRate(() -> Log.info("Cache des parties : " + describe()),
+                seconds, seconds, TimeUnit.SECONDS);
+    }
+}
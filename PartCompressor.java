@@ -0,0 +1,87 @@
+import java.util.zip.Deflater;
+
+/**
+ * Compression Deflate des parties à l'envoi (transfert.compression=deflate), avec ce qu'elle a
+ * coûté et rapporté pour un envoi. Un échantillon du début de chaque partie est compressé
+ * d'abord : un contenu déjà compressé (PNG, archives, vidéos) y gagne trop peu et part tel quel
+ * sans payer la compression entière. Une partie n'est gardée compressée que si elle y gagne au
+ * moins 1 - MAX_RATIO ; la compression s'arrête dès que la sortie dépasse cette limite.
+ * Un compresseur sert un seul envoi à la fois.
+ */
+class PartCompressor {
+
+    private static final int PROBE_SIZE = 64 * 1024;
+    private static final int MIN_SIZE = 4 * 1024;
+    private static final double MAX_RATIO = 0.9;
+
+    private final Deflater deflater;
+    private byte[] output = new byte[0];
+
+    private int compressedParts;
+    private int skippedParts;
+    private long inputBytes;
+    private long storedBytes;
+    private long nanos;
+
+    PartCompressor(int level) {
+        this.deflater = new Deflater(level);
+    }
+
+    /**
+     * Compresse data[0, length) ; retourne la taille compressée, les octets étant dans
+     * output(), ou -1 si la partie doit être stockée telle quelle.
+     */
+    int compress(byte[] data, int length) {
+        long start = System.nanoTime();
+        int compressed = -1;
+        if (length >= MIN_SIZE) {
+            int limit = (int) (length * MAX_RATIO);
+            int sample = Math.min(PROBE_SIZE, length);
+            if (sample == length || deflate(data, sample, (int) (sample * MAX_RATIO)) >= 0) {
+                compressed = deflate(data, length, limit);
+            }
+        }
+        nanos += System.nanoTime() - start;
+        inputBytes += length;
+        if (compressed < 0) {
+            skippedParts++;
+            storedBytes += length;
+        } else {
+            compressedParts++;
+            storedBytes += compressed;
+        }
+        return compressed;
+    }
+
+    byte[] output() {
+        return output;
+    }
+
+    // Taille compressée de data[0, length), ou -1 si elle dépasse limit
+    private int deflate(byte[] data, int length, int limit) {
+        if (output.length < limit) {
+            output = new byte[limit];
+        }
+        deflater.reset();
+        deflater.setInput(data, 0, length);
+        deflater.finish();
+        int produced = 0;
+        while (!deflater.finished() && produced < limit) {
+            produced += deflater.deflate(output, produced, limit - produced);
+        }
+        return deflater.finished() ? produced : -1;
+    }
+
+    long nanos() {
+        return nanos;
+    }
+
+    String describe() {
+        return String.format("compression : %d parties sur %d, %d → %d octets en %d ms",
+                compressedParts, compressedParts + skippedParts, inputBytes, storedBytes, nanos / 1_000_000);
+    }
+
+    void end() {
+        deflater.end();
+    }
+}
@@ -0,0 +1,71 @@
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.zip.CRC32C;
+
+/**
+ * Sommes de contrôle d'une partie, calculées au fil de la copie de ses octets : CRC32C
+ * toujours, SHA-256 en plus avec -Dtransfert.checksum.sha256=true (plus lent, mais une
+ * modification volontaire ne peut pas la conserver). Elles accompagnent la partie dans le
+ * catalogue et dans le fichier .sum des serveurs de stockage, et sont vérifiées à chaque
+ * relecture complète.
+ */
+class PartDigest {
+
+    static final boolean SHA256 = Boolean.getBoolean("transfert.checksum.sha256");
+
+    private final CRC32C crc = new CRC32C();
+    private final MessageDigest sha256;  // null sans SHA-256
+    private String sha256Hex;
+
+    PartDigest() {
+        this(SHA256);
+    }
+
+    PartDigest(boolean withSha256) {
+        try {
+            this.sha256 = withSha256 ? MessageDigest.getInstance("SHA-256") : null;
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    void update(byte[] data, int offset, int length) {
+        crc.update(data, offset, length);
+        if (sha256 != null) {
+            sha256.update(data, offset, length);
+        }
+    }
+
+    // Octets de position à limit ; la position du tampon n'est pas modifiée
+    void update(ByteBuffer buffer) {
+        crc.update(buffer.duplicate());
+        if (sha256 != null) {
+            sha256.update(buffer.duplicate());
+        }
+    }
+
+    long crc32c() {
+        return crc.getValue();
+    }
+
+    /** SHA-256 en hexadécimal, null si elle n'est pas calculée ; à lire une fois toutes les mises à jour faites. */
+    String sha256() {
+        if (sha256 != null && sha256Hex == null) {
+            sha256Hex = HexFormat.of().formatHex(sha256.digest());
+        }
+        return sha256Hex;
+    }
+
+    /** Message d'erreur si les sommes ne correspondent pas à celles attendues (-1 ou null : inconnue), sinon null. */
+    String mismatch(long expectedCrc32c, String expectedSha256) {
+        if (expectedCrc32c >= 0 && expectedCrc32c != crc32c()) {
+            return "CRC32C " + Long.toHexString(crc32c()) + " au lieu de " + Long.toHexString(expectedCrc32c);
+        }
+        if (expectedSha256 != null && sha256 != null && !expectedSha256.equalsIgnoreCase(sha256())) {
+            return "SHA-256 différente de celle enregistrée";
+        }
+        return null;
+    }
+}
@@ -0,0 +1,288 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
+
+/**
+ * Vérification en tâche de fond des parties d'un serveur de stockage. Chaque partie est relue
+ * à un débit limité (transfert.scrub.bytesPerSecond) et comparée aux sommes de son fichier
+ * .sum, écrit à la réception ; une partie qui ne correspond plus est mise de côté (renommée en
+ * .corrupt), si bien que le serveur répond qu'il ne l'a pas et que le serveur principal la lit
+ * sur une autre copie. Une partie reçue avant l'existence des fichiers .sum en obtient un.
+ * Les passes se suivent à transfert.scrub.intervalSeconds d'intervalle. verify fait la même
+ * comparaison, sans limite de débit, avant qu'un client lise une partie directement ; une partie
+ * trouvée intacte n'est relue qu'après avoir changé (taille ou date de modification).
+ */
+class PartScrubber implements Runnable {
+
+    static final String SUM_SUFFIX = ".sum";
+    static final String CORRUPT_SUFFIX = ".corrupt";
+    private static final String TEMPORARY_SUFFIX = ".tmp";
+    private static final int READ_SIZE = 256 * 1024;
+
+    // Parties en cours d'écriture, que la vérification laisse de côté
+    private static final Set<String> writing = ConcurrentHashMap.newKeySet();
+    // Parties trouvées intactes, par chemin, avec la taille et la date de modification relues (voir stamp)
+    private static final Map<String, String> verified = new ConcurrentHashMap<>();
+
+    private final File storageDir;
+    private final long bytesPerSecond;
+    private final long intervalMs;
+
+    PartScrubber(File storageDir, long bytesPerSecond, long intervalMs) {
+        this.storageDir = storageDir;
+        this.bytesPerSecond = bytesPerSecond;
+        this.intervalMs = intervalMs;
+    }
+
+    /** Vérification à partir des propriétés système ; null si elle est désactivée (débit 0). */
+    static PartScrubber fromSystemProperties(File storageDir) {
+        long bytesPerSecond = Long.getLong("transfert.scrub.bytesPerSecond", 8L * 1024 * 1024);
+        long intervalMs = Long.getLong("transfert.scrub.intervalSeconds", 3600) * 1000;
+        return bytesPerSecond > 0 ? new PartScrubber(storageDir, bytesPerSecond, intervalMs) : null;
+    }
+
+    void start() {
+        Thread thread = new Thread(this, "verification-parties");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.start();
+    }
+
+    static void beginWrite(File part) {
+        writing.add(part.getAbsolutePath());
+    }
+
+    static void endWrite(File part) {
+        writing.remove(part.getAbsolutePath());
+    }
+
+    static boolean isStoredPart(Path path) {
+        String name = path.getFileName().toString();
+        return !name.endsWith(SUM_SUFFIX) && !name.endsWith(CORRUPT_SUFFIX) && !name.endsWith(TEMPORARY_SUFFIX);
+    }
+
+    /** Écrit le fichier .sum d'une partie qui vient d'être reçue (remplacé d'un bloc). */
+    static void writeSums(File part, long size, PartDigest digest) throws IOException {
+        StringBuilder sums = new StringBuilder();
+        sums.append("size=").append(size).append('\n');
+        sums.append("crc32c=").append(Long.toHexString(digest.crc32c())).append('\n');
+        if (digest.sha256() != null) {
+            sums.append("sha256=").append(digest.sha256()).append('\n');
+        }
+        Path temporary = Paths.get(part.getPath() + SUM_SUFFIX + TEMPORARY_SUFFIX);
+        Files.write(temporary, sums.toString().getBytes(StandardCharsets.UTF_8));
+        Files.move(temporary, Paths.get(part.getPath() + SUM_SUFFIX),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // Contenu du fichier .sum (size, crc32c, sha256) ; vide s'il n'existe pas
+    static Map<String, String> readSums(File part) {
+        Map<String, String> sums = new HashMap<>();
+        try {
+            for (String line : Files.readAllLines(Paths.get(part.getPath() + SUM_SUFFIX), StandardCharsets.UTF_8)) {
+                int separator = line.indexOf('=');
+                if (separator > 0) {
+                    sums.put(line.substring(0, separator), line.substring(separator + 1).trim());
+                }
+            }
+        } catch (IOException e) {
+            sums.clear();
+        }
+        return sums;
+    }
+
+    /**
+     * Vérification faite à chaque lecture, sans relire la partie : sa taille doit être celle
+     * notée à la réception. Une partie tronquée est mise de côté ; retourne false dans ce cas.
+     */
+    static boolean checkSize(File part) {
+        if (writing.contains(part.getAbsolutePath())) {
+            return true;
+        }
+        String size = readSums(part).get("size");
+        if (size == null || Long.parseLong(size) == part.length()) {
+            return true;
+        }
+        quarantine(part, "taille " + part.length() + " au lieu de " + size);
+        return false;
+    }
+
+    /**
+     * Vérification complète faite avant une lecture directe par un client, qui ne peut pas
+     * vérifier une portion de partie : elle est relue et comparée aux sommes de son fichier .sum,
+     * sauf si elle a déjà été trouvée intacte avec la même taille et la même date de modification.
+     * Une partie corrompue est mise de côté ; retourne false dans ce cas, ou si elle a disparu.
+     * Une partie en cours d'écriture, sans fichier .sum ou remplacée pendant la lecture est acceptée.
+     */
+    static boolean verify(File part) {
+        if (writing.contains(part.getAbsolutePath())) {
+            return true;
+        }
+        String stamp = stamp(part);
+        if (stamp.equals(verified.get(part.getAbsolutePath()))) {
+            return true;
+        }
+        Map<String, String> sums = readSums(part);
+        if (sums.isEmpty()) {
+            return true;
+        }
+        long modified = part.lastModified();
+        PartDigest digest = new PartDigest(sums.containsKey("sha256"));
+        long size;
+        try {
+            size = read(part, digest, 0);
+        } catch (IOException | InterruptedException e) {
+            return false;
+        }
+        if (writing.contains(part.getAbsolutePath()) || part.lastModified() != modified || !sums.equals(readSums(part))) {
+            return true;
+        }
+        String reason = mismatch(sums, size, digest);
+        if (reason == null) {
+            verified.put(part.getAbsolutePath(), stamp);
+            return true;
+        }
+        quarantine(part, reason);
+        return false;
+    }
+
+    // Taille et date de modification : une partie réécrite ou modifiée sur le disque en change
+    private static String stamp(File part) {
+        return part.length() + "@" + part.lastModified();
+    }
+
+    static void removeSums(File part) {
+        verified.remove(part.getAbsolutePath());
+        new File(part.getPath() + SUM_SUFFIX).delete();
+    }
+
+    private static void quarantine(File part, String reason) {
+        File corrupt = new File(part.getPath() + CORRUPT_SUFFIX);
+        if (part.renameTo(corrupt)) {
+            removeSums(part);
+            ServeurSecondaire.metrics.counter("transfert_parts_quarantined_total").increment();
+            Log.warn("Partie corrompue mise de côté", "partie", part.getName(), "cause", reason, "fichier", corrupt.getName());
+        }
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            try {
+                scrubAll();
+                Thread.sleep(intervalMs);
+            } catch (InterruptedException e) {
+                return;
+            } catch (IOException | RuntimeException e) {
+                Log.warn("Erreur de la vérification des parties", "erreur", e.getMessage());
+                try {
+                    Thread.sleep(intervalMs);
+                } catch (InterruptedException interrupted) {
+                    return;
+                }
+            }
+        }
+    }
+
+    void scrubAll() throws IOException, InterruptedException {
+        if (!storageDir.isDirectory()) {
+            return;
+        }
+        List<Path> parts;
+        try (Stream<Path> files = Files.walk(storageDir.toPath())) {
+            parts = files.filter(Files::isRegularFile).filter(PartScrubber::isStoredPart).toList();
+        }
+        int verified = 0;
+        int corrupt = 0;
+        int adopted = 0;
+        for (Path part : parts) {
+            switch (scrub(part.toFile())) {
+                case VERIFIED: verified++; break;
+                case CORRUPT: corrupt++; break;
+                case ADOPTED: adopted++; break;
+                default: break;
+            }
+        }
+        ServeurSecondaire.metrics.counter("transfert_scrub_passes_total").increment();
+        Log.info("Vérification des parties terminée", "intactes", verified, "corrompues", corrupt,
+                "sans_somme_ajoutee", adopted);
+    }
+
+    private enum Result { VERIFIED, CORRUPT, ADOPTED, SKIPPED }
+
+    private Result scrub(File part) throws InterruptedException {
+        if (writing.contains(part.getAbsolutePath())) {
+            return Result.SKIPPED;
+        }
+        Map<String, String> sums = readSums(part);
+        String stamp = stamp(part);
+        long modified = part.lastModified();
+        PartDigest digest = new PartDigest(sums.containsKey("sha256") || PartDigest.SHA256);
+        long size;
+        try {
+            size = read(part, digest, bytesPerSecond);
+        } catch (IOException e) {
+            return Result.SKIPPED;  // supprimée ou remplacée pendant la lecture
+        }
+        // Une partie écrite pendant la lecture est vérifiée à la passe suivante
+        if (writing.contains(part.getAbsolutePath()) || part.lastModified() != modified || !sums.equals(readSums(part))) {
+            return Result.SKIPPED;
+        }
+
+        if (sums.isEmpty()) {
+            try {
+                writeSums(part, size, digest);
+            } catch (IOException e) {
+                return Result.SKIPPED;
+            }
+            return Result.ADOPTED;
+        }
+        String reason = mismatch(sums, size, digest);
+        if (reason == null) {
+            verified.put(part.getAbsolutePath(), stamp);
+            return Result.VERIFIED;
+        }
+        quarantine(part, reason);
+        return Result.CORRUPT;
+    }
+
+    // Lit toute la partie dans digest, à au plus bytesPerSecond octets par seconde (0 : sans limite) ; retourne sa taille
+    private static long read(File part, PartDigest digest, long bytesPerSecond) throws IOException, InterruptedException {
+        try (FileChannel channel = FileChannel.open(part.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            ByteBuffer buffer = ByteBuffer.allocateDirect(READ_SIZE);
+            long start = System.nanoTime();
+            long read = 0;
+            while (read < size) {
+                buffer.clear();
+                int count = channel.read(buffer, read);
+                if (count == -1) {
+                    break;
+                }
+                buffer.flip();
+                digest.update(buffer);
+                read += count;
+                // Débit limité : on attend que le temps écoulé corresponde aux octets lus
+                long aheadMs = bytesPerSecond > 0 ? read * 1000 / bytesPerSecond - (System.nanoTime() - start) / 1_000_000 : 0;
+                if (aheadMs > 0) {
+                    Thread.sleep(aheadMs);
+                }
+            }
+            return size;
+        }
+    }
+
+    // Message d'erreur si la partie ne correspond plus à son fichier .sum, sinon null
+    private static String mismatch(Map<String, String> sums, long size, PartDigest digest) {
+        if (sums.containsKey("size") && Long.parseLong(sums.get("size")) != size) {
+            return "taille " + size + " au lieu de " + sums.get("size");
+        }
+        return digest.mismatch(sums.containsKey("crc32c") ? Long.parseLong(sums.get("crc32c"), 16) : -1,
+                sums.get("sha256"));
+    }
+}
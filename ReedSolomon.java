@@ -0,0 +1,204 @@
+/**
+ * Code de Reed-Solomon systématique sur GF(256) : k fragments de données et m fragments de
+ * parité, n'importe quels k fragments suffisent à reconstruire les données.
+ *
+ * La matrice de codage est une matrice de Vandermonde (k+m) x k ramenée à la forme
+ * systématique (les k premières lignes forment l'identité). La multiplication passe par une
+ * table complète 256 x 256 : chaque coefficient donne une ligne de 256 octets, et le calcul
+ * d'un fragment n'est plus qu'une suite de consultations de table et de XOR, sans allocation.
+ */
+class ReedSolomon {
+
+    private static final int FIELD_SIZE = 256;
+    private static final int POLYNOMIAL = 0x11D;
+
+    private static final byte[] EXP = new byte[FIELD_SIZE * 2];
+    private static final int[] LOG = new int[FIELD_SIZE];
+    // MUL[a][b] = a * b dans GF(256)
+    private static final byte[][] MUL = new byte[FIELD_SIZE][FIELD_SIZE];
+
+    static {
+        int x = 1;
+        for (int i = 0; i < FIELD_SIZE - 1; i++) {
+            EXP[i] = (byte) x;
+            LOG[x] = i;
+            x <<= 1;
+            if (x >= FIELD_SIZE) {
+                x ^= POLYNOMIAL;
+            }
+        }
+        for (int i = FIELD_SIZE - 1; i < EXP.length; i++) {
+            EXP[i] = EXP[i - (FIELD_SIZE - 1)];
+        }
+        for (int a = 1; a < FIELD_SIZE; a++) {
+            for (int b = 1; b < FIELD_SIZE; b++) {
+                MUL[a][b] = EXP[LOG[a] + LOG[b]];
+            }
+        }
+    }
+
+    final int dataShards;
+    final int parityShards;
+    private final byte[][] matrix;  // (k+m) x k, les k premières lignes forment l'identité
+
+    ReedSolomon(int dataShards, int parityShards) {
+        if (dataShards <= 0 || parityShards < 0 || dataShards + parityShards > FIELD_SIZE) {
+            throw new IllegalArgumentException("Nombre de fragments invalide : " + dataShards + "+" + parityShards);
+        }
+        this.dataShards = dataShards;
+        this.parityShards = parityShards;
+
+        int total = dataShards + parityShards;
+        byte[][] vandermonde = new byte[total][dataShards];
+        for (int r = 0; r < total; r++) {
+            for (int c = 0; c < dataShards; c++) {
+                vandermonde[r][c] = power(r, c);
+            }
+        }
+        byte[][] top = new byte[dataShards][];
+        System.arraycopy(vandermonde, 0, top, 0, dataShards);
+        this.matrix = multiply(vandermonde, invert(top));
+    }
+
+    int totalShards() {
+        return dataShards + parityShards;
+    }
+
+    /**
+     * Ajoute la contribution de len octets du fragment de données dataIndex (à partir de
+     * srcOffset) aux fragments de parité, à la position parityOffset. Les parités doivent être
+     * à zéro au départ ; les données peuvent arriver dans n'importe quel ordre.
+     */
+    void encodeParity(int dataIndex, byte[] src, int srcOffset, int len, byte[][] parity, int parityOffset) {
+        for (int p = 0; p < parityShards; p++) {
+            byte[] row = MUL[matrix[dataShards + p][dataIndex] & 0xff];
+            byte[] out = parity[p];
+            for (int i = 0; i < len; i++) {
+                out[parityOffset + i] ^= row[src[srcOffset + i] & 0xff];
+            }
+        }
+    }
+
+    /** Calcule les parités de fragments de données complets (shards[0..k-1] vers shards[k..k+m-1]). */
+    void encode(byte[][] shards, int shardSize) {
+        byte[][] parity = new byte[parityShards][];
+        for (int p = 0; p < parityShards; p++) {
+            parity[p] = shards[dataShards + p];
+            java.util.Arrays.fill(parity[p], 0, shardSize, (byte) 0);
+        }
+        for (int d = 0; d < dataShards; d++) {
+            encodeParity(d, shards[d], 0, shardSize, parity, 0);
+        }
+    }
+
+    /**
+     * Reconstruit les fragments de données absents. present[i] indique si shards[i] est valide ;
+     * il en faut au moins k. Les fragments de données reconstruits sont alloués si nécessaire.
+     */
+    void decodeData(byte[][] shards, boolean[] present, int shardSize) {
+        int[] rows = new int[dataShards];
+        int found = 0;
+        for (int i = 0; i < totalShards() && found < dataShards; i++) {
+            if (present[i]) {
+                rows[found++] = i;
+            }
+        }
+        if (found < dataShards) {
+            throw new IllegalArgumentException("Fragments insuffisants : " + found + "/" + dataShards);
+        }
+
+        byte[][] sub = new byte[dataShards][];
+        for (int r = 0; r < dataShards; r++) {
+            sub[r] = matrix[rows[r]].clone();
+        }
+        byte[][] decoding = invert(sub);
+
+        for (int d = 0; d < dataShards; d++) {
+            if (present[d]) {
+                continue;
+            }
+            byte[] out = shards[d];
+            if (out == null || out.length < shardSize) {
+                out = new byte[shardSize];
+                shards[d] = out;
+            } else {
+                java.util.Arrays.fill(out, 0, shardSize, (byte) 0);
+            }
+            for (int r = 0; r < dataShards; r++) {
+                byte[] row = MUL[decoding[d][r] & 0xff];
+                byte[] in = shards[rows[r]];
+                for (int i = 0; i < shardSize; i++) {
+                    out[i] ^= row[in[i] & 0xff];
+                }
+            }
+        }
+    }
+
+    private static byte power(int base, int exponent) {
+        if (exponent == 0) {
+            return 1;
+        }
+        if (base == 0) {
+            return 0;
+        }
+        return EXP[(LOG[base] * exponent) % (FIELD_SIZE - 1)];
+    }
+
+    private static byte inverse(byte a) {
+        return EXP[(FIELD_SIZE - 1) - LOG[a & 0xff]];
+    }
+
+    private static byte[][] multiply(byte[][] a, byte[][] b) {
+        byte[][] result = new byte[a.length][b[0].length];
+        for (int r = 0; r < a.length; r++) {
+            for (int c = 0; c < b[0].length; c++) {
+                int value = 0;
+                for (int i = 0; i < b.length; i++) {
+                    value ^= MUL[a[r][i] & 0xff][b[i][c] & 0xff];
+                }
+                result[r][c] = (byte) value;
+            }
+        }
+        return result;
+    }
+
+    // Inversion par élimination de Gauss-Jordan
+    private static byte[][] invert(byte[][] source) {
+        int size = source.length;
+        byte[][] work = new byte[size][size * 2];
+        for (int r = 0; r < size; r++) {
+            System.arraycopy(source[r], 0, work[r], 0, size);
+            work[r][size + r] = 1;
+        }
+        for (int c = 0; c < size; c++) {
+            int pivot = c;
+            while (pivot < size && work[pivot][c] == 0) {
+                pivot++;
+            }
+            if (pivot == size) {
+                throw new IllegalArgumentException("Matrice non inversible");
+            }
+            byte[] swap = work[c];
+            work[c] = work[pivot];
+            work[pivot] = swap;
+
+            byte[] scale = MUL[inverse(work[c][c]) & 0xff];
+            for (int i = 0; i < size * 2; i++) {
+                work[c][i] = scale[work[c][i] & 0xff];
+            }
+            for (int r = 0; r < size; r++) {
+                if (r != c && work[r][c] != 0) {
+                    byte[] factor = MUL[work[r][c] & 0xff];
+                    for (int i = 0; i < size * 2; i++) {
+                        work[r][i] ^= factor[work[c][i] & 0xff];
+                    }
+                }
+            }
+        }
+        byte[][] result = new byte[size][size];
+        for (int r = 0; r < size; r++) {
+            System.arraycopy(work[r], size, result[r], 0, size);
+        }
+        return result;
+    }
+}
@@ -0,0 +1,411 @@
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * Frontal non bloquant d'un serveur : quelques threads d'entrée-sortie surveillent toutes les
+ * connexions avec un Selector, si bien qu'une connexion inactive ne coûte qu'une clé
+ * d'enregistrement et un petit tampon. Les octets reçus sont accumulés sans bloquer jusqu'à ce
+ * que l'en-tête d'une commande soit complet (son nom, puis les champs décrits par
+ * headerFormats) ; la commande est alors confiée à un thread de travail, qui passe la connexion
+ * en mode bloquant le temps de l'exécuter, gros transferts compris, puis la rend à son Selector.
+ * Un client lent à envoyer son en-tête n'occupe ainsi aucun thread. Quand tous les threads de
+ * travail sont occupés et leur file pleine, les commandes prêtes attendent sur le thread
+ * d'entrée-sortie au lieu de faire fermer leur connexion.
+ *
+ * Une connexion passée en trames (commande FRAMED) reste surveillée par son Selector : il lit
+ * les trames sans bloquer et les remet à la FramedSession, dont les requêtes s'exécutent sur
+ * les threads de travail. Une connexion en trames inactive n'occupe donc aucun thread.
+ *
+ * Format d'un en-tête, un caractère par champ : U chaîne writeUTF, I int, L long, R nombre (int)
+ * suivi d'autant de paires de chaînes. Une commande inconnue n'a pas de champ : elle part telle
+ * quelle au gestionnaire, qui répond comme il le ferait sur une connexion bloquante.
+ */
+class SelectorFrontEnd {
+
+    /** Exécute une commande dont l'en-tête est disponible dans in, sur une connexion en mode bloquant. */
+    interface CommandHandler {
+        void handle(String operation, DataInputStream in, DataOutputStream out) throws IOException;
+    }
+
+    private static final int INITIAL_BUFFER_SIZE = 512;
+    // Au-delà, l'en-tête est jugé invalide et la connexion fermée
+    private static final int MAX_HEADER_SIZE = 256 * 1024;
+    // File des connexions en attente d'accept dans le système (50 par défaut en Java, trop peu
+    // quand des milliers de clients se connectent en même temps)
+    private static final int ACCEPT_BACKLOG = 1024;
+    // Délai entre deux tentatives de confier les commandes en attente à des threads de travail saturés
+    private static final long RETRY_DISPATCH_MS = 10;
+    // Attente maximale entre deux tentatives d'écriture quand le tampon d'émission est plein
+    private static final long WRITE_WAIT_MS = 1000;
+
+    private final String name;
+    private final Map<String, String> headerFormats;
+    private final Supplier<CommandHandler> handlers;
+    private final ConnectionExecutor workers;
+    private final IoThread[] ioThreads;
+    private final AtomicInteger nextIoThread = new AtomicInteger();
+    private final AtomicInteger openSessions = new AtomicInteger();
+
+    SelectorFrontEnd(String name, int ioThreadCount, Map<String, String> headerFormats,
+                     Supplier<CommandHandler> handlers, ConnectionExecutor workers) throws IOException {
+        this.name = name;
+        this.headerFormats = headerFormats;
+        this.handlers = handlers;
+        this.workers = workers;
+        this.ioThreads = new IoThread[Math.max(1, ioThreadCount)];
+        for (int i = 0; i < ioThreads.length; i++) {
+            ioThreads[i] = new IoThread(Selector.open());
+        }
+    }
+
+    /** Démarre les threads d'entrée-sortie puis accepte les connexions sur le port (bloquant). */
+    void serve(int port) throws IOException {
+        for (int i = 0; i < ioThreads.length; i++) {
+            Thread thread = new Thread(ioThreads[i], name + "-selecteur-" + (i + 1));
+            thread.setDaemon(true);
+            thread.start();
+        }
+        try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+            serverChannel.bind(new InetSocketAddress(port), ACCEPT_BACKLOG);
+            Log.info(name + " : threads d'entrée-sortie (Selector)", "threads", ioThreads.length);
+            while (true) {
+                SocketChannel channel = serverChannel.accept();
+                channel.configureBlocking(false);
+                // Les réponses partent en plusieurs petites écritures (en-tête, taille, octets) :
+                // l'algorithme de Nagle retiendrait chacune jusqu'à l'accusé de réception différé du client
+                channel.socket().setTcpNoDelay(true);
+                openSessions.incrementAndGet();
+                IoThread ioThread = ioThreads[Math.floorMod(nextIoThread.getAndIncrement(), ioThreads.length)];
+                ioThread.add(new Session(channel, ioThread));
+            }
+        }
+    }
+
+    int openSessions() {
+        return openSessions.get();
+    }
+
+    /** Affiche périodiquement le nombre de connexions ouvertes (-Dtransfert.stats.seconds, 0 pour désactiver). */
+    void startReporting() {
+        int seconds = Integer.getInteger("transfert.stats.seconds", 60);
+        if (seconds <= 0) {
+            return;
+        }
+        ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, name + "-statistiques-selecteur");
+            thread.setDaemon(true);
+            return thread;
+        });
+        reporter.scheduleAtFixedRate(() -> Log.info(name + " : connexions ouvertes=" + openSessions()),
+                seconds, seconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Un Selector et les connexions qui lui sont attribuées. Une connexion dont l'en-tête est
+     * complet est retirée du Selector avant d'être confiée à un thread de travail : un canal ne
+     * peut passer en mode bloquant qu'une fois sa clé désenregistrée.
+     */
+    private class IoThread implements Runnable {
+        private final Selector selector;
+        // Connexions nouvelles ou rendues par un thread de travail, enregistrées par ce thread seulement
+        private final Queue<Session> incoming = new ConcurrentLinkedQueue<>();
+
+        IoThread(Selector selector) {
+            this.selector = selector;
+        }
+
+        void add(Session session) {
+            incoming.add(session);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            List<Session> ready = new ArrayList<>();
+            // Commandes prêtes refusées par les threads de travail, dans leur ordre d'arrivée
+            Deque<Session> waiting = new ArrayDeque<>();
+            while (true) {
+                try {
+                    if (waiting.isEmpty()) {
+                        selector.select();
+                    } else {
+                        selector.select(RETRY_DISPATCH_MS);
+                    }
+                    Session session;
+                    while ((session = incoming.poll()) != null) {
+                        if (session.framed != null) {
+                            session.channel.register(selector, SelectionKey.OP_READ, session);
+                            try {
+                                // Trames arrivées avec la commande FRAMED
+                                session.dispatchFrames();
+                            } catch (IOException e) {
+                                session.close(e);
+                            }
+                        } else if (session.headerLength() >= 0) {
+                            // Commande suivante déjà reçue avec la précédente
+                            ready.add(session);
+                        } else {
+                            session.channel.register(selector, SelectionKey.OP_READ, session);
+                        }
+                    }
+
+                    for (Iterator<SelectionKey> keys = selector.selectedKeys().iterator(); keys.hasNext(); ) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        session = (Session) key.attachment();
+                        if (!key.isValid()) {
+                            continue;
+                        }
+                        try {
+                            if (session.framed != null) {
+                                session.readFrames();
+                            } else if (session.fill()) {
+                                key.cancel();
+                                ready.add(session);
+                            }
+                        } catch (IOException e) {
+                            session.close(e);
+                        }
+                    }
+
+                    if (!ready.isEmpty()) {
+                        // Désenregistre les clés annulées ; les événements des autres connexions se
+                        // représenteront au prochain select, le Selector signalant un état et non un front
+                        selector.selectNow();
+                        selector.selectedKeys().clear();
+                        waiting.addAll(ready);
+                        ready.clear();
+                    }
+                    while (!waiting.isEmpty() && workers.offer(waiting.peek()::runCommand)) {
+                        waiting.poll();
+                    }
+                } catch (IOException | RuntimeException e) {
+                    Log.warn(name + " : erreur du sélecteur", "erreur", e.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * Une connexion et les octets reçus qui n'ont pas encore été consommés par une commande.
+     * Le tampon est en mode écriture (données dans [0, position)) tant que la connexion est
+     * surveillée par le Selector, et en mode lecture pendant l'exécution d'une commande.
+     */
+    private class Session {
+        final SocketChannel channel;
+        private final IoThread ioThread;
+        private final CommandHandler handler = handlers.get();
+        private ByteBuffer buffer = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+        // Non null une fois la connexion passée en trames
+        private volatile FramedSession framed;
+        // Attente de place dans le tampon d'émission des réponses en trames, créé au premier besoin
+        private Selector writeSelector;
+
+        Session(SocketChannel channel, IoThread ioThread) {
+            this.channel = channel;
+            this.ioThread = ioThread;
+        }
+
+        /** Lit les octets disponibles ; retourne true si un en-tête complet est en tampon. */
+        boolean fill() throws IOException {
+            read();
+            return headerLength() >= 0;
+        }
+
+        /** Mode trames : lit les octets disponibles et remet chaque trame complète à la session. */
+        void readFrames() throws IOException {
+            read();
+            dispatchFrames();
+        }
+
+        void dispatchFrames() throws IOException {
+            buffer.flip();
+            try {
+                Frame frame;
+                while ((frame = Frame.parse(buffer)) != null) {
+                    framed.receive(frame);
+                }
+            } finally {
+                buffer.compact();
+            }
+            // Une trame complète a pu agrandir le tampon : une connexion inactive n'en garde qu'un petit
+            if (buffer.position() == 0 && buffer.capacity() > INITIAL_BUFFER_SIZE) {
+                buffer = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+            }
+        }
+
+        private void read() throws IOException {
+            if (!buffer.hasRemaining()) {
+                if (buffer.capacity() >= MAX_HEADER_SIZE) {
+                    throw new IOException("en-tête de commande trop long");
+                }
+                ByteBuffer larger = ByteBuffer.allocate(Math.min(buffer.capacity() * 2, MAX_HEADER_SIZE));
+                buffer.flip();
+                larger.put(buffer);
+                buffer = larger;
+            }
+            if (channel.read(buffer) == -1) {
+                throw new EOFException("fin du flux");
+            }
+        }
+
+        /** Longueur de l'en-tête de la prochaine commande, ou -1 s'il n'est pas encore complet. */
+        int headerLength() {
+            int limit = buffer.position();
+            int nameLength = utfLength(0, limit);
+            if (nameLength < 0) {
+                return -1;
+            }
+            String operation = new String(buffer.array(), 2, nameLength, StandardCharsets.UTF_8);
+            int position = 2 + nameLength;
+            for (char field : headerFormats.getOrDefault(operation, "").toCharArray()) {
+                switch (field) {
+                    case 'U':
+                        int length = utfLength(position, limit);
+                        position = length < 0 ? limit + 1 : position + 2 + length;
+                        break;
+                    case 'I':
+                        position += 4;
+                        break;
+                    case 'L':
+                        position += 8;
+                        break;
+                    case 'R':
+                        if (position + 4 > limit) {
+                            return -1;
+                        }
+                        int pairs = buffer.getInt(position);
+                        position += 4;
+                        for (int i = 0; i < 2 * pairs && position <= limit; i++) {
+                            length = utfLength(position, limit);
+                            position = length < 0 ? limit + 1 : position + 2 + length;
+                        }
+                        break;
+                    default:
+                        throw new IllegalStateException("Champ d'en-tête inconnu : " + field);
+                }
+                if (position > limit) {
+                    return -1;
+                }
+            }
+            return position;
+        }
+
+        // Longueur d'une chaîne writeUTF commençant à offset, ou -1 si elle n'est pas entièrement reçue
+        private int utfLength(int offset, int limit) {
+            if (offset + 2 > limit) {
+                return -1;
+            }
+            int length = buffer.getShort(offset) & 0xFFFF;
+            return offset + 2 + length <= limit ? length : -1;
+        }
+
+        /** Exécute une commande sur un thread de travail puis rend la connexion à son Selector. */
+        void runCommand() {
+            try {
+                channel.configureBlocking(true);
+                buffer.flip();
+                DataInputStream in = new DataInputStream(new SessionInput());
+                DataOutputStream out = new DataOutputStream(Channels.newOutputStream(channel));
+                String operation = in.readUTF();
+                if ("FRAMED".equals(operation)) {
+                    if (!FramedSession.accept(in.readInt(), out)) {
+                        throw new EOFException("version de trames trop ancienne");
+                    }
+                    framed = new FramedSession(FramedSession.frameOutput(new FrameOutput()), handler, workers);
+                } else {
+                    handler.handle(operation, in, out);
+                }
+                buffer.compact();
+                channel.configureBlocking(false);
+                ioThread.add(this);
+            } catch (IOException | RuntimeException e) {
+                close(e);
+            }
+        }
+
+        void close(Exception cause) {
+            FramedSession session = framed;
+            if (session == null) {
+                closeChannel(cause);
+                return;
+            }
+            // Les requêtes en cours écrivent encore sur la connexion : elle n'est fermée qu'après elles
+            framed = null;
+            SelectionKey key = channel.keyFor(ioThread.selector);
+            if (key != null) {
+                key.cancel();
+            }
+            session.close(cause.getMessage(), () -> closeChannel(cause));
+        }
+
+        private void closeChannel(Exception cause) {
+            try {
+                channel.close();
+                if (writeSelector != null) {
+                    writeSelector.close();
+                }
+            } catch (IOException ignored) {
+            }
+            openSessions.decrementAndGet();
+            Log.debug("Connexion client terminée", "cause", cause.getMessage());
+        }
+
+        /**
+         * Réponses d'une connexion en trames, écrites par les threads de travail sur le canal
+         * resté non bloquant. Quand le tampon d'émission est plein, l'écrivain attend sur un
+         * Selector propre à la connexion, sans toucher à celui du thread d'entrée-sortie.
+         */
+        private class FrameOutput extends OutputStream {
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[] {(byte) b}, 0, 1);
+            }
+
+            @Override
+            public synchronized void write(byte[] data, int offset, int length) throws IOException {
+                ByteBuffer source = ByteBuffer.wrap(data, offset, length);
+                while (source.hasRemaining()) {
+                    if (channel.write(source) == 0) {
+                        if (writeSelector == null) {
+                            writeSelector = Selector.open();
+                            channel.register(writeSelector, SelectionKey.OP_WRITE);
+                        }
+                        writeSelector.select(WRITE_WAIT_MS);
+                        writeSelector.selectedKeys().clear();
+                    }
+                }
+            }
+        }
+
+        // Lit d'abord les octets déjà reçus par le Selector, puis le canal en mode bloquant ;
+        // jamais au-delà de ce que demande la commande, pour ne pas consommer la suivante
+        private class SessionInput extends InputStream {
+            @Override
+            public int read() throws IOException {
+                byte[] single = new byte[1];
+                return read(single, 0, 1) == -1 ? -1 : single[0] & 0xFF;
+            }
+
+            @Override
+            public int read(byte[] target, int offset, int length) throws IOException {
+                if (length == 0) {
+                    return 0;
+                }
+                if (buffer.hasRemaining()) {
+                    int count = Math.min(length, buffer.remaining());
+                    buffer.get(target, offset, count);
+                    return count;
+                }
+                return channel.read(ByteBuffer.wrap(target, offset, length));
+            }
+        }
+    }
+}
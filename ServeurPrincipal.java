@@ -1,58 +1,358 @@
 import java.io.*;
 import java.net.*;
-import java.nio.file.Files;
-import java.nio.file.Paths;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.CRC32C;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
 
 public class ServeurPrincipal {
 
-    private static final List<StorageServerInfo> storageServers = new ArrayList<>();
+    // Serveurs de stockage de config.txt, leur état et le choix de ceux qui reçoivent les parties (voir StorageNodes)
+    private static StorageNodes storageNodes;
+    private static final Map<String, StorageServerInfo> serverInfos = new ConcurrentHashMap<>();
+
+    // Taille des parties stockées et nombre de serveurs sur lesquels un fichier est réparti (0 : tous)
+    private static final long PART_SIZE = Long.getLong("transfert.partSize", 8L * 1024 * 1024);
+    private static final int STRIPE_WIDTH = Integer.getInteger("transfert.stripeWidth", 0);
+    // Nombre de copies de chaque partie, sur des serveurs différents
+    private static final int REPLICATION = Integer.getInteger("transfert.replication", 1);
+    // Mode "erasure" : chaque partie est découpée en k fragments de données et m fragments de parité
+    // (Reed-Solomon) au lieu d'être copiée ; n'importe quels k fragments suffisent à la relire
+    private static final boolean ERASURE_CODING = "erasure".equalsIgnoreCase(System.getProperty("transfert.storageMode", "replication"));
+    private static final int EC_DATA_SHARDS = Integer.getInteger("transfert.ec.data", 4);
+    private static final int EC_PARITY_SHARDS = Integer.getInteger("transfert.ec.parity", 2);
+    // Parties dont les parités sont en mémoire par envoi, en attendant d'être écrites
+    private static final int MAX_PENDING_PARITY_PARTS = 2;
+    // Découpage des fichiers répliqués : "cdc" (morceaux dépendant du contenu, dédupliqués) ou "fixed"
+    private static final boolean CONTENT_DEFINED_CHUNKING = "cdc".equalsIgnoreCase(System.getProperty("transfert.chunking", "cdc"));
+    private static final ContentChunker chunker = new ContentChunker(Integer.getInteger("transfert.cdc.averageSize", 1024 * 1024));
+    // Compression des parties répliquées à l'envoi : "deflate" ou "none" ; niveau de 1 (rapide) à 9
+    private static final boolean COMPRESSION = "deflate".equalsIgnoreCase(System.getProperty("transfert.compression", "none"));
+    private static final int COMPRESSION_LEVEL = Integer.getInteger("transfert.compression.level", Deflater.BEST_SPEED);
+    // Parties lues à l'avance par téléchargement
+    private static final int READ_AHEAD_PARTS = Integer.getInteger("transfert.readAhead", 8);
+    // Port d'écoute des clients
+    private static final int PORT = Integer.getInteger("transfert.port", 5000);
+    // Délai après lequel une partie est aussi demandée à une autre copie (0 : jamais)
+    private static final long HEDGE_DELAY_MS = Long.getLong("transfert.hedgeDelayMs", 200);
+    // Délai maximal de réponse d'un serveur de stockage à GET_PART
+    private static final int HEADER_TIMEOUT_MS = 30000;
+    // Parties envoyées à un serveur de stockage avant d'attendre son accusé de réception
+    private static final int MAX_UNACKED_PARTS = 4;
+
+    // Délai sans activité après lequel une session d'envoi abandonnée est supprimée avec ses morceaux
+    private static final long UPLOAD_SESSION_TIMEOUT_SECONDS = Long.getLong("transfert.upload.sessionTimeoutSeconds", 1800);
+    // Accès direct des clients aux serveurs de stockage : jetons signés avec transfert.secret (null : désactivé)
+    private static final AccessToken accessTokens = AccessToken.fromSystemProperties();
+    // Durée de validité d'un jeton d'accès direct
+    private static final long TOKEN_TTL_MS = Long.getLong("transfert.tokenTtlSeconds", 300) * 1000;
+
+    // Longueur maximale d'un nom de fichier en UTF-8 : les noms des parties y ajoutent un suffixe,
+    // et deviennent des noms de fichiers sur les serveurs de stockage (255 octets en général)
+    private static final int MAX_FILE_NAME_BYTES = 200;
+
+    // Taille d'un bloc transféré et nombre de blocs en mémoire par envoi ou par partie lue
+    private static final int BLOCK_SIZE = 64 * 1024;
+    private static final int MAX_BUFFERED_BLOCKS = 16;
+
+    // Nombre d'enregistrements du journal du catalogue avant compaction
+    private static final int CATALOG_COMPACTION_THRESHOLD = Integer.getInteger("transfert.catalog.compactEvery", 1000);
+    // Nombre de verrous répartis entre les noms de fichiers du catalogue
+    private static final int CATALOG_LOCK_STRIPES = Integer.getInteger("transfert.catalog.lockStripes", 256);
+
+    // Frontal des connexions clientes : "selector" (quelques threads surveillent toutes les
+    // connexions, une commande occupe un thread le temps de s'exécuter) ou "threads" (un thread par connexion)
+    private static final boolean SELECTOR_FRONT_END = "selector".equalsIgnoreCase(System.getProperty("transfert.frontEnd", "selector"));
+    private static final int SELECTOR_THREADS = Integer.getInteger("transfert.selector.threads",
+            Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() / 2)));
+
+    // Champs de l'en-tête de chaque commande cliente, lus sans bloquer par le frontal Selector
+    // (voir SelectorFrontEnd) ; à tenir à jour avec ClientHandler.handle
+    private static final Map<String, String> COMMAND_HEADERS = Map.ofEntries(
+            Map.entry("list", ""),
+            Map.entry("upload", "UL"),
+            Map.entry("UPLOAD_INIT", "UL"),
+            Map.entry("UPLOAD_CHUNK", "UILL"),
+            Map.entry("UPLOAD_STATUS", "U"),
+            Map.entry("UPLOAD_PLACE", "UI"),
+            Map.entry("UPLOAD_CONFIRM", "UIULLR"),
+            Map.entry("UPLOAD_COMMIT", "U"),
+            Map.entry("UPLOAD_ABORT", "U"),
+            Map.entry("download", "U"),
+            Map.entry("download_range", "UULL"),
+            Map.entry("STAT", "U"),
+            Map.entry("LOCATE", "U"),
+            Map.entry("DELETE_FILE", "U"),
+            Map.entry("FRAMED", "I"));
+
+    // Envois et lectures vers les serveurs de stockage lancés par les connexions clientes, bornés
+    // d'après le pool de connexions (voir ConnectionExecutor.transfersFromSystemProperties)
+    private static final ExecutorService transferExecutor = ConnectionExecutor.transfersFromSystemProperties(
+            "Serveur principal", () -> ServeurPrincipal.metrics.counter("transfert_transfers_rejected_total").increment());
+
+    private static FileCatalog catalog;
+
+    private static final StorageConnectionPool nodeConnections = new StorageConnectionPool(accessTokens);
+    private static final NodeStats nodeStats = new NodeStats();
+    // Compteurs et durées exposés par HTTP et JMX (voir Metrics)
+    static final Metrics metrics = new Metrics();
+    // Contenu des parties lues récemment (voir PartCache)
+    private static final PartCache partCache = PartCache.fromSystemProperties();
+    // Codeurs Reed-Solomon par disposition k+m ; le catalogue peut contenir plusieurs dispositions
+    private static final Map<String, ReedSolomon> codecs = new ConcurrentHashMap<>();
+    // Sessions d'envoi reprenables ouvertes, par identifiant
+    private static final Map<String, UploadSession> uploadSessions = new ConcurrentHashMap<>();
+
+    // Suffixe unique par envoi : deux envois simultanés du même fichier n'écrivent jamais les mêmes parties
+    private static final AtomicLong uploadSequence = new AtomicLong(System.currentTimeMillis());
 
     public static void main(String[] args) {
-        loadStorageServerConfig("config.txt");
+        storageNodes = new StorageNodes(new File("config.txt"), address ->
+                metrics.counter("transfert_node_bytes_sent_total", "node", address).sum()
+                        + metrics.counter("transfert_node_bytes_received_total", "node", address).sum());
+        if (storageNodes.reload()) {
+            Log.info("Configuration des serveurs de stockage chargée", "serveurs", storageNodes.size());
+        }
+        if (ERASURE_CODING) {
+            codecFor(EC_DATA_SHARDS, EC_PARITY_SHARDS);
+            Log.info("Codage par effacement", "donnees", EC_DATA_SHARDS, "parite", EC_PARITY_SHARDS);
+            if (storageNodes.size() < EC_DATA_SHARDS + EC_PARITY_SHARDS) {
+                Log.warn("Moins de serveurs que de fragments, certains serveurs en stockeront plusieurs.");
+            }
+        }
+
+        try {
+            catalog = FileCatalog.load("file_mapping.txt", "file_mapping.journal",
+                    CATALOG_COMPACTION_THRESHOLD, CATALOG_LOCK_STRIPES, ServeurPrincipal::deleteParts);
+            Log.info("Catalogue chargé", "fichiers", catalog.size());
+        } catch (IOException | RuntimeException e) {
+            Log.warn("Erreur lors du chargement du catalogue", "erreur", e.getMessage());
+            return;
+        }
+
+        startUploadSessionSweeper();
+        storageNodes.start();
+        Rebalancer rebalancer = Rebalancer.fromSystemProperties();
+        if (rebalancer != null) {
+            rebalancer.start();
+        }
 
         // Démarrer le serveur principal dans le terminal
         startServer();
     }
 
-    private static void loadStorageServerConfig(String configFilePath) {
-        try (BufferedReader br = new BufferedReader(new FileReader(configFilePath))) {
-            String line;
-            while ((line = br.readLine()) != null) {
-                String[] parts = line.split(":");
-                if (parts.length == 2) {
-                    String ip = parts[0];
-                    int port = Integer.parseInt(parts[1]);
-                    storageServers.add(new StorageServerInfo(ip, port));
+    // Un seul StorageServerInfo par adresse : les envois regroupent leurs parties par serveur sur cet objet
+    private static StorageServerInfo serverInfo(String address) {
+        return serverInfos.computeIfAbsent(address, key -> {
+            int colon = key.lastIndexOf(':');
+            metrics.gauge("transfert_node_latency_micros", "node", key, () -> {
+                double millis = nodeStats.latencyMillis(key);
+                return millis < 0 ? -1 : (long) (millis * 1000);
+            });
+            return new StorageServerInfo(key.substring(0, colon), Integer.parseInt(key.substring(colon + 1)));
+        });
+    }
+
+    /**
+     * Raison du refus d'un nom de fichier envoyé par un client, ou null s'il est accepté. Les
+     * noms des parties en sont dérivés : ni chemin ni "..", ni caractère de contrôle, ni
+     * séparateur du catalogue (',', ';', '|'), ni espace en début ou en fin.
+     */
+    static String invalidFileName(String fileName) {
+        if (fileName.isEmpty() || fileName.getBytes(StandardCharsets.UTF_8).length > MAX_FILE_NAME_BYTES) {
+            return "longueur de 1 à " + MAX_FILE_NAME_BYTES + " octets attendue";
+        }
+        if (fileName.contains("..")) {
+            return "\"..\" interdit";
+        }
+        for (int i = 0; i < fileName.length(); i++) {
+            char c = fileName.charAt(i);
+            if (c < 0x20 || c == 0x7f || "/\\,;|".indexOf(c) >= 0) {
+                return "caractère interdit (U+" + String.format("%04X", (int) c) + ")";
+            }
+        }
+        if (!fileName.equals(fileName.trim())) {
+            return "espace en début ou en fin";
+        }
+        return null;
+    }
+
+    // Tâche refusée par transferExecutor : tous ses threads sont occupés, la requête échoue
+    private static IOException transfersBusy(RejectedExecutionException e) {
+        return new IOException("Serveur occupé, trop de transferts en cours : réessayez plus tard", e);
+    }
+
+    private static ReedSolomon codecFor(int dataShards, int parityShards) {
+        return codecs.computeIfAbsent(dataShards + "+" + parityShards, k -> new ReedSolomon(dataShards, parityShards));
+    }
+
+    private static void deleteParts(List<FileCatalog.PartEntry> parts) {
+        for (FileCatalog.PartEntry part : parts) {
+            partCache.invalidate(part.partName);
+            for (int i = 0; i < part.servers.size(); i++) {
+                String server = part.servers.get(i);
+                if (!part.isErasureCoded()) {
+                    deletePartFromSecondaryServer(part.partName, server);
+                } else if (!FileCatalog.PartEntry.MISSING_SHARD.equals(server)) {
+                    deletePartFromSecondaryServer(part.shardName(i), server);
                 }
             }
-            System.out.println("Configuration des serveurs de stockage chargée.");
+        }
+    }
+
+    // Supprime périodiquement les sessions d'envoi restées inactives au-delà du délai
+    private static void startUploadSessionSweeper() {
+        ScheduledExecutorService sweeper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "expiration-sessions-envoi");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long period = Math.max(1, Math.min(60, UPLOAD_SESSION_TIMEOUT_SECONDS / 2));
+        sweeper.scheduleWithFixedDelay(() -> {
+            long deadline = System.currentTimeMillis() - UPLOAD_SESSION_TIMEOUT_SECONDS * 1000;
+            for (UploadSession session : uploadSessions.values()) {
+                List<FileCatalog.PartEntry> abandoned = session.expire(deadline);
+                if (abandoned != null) {
+                    uploadSessions.remove(session.id);
+                    Log.info("Session d'envoi expirée", "session", session.id, "fichier", session.fileName,
+                            "morceaux", abandoned.size());
+                    deleteParts(abandoned);
+                }
+            }
+        }, period, period, TimeUnit.SECONDS);
+    }
+
+    private static void deletePartFromSecondaryServer(String partFileName, String serverAddress) {
+        StorageConnectionPool.Connection connection = null;
+        try {
+            connection = nodeConnections.borrow(serverAddress);
+            connection.out.writeUTF("DELETE_PART");
+            connection.out.writeUTF(partFileName);
+            connection.out.flush();
+            String response = connection.in.readUTF();
+            nodeConnections.release(connection);
+            Log.debug("Partie supprimée", "partie", partFileName, "serveur", serverAddress, "reponse", response);
         } catch (IOException e) {
-            System.out.println("Erreur lors du chargement de la configuration : " + e.getMessage());
+            if (connection != null) {
+                nodeConnections.invalidate(connection);
+            }
+            metrics.counter("transfert_node_failures_total", "node", serverAddress).increment();
+            storageNodes.recordFailure(serverAddress);
+            Log.warn("Erreur lors de la suppression de la partie", "partie", partFileName, "serveur", serverAddress,
+                    "erreur", e.getMessage());
         }
     }
 
     private static void startServer() {
+        ConnectionExecutor connections = ConnectionExecutor.fromSystemProperties("Serveur principal");
+        connections.startReporting();
+        partCache.startReporting();
+        registerMetrics(connections);
+        if (SELECTOR_FRONT_END) {
+            new Thread(() -> {
+                try {
+                    SelectorFrontEnd frontEnd = new SelectorFrontEnd("Serveur principal", SELECTOR_THREADS,
+                            COMMAND_HEADERS, () -> new ClientHandler(null, connections), connections);
+                    frontEnd.startReporting();
+                    metrics.gauge("transfert_open_sessions", frontEnd::openSessions);
+                    Log.info("Serveur principal démarré, en attente de connexions", "port", PORT);
+                    frontEnd.serve(PORT);
+                } catch (IOException e) {
+                    Log.warn("Erreur du serveur principal", "erreur", e.getMessage());
+                }
+            }).start();
+            return;
+        }
         new Thread(() -> {
-            try (ServerSocket serverSocket = new ServerSocket(5000)) {
-                System.out.println("Serveur principal démarré sur le port 5000.");
-                System.out.println("Serveur principal en attente de connexions...");
+            try (ServerSocket serverSocket = new ServerSocket(PORT)) {
+                Log.info("Serveur principal démarré, en attente de connexions", "port", PORT);
 
                 while (true) {
                     Socket clientSocket = serverSocket.accept();
-                    new ClientHandler(clientSocket).start();
+                    clientSocket.setTcpNoDelay(true);
+                    connections.submit(clientSocket, new ClientHandler(clientSocket, connections));
                 }
             } catch (IOException e) {
-                System.out.println("Erreur du serveur principal : " + e.getMessage());
+                Log.warn("Erreur du serveur principal", "erreur", e.getMessage());
             }
         }).start();
     }
 
-    static class ClientHandler extends Thread {
-        private final Socket clientSocket;
+    // Jauges lues à chaque consultation des métriques, puis publication par HTTP et JMX
+    private static void registerMetrics(ConnectionExecutor connections) {
+        connections.registerMetrics(metrics);
+        nodeConnections.registerMetrics(metrics);
+        partCache.registerMetrics(metrics);
+        if (transferExecutor instanceof ThreadPoolExecutor) {
+            ThreadPoolExecutor transfers = (ThreadPoolExecutor) transferExecutor;
+            metrics.gauge("transfert_transfers_active", transfers::getActiveCount);
+            metrics.gauge("transfert_transfers_threads", transfers::getPoolSize);
+            metrics.gauge("transfert_transfers_max_threads", transfers::getMaximumPoolSize);
+            metrics.gauge("transfert_transfers_queued", () -> transfers.getQueue().size());
+        }
+        metrics.gauge("transfert_upload_sessions", uploadSessions::size);
+        metrics.gauge("transfert_catalog_files", () -> catalog.size());
+        metrics.gauge("transfert_log_dropped_total", Log::dropped);
+        storageNodes.registerMetrics(metrics);
+        metrics.publish("principal:" + PORT);
+    }
+
+    // Échec d'un échange avec un serveur de stockage : pénalise son rang en lecture comme en
+    // placement, et le compte par serveur
+    private static void recordNodeFailure(String server) {
+        nodeStats.recordFailure(server);
+        storageNodes.recordFailure(server);
+        metrics.counter("transfert_node_failures_total", "node", server).increment();
+    }
+
+    // Compte les octets lus sur le flux d'un client, pour sauter le reste d'un envoi refusé en cours de route
+    private static class CountingInput extends FilterInputStream {
+        long count;
+
+        CountingInput(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            count += b >= 0 ? 1 : 0;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int read = super.read(buffer, offset, length);
+            count += Math.max(read, 0);
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            count += skipped;
+            return skipped;
+        }
+    }
 
-        public ClientHandler(Socket clientSocket) {
+    static class ClientHandler implements Runnable, SelectorFrontEnd.CommandHandler {
+        private final Socket clientSocket;  // null derrière le frontal Selector, qui gère la connexion
+        // Exécute les requêtes d'une connexion passée en trames
+        private final ConnectionExecutor connections;
+
+        public ClientHandler(Socket clientSocket, ConnectionExecutor connections) {
             this.clientSocket = clientSocket;
+            this.connections = connections;
         }
 
         @Override
@@ -62,33 +362,98 @@ public class ServeurPrincipal {
                 DataOutputStream dos = new DataOutputStream(clientSocket.getOutputStream());
             ) {
                 while (true) {
-                    String operation = dis.readUTF();
-                    switch (operation) {
-                        case "list":
-                            listFiles(dos);
-                            break;
-        
-                        case "upload":
-                            receiveAndDistributeFile(dis, dos);
-                            break;
-        
-                        case "download":
-                            String fileName = dis.readUTF();
-                            downloadFile(fileName, dos);
-                            break;
-        
-                        case "DELETE_FILE":
-                            String fileToDelete = dis.readUTF();
-                            handleDeleteFile(fileToDelete, dos);
-                            break;
-        
-                        default:
-                            dos.writeUTF("Commande non reconnue");
-                            break;
-                    }
+                    handle(dis.readUTF(), dis, dos);
                 }
             } catch (IOException e) {
-                System.out.println("Connexion client terminée : " + e.getMessage());
+                Log.debug("Connexion client terminée", "cause", e.getMessage());
+            }
+        }
+
+        @Override
+        public void handle(String operation, DataInputStream dis, DataOutputStream dos) throws IOException {
+            if ("FRAMED".equals(operation)) {
+                // Chaque requête d'une session en trames repasse par handle et y est mesurée
+                execute(operation, dis, dos);
+                return;
+            }
+            long start = System.nanoTime();
+            try {
+                execute(operation, dis, dos);
+            } finally {
+                String command = COMMAND_HEADERS.containsKey(operation) ? operation : "unknown";
+                metrics.histogram("transfert_command_duration_seconds", "command", command).recordSince(start);
+            }
+        }
+
+        private void execute(String operation, DataInputStream dis, DataOutputStream dos) throws IOException {
+            switch (operation) {
+                case "list":
+                    listFiles(dos);
+                    break;
+
+                case "upload":
+                    receiveAndDistributeFile(dis, dos);
+                    break;
+
+                case "UPLOAD_INIT":
+                    startUploadSession(dis, dos);
+                    break;
+
+                case "UPLOAD_CHUNK":
+                    receiveUploadChunk(dis, dos);
+                    break;
+
+                case "UPLOAD_STATUS":
+                    reportUploadStatus(dis, dos);
+                    break;
+
+                case "UPLOAD_PLACE":
+                    placeUploadChunk(dis, dos);
+                    break;
+
+                case "UPLOAD_CONFIRM":
+                    confirmUploadChunk(dis, dos);
+                    break;
+
+                case "UPLOAD_COMMIT":
+                    commitUploadSession(dis, dos);
+                    break;
+
+                case "UPLOAD_ABORT":
+                    abortUploadSession(dis, dos);
+                    break;
+
+                case "download":
+                    String fileName = dis.readUTF();
+                    downloadFile(fileName, dos);
+                    break;
+
+                case "download_range":
+                    downloadRange(dis, dos);
+                    break;
+
+                case "STAT":
+                    statFile(dis, dos);
+                    break;
+
+                case "LOCATE":
+                    locateFile(dis, dos);
+                    break;
+
+                case "DELETE_FILE":
+                    String fileToDelete = dis.readUTF();
+                    handleDeleteFile(fileToDelete, dos);
+                    break;
+
+                case "FRAMED":
+                    // La connexion passe au protocole en trames jusqu'à sa fermeture (derrière le
+                    // frontal Selector, c'est lui qui lit les trames : FRAMED n'arrive pas ici)
+                    FramedSession.serve(dis.readInt(), dis, dos, this, connections);
+                    break;
+
+                default:
+                    dos.writeUTF("Commande non reconnue");
+                    break;
             }
         }
 
@@ -96,275 +461,2597 @@ public class ServeurPrincipal {
             String fileName = dis.readUTF();
             long fileSize = dis.readLong();
 
-            File tempFile = new File("temp_" + fileName);
-            try (FileOutputStream fos = new FileOutputStream(tempFile)) {
-                byte[] buffer = new byte[4096];
-                long totalRead = 0;
-                int read;
+            String invalid = invalidFileName(fileName);
+            if (invalid != null) {
+                skipFully(dis, fileSize);
+                Log.warn("Nom de fichier refusé", "fichier", fileName, "raison", invalid);
+                dos.writeUTF("Erreur lors de l'envoi du fichier " + fileName + " : nom invalide, " + invalid);
+                return;
+            }
+            List<StorageServerInfo> targets = selectTargets();
+            if (targets.isEmpty()) {
+                skipFully(dis, fileSize);
+                dos.writeUTF("Aucun serveur de stockage configuré.");
+                return;
+            }
 
-                while (totalRead < fileSize && (read = dis.read(buffer)) != -1) {
-                    fos.write(buffer, 0, read);
-                    totalRead += read;
+            Upload upload = new Upload(fileName, fileSize, targets);
+            CountingInput body = new CountingInput(dis);
+            try {
+                IOException failure = null;
+                try {
+                    if (upload.contentDefined) {
+                        upload.streamChunks(new DataInputStream(body));
+                    } else {
+                        upload.streamParts(new DataInputStream(body));
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    failure = new InterruptedIOException("Réception interrompue : " + fileName);
+                } catch (IOException e) {
+                    failure = e;
+                }
+                Set<String> failedServers = upload.finish();
+                if (failure != null) {
+                    upload.discard();
+                    if (!(failure.getCause() instanceof RejectedExecutionException)) {
+                        throw failure;
+                    }
+                    // Serveur occupé : le reste du fichier est sauté, la connexion reste utilisable
+                    skipFully(dis, fileSize - body.count);
+                    dos.writeUTF("Erreur lors de la distribution du fichier " + fileName + " : " + failure.getMessage());
+                    return;
                 }
-            }
 
-            System.out.println("Fichier reçu : " + fileName);
+                metrics.counter("transfert_client_bytes_received_total").add(fileSize);
+                Log.info("Fichier reçu", "fichier", fileName, "detail", upload.describe());
 
-            List<File> parts = splitFile(tempFile, 2);
-            for (int i = 0; i < parts.size(); i++) {
-                if (i < storageServers.size()) {
-                    sendFileToStorageServer(parts.get(i), storageServers.get(i), fileName);
+                List<FileCatalog.PartEntry> storedParts = upload.storedParts(failedServers);
+                if (storedParts != null && !failedServers.isEmpty()) {
+                    Log.warn("Fichier enregistré avec moins de copies que prévu", "fichier", fileName, "echecs", failedServers);
+                }
+
+                if (storedParts != null) {
+                    try {
+                        catalog.put(fileName, storedParts);
+                    } catch (IOException e) {
+                        upload.discard();
+                        Log.warn("Erreur lors de la mise à jour du catalogue", "fichier", fileName, "erreur", e.getMessage());
+                        dos.writeUTF("Erreur lors de l'enregistrement du fichier " + fileName + " : " + e.getMessage());
+                        return;
+                    }
+                    dos.writeUTF("Fichier distribué avec succès.");
                 } else {
-                    System.out.println("Pas assez de serveurs pour distribuer toutes les parties.");
+                    upload.discard();
+                    dos.writeUTF("Erreur lors de la distribution du fichier " + fileName + ".");
                 }
+            } finally {
+                upload.close();
             }
+        }
 
-            tempFile.delete();
-            for (File part : parts) {
-                part.delete();
+        // UPLOAD_INIT : nom, taille → UPLOAD_READY, identifiant de la session, taille des morceaux
+        private void startUploadSession(DataInputStream dis, DataOutputStream dos) throws IOException {
+            String fileName = dis.readUTF();
+            long fileSize = dis.readLong();
+
+            List<StorageServerInfo> targets = selectTargets();
+            if (targets.isEmpty()) {
+                dos.writeUTF("Aucun serveur de stockage configuré.");
+                return;
+            }
+            if (fileSize < 0) {
+                dos.writeUTF("Erreur lors de l'envoi du fichier " + fileName + " : taille invalide " + fileSize);
+                return;
+            }
+            String invalid = invalidFileName(fileName);
+            if (invalid != null) {
+                Log.warn("Nom de fichier refusé", "fichier", fileName, "raison", invalid);
+                dos.writeUTF("Erreur lors de l'envoi du fichier " + fileName + " : nom invalide, " + invalid);
+                return;
             }
 
-            dos.writeUTF("Fichier distribué avec succès.");
+            UploadSession session = new UploadSession(fileName, fileSize, targets);
+            uploadSessions.put(session.id, session);
+            Log.info("Session d'envoi ouverte", "session", session.id, "fichier", fileName, "morceaux", session.chunkCount);
+            dos.writeUTF("UPLOAD_READY");
+            dos.writeUTF(session.id);
+            dos.writeLong(session.chunkSize);
         }
 
-        private void listFiles(DataOutputStream dos) throws IOException {
-            try (BufferedReader br = new BufferedReader(new FileReader("file_mapping.txt"))) {
-                Set<String> files = new HashSet<>();
-                String line;
-                while ((line = br.readLine()) != null) {
-                    String[] parts = line.split(",");
-                    if (parts.length >= 1) {
-                        files.add(parts[0]);
-                    }
-                }
-                dos.writeUTF("Fichiers disponibles : " + String.join(", ", files));
-            } catch (IOException e) {
-                dos.writeUTF("Erreur lors de la lecture des fichiers disponibles : " + e.getMessage());
+        /**
+         * UPLOAD_CHUNK : identifiant, numéro du morceau, longueur, CRC32C, octets → CHUNK_OK ou une
+         * erreur. Le morceau est stocké comme une partie ordinaire puis comparé à la somme annoncée
+         * par le client ; un morceau corrompu est supprimé et devra être renvoyé.
+         */
+        private void receiveUploadChunk(DataInputStream dis, DataOutputStream dos) throws IOException {
+            String id = dis.readUTF();
+            int index = dis.readInt();
+            long length = dis.readLong();
+            long expectedChecksum = dis.readLong();
+
+            UploadSession session = uploadSessions.get(id);
+            String error = session == null ? "session d'envoi inconnue ou expirée : " + id : session.begin(index, length);
+            if (error != null) {
+                skipFully(dis, length);
+                dos.writeUTF("Erreur lors de la réception du morceau " + index + " : " + error);
+                return;
             }
-        }
 
-        private List<File> splitFile(File file, int partCount) throws IOException {
-            List<File> parts = new ArrayList<>();
-            try (FileInputStream fis = new FileInputStream(file)) {
-                long partSize = file.length() / partCount;
-                byte[] buffer = new byte[4096];
+            FileCatalog.PartEntry stored = null;
+            Upload upload = new Upload(session.fileName, length, session.placement, index);
+            CountingInput body = new CountingInput(dis);
+            try {
+                IOException failure = null;
+                try {
+                    upload.streamParts(new DataInputStream(body));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    failure = new InterruptedIOException("Réception interrompue : " + session.fileName);
+                } catch (IOException e) {
+                    failure = e;
+                }
+                Set<String> failedServers = upload.finish();
+                if (failure != null) {
+                    upload.discard();
+                    if (!(failure.getCause() instanceof RejectedExecutionException)) {
+                        throw failure;
+                    }
+                    // Serveur occupé : le morceau est sauté, le client le renverra
+                    skipFully(dis, length - body.count);
+                    error = failure.getMessage();
+                }
 
-                for (int i = 0; i < partCount; i++) {
-                    File part = new File(file.getName() + ".part" + (i + 1));
-                    try (FileOutputStream fos = new FileOutputStream(part)) {
-                        long written = 0;
-                        int read;
-                        while (written < partSize && (read = fis.read(buffer)) != -1) {
-                            fos.write(buffer, 0, read);
-                            written += read;
-                        }
+                if (failure == null) {
+                    List<FileCatalog.PartEntry> storedParts = upload.storedParts(failedServers);
+                    if (storedParts == null) {
+                        error = "aucun serveur de stockage n'a enregistré le morceau";
+                    } else if (storedParts.get(0).checksum != expectedChecksum) {
+                        error = "somme de contrôle incorrecte";
+                    } else {
+                        stored = storedParts.get(0);
                     }
-                    parts.add(part);
                 }
+                if (stored == null) {
+                    upload.discard();
+                }
+            } finally {
+                deleteParts(session.end(index, stored));
+                session.compressionNanos.addAndGet(upload.compressionNanos());
+                upload.close();
+            }
+            metrics.counter("transfert_client_bytes_received_total").add(length);
+
+            if (stored == null) {
+                dos.writeUTF("Erreur lors de la réception du morceau " + index + " : " + error);
+            } else {
+                dos.writeUTF("CHUNK_OK");
             }
-            return parts;
         }
 
-        private void sendFileToStorageServer(File part, StorageServerInfo serverInfo, String fileName) {
-            try (Socket socket = new Socket(serverInfo.ip, serverInfo.port);
-                 DataOutputStream dos = new DataOutputStream(socket.getOutputStream());
-                 FileInputStream fis = new FileInputStream(part)) {
+        /**
+         * UPLOAD_PLACE : identifiant, numéro → PLACEMENT, nom de la partie, serveurs, échéance et
+         * jeton d'écriture : le client écrit lui-même le morceau sur chacun de ces serveurs
+         * (DIRECT_STORE) puis le confirme avec leurs reçus. DIRECT_DISABLED sans secret partagé
+         * ou en mode effacement, où le codage des fragments reste fait par le serveur principal.
+         */
+        private void placeUploadChunk(DataInputStream dis, DataOutputStream dos) throws IOException {
+            String id = dis.readUTF();
+            int index = dis.readInt();
+            if (accessTokens == null || ERASURE_CODING) {
+                dos.writeUTF("DIRECT_DISABLED");
+                return;
+            }
+            UploadSession session = uploadSessions.get(id);
+            FileCatalog.PartEntry part = session == null ? null : session.place(index);
+            if (part == null) {
+                dos.writeUTF("Erreur lors de la réception du morceau " + index + " : session d'envoi inconnue, "
+                        + "expirée ou numéro hors du fichier : " + id);
+                return;
+            }
+            long expiresAt = System.currentTimeMillis() + TOKEN_TTL_MS;
+            dos.writeUTF("PLACEMENT");
+            dos.writeUTF(part.partName);
+            dos.writeInt(part.servers.size());
+            for (String server : part.servers) {
+                dos.writeUTF(server);
+            }
+            dos.writeLong(expiresAt);
+            dos.writeUTF(accessTokens.grant("PUT", part.partName, expiresAt));
+        }
 
-                dos.writeUTF("store");
-                dos.writeUTF(part.getName());
-                dos.writeLong(part.length());
+        /**
+         * UPLOAD_CONFIRM : identifiant, numéro, nom de la partie, longueur, CRC32C, puis le reçu
+         * signé de chaque serveur qui l'a écrite. Seules les copies dont le reçu a été signé par
+         * ce serveur, pour cette longueur et cette somme, sont enregistrées ; sans aucune, la
+         * partie est supprimée.
+         */
+        private void confirmUploadChunk(DataInputStream dis, DataOutputStream dos) throws IOException {
+            String id = dis.readUTF();
+            int index = dis.readInt();
+            String partName = dis.readUTF();
+            long length = dis.readLong();
+            long checksum = dis.readLong();
+            int receiptCount = dis.readInt();
+            Map<String, String> receipts = new LinkedHashMap<>();
+            for (int i = 0; i < receiptCount; i++) {
+                receipts.put(dis.readUTF(), dis.readUTF());
+            }
 
-                byte[] buffer = new byte[4096];
-                int read;
-                while ((read = fis.read(buffer)) != -1) {
-                    dos.write(buffer, 0, read);
+            UploadSession session = uploadSessions.get(id);
+            FileCatalog.PartEntry placed = session == null ? null : session.takePlacement(index, partName);
+            String error = null;
+            List<String> stored = new ArrayList<>();
+            if (placed == null) {
+                error = "partie " + partName + " non attribuée à ce morceau";
+            } else {
+                for (String server : placed.servers) {
+                    String receipt = receipts.get(server);
+                    if (receipt != null && accessTokens.validReceipt(receipt, server, partName, length, checksum)) {
+                        stored.add(server);
+                    }
+                }
+                if (stored.isEmpty()) {
+                    error = "aucun reçu valide des serveurs de stockage";
+                } else {
+                    error = session.begin(index, length);
+                }
+            }
+            if (error != null) {
+                if (placed != null) {
+                    deleteParts(Collections.singletonList(placed));
                 }
+                dos.writeUTF("Erreur lors de la réception du morceau " + index + " : " + error);
+                return;
+            }
 
-                System.out.println("Partie " + part.getName() + " envoyée à " + serverInfo);
-                updateFileMapping(fileName, part.getName(), serverInfo);
-            } catch (IOException e) {
-                System.out.println("Erreur lors de l'envoi de " + part.getName() + " à " + serverInfo + " : " + e.getMessage());
+            deleteParts(session.end(index, placed.withServers(stored).withChecksum(checksum)));
+            dos.writeUTF("CHUNK_OK");
+        }
+
+        // UPLOAD_STATUS : identifiant → UPLOAD_STATUS, nom, taille, taille des morceaux, nombre de morceaux, morceaux reçus
+        private void reportUploadStatus(DataInputStream dis, DataOutputStream dos) throws IOException {
+            String id = dis.readUTF();
+            UploadSession session = uploadSessions.get(id);
+            if (session == null) {
+                dos.writeUTF("Erreur : session d'envoi inconnue ou expirée : " + id);
+                return;
+            }
+            List<Integer> received = session.receivedChunks();
+            dos.writeUTF("UPLOAD_STATUS");
+            dos.writeUTF(session.fileName);
+            dos.writeLong(session.fileSize);
+            dos.writeLong(session.chunkSize);
+            dos.writeInt(session.chunkCount);
+            dos.writeInt(received.size());
+            for (int index : received) {
+                dos.writeInt(index);
             }
         }
 
-        private void updateFileMapping(String fileName, String partName, StorageServerInfo serverInfo) {
-            try (FileWriter fw = new FileWriter("file_mapping.txt", true);
-                 BufferedWriter bw = new BufferedWriter(fw)) {
-                bw.write(fileName + "," + partName + "," + serverInfo.ip + ":" + serverInfo.port);
-                bw.newLine();
-                System.out.println("Fichier de suivi mis à jour pour " + partName);
+        // UPLOAD_COMMIT : identifiant ; le fichier n'entre dans le catalogue qu'une fois tous ses morceaux reçus
+        private void commitUploadSession(DataInputStream dis, DataOutputStream dos) throws IOException {
+            String id = dis.readUTF();
+            UploadSession session = uploadSessions.get(id);
+            if (session == null) {
+                dos.writeUTF("Erreur : session d'envoi inconnue ou expirée : " + id);
+                return;
+            }
+            List<FileCatalog.PartEntry> parts = session.commit();
+            if (parts == null) {
+                dos.writeUTF("Erreur lors de l'enregistrement du fichier " + session.fileName
+                        + " : morceaux manquants ou en cours de réception");
+                return;
+            }
+            uploadSessions.remove(id);
+            deleteParts(session.dropPlacements());
+
+            try {
+                catalog.put(session.fileName, parts);
             } catch (IOException e) {
-                System.out.println("Erreur lors de la mise à jour du fichier de suivi : " + e.getMessage());
+                deleteParts(parts);
+                Log.warn("Erreur lors de la mise à jour du catalogue", "fichier", session.fileName, "erreur", e.getMessage());
+                dos.writeUTF("Erreur lors de l'enregistrement du fichier " + session.fileName + " : " + e.getMessage());
+                return;
+            }
+            String compression = "";
+            if (COMPRESSION) {
+                int compressed = 0;
+                long size = 0;
+                long stored = 0;
+                for (FileCatalog.PartEntry part : parts) {
+                    compressed += part.isCompressed() ? 1 : 0;
+                    size += part.size;
+                    stored += part.storedSize();
+                }
+                compression = String.format(", compression : %d morceaux, %d → %d octets en %d ms",
+                        compressed, size, stored, session.compressionNanos.get() / 1_000_000);
             }
+            Log.info("Fichier reçu", "fichier", session.fileName, "morceaux", parts.size(), "session", id,
+                    "detail", compression.isEmpty() ? null : compression.substring(2));
+            dos.writeUTF("Fichier distribué avec succès.");
         }
 
-        private void downloadFile(String fileName, DataOutputStream dos) {
-    try {
-        File assembledFile = assembleFileFromParts(fileName);
-        
-        // Créer le dossier "Download" s'il n'existe pas
-        File downloadDir = new File("Download");
-        if (!downloadDir.exists()) {
-            downloadDir.mkdir();
+        // UPLOAD_ABORT : identifiant ; les morceaux déjà stockés sont supprimés
+        private void abortUploadSession(DataInputStream dis, DataOutputStream dos) throws IOException {
+            String id = dis.readUTF();
+            UploadSession session = uploadSessions.remove(id);
+            List<FileCatalog.PartEntry> parts = session == null ? null : session.abort();
+            if (parts == null) {
+                dos.writeUTF("Erreur : session d'envoi inconnue ou expirée : " + id);
+                return;
+            }
+            deleteParts(parts);
+            dos.writeUTF("Envoi de " + session.fileName + " annulé.");
         }
 
-        // Déplacer le fichier assemblé dans le dossier "Download"
-        File finalFile = new File(downloadDir, fileName);
-        assembledFile.renameTo(finalFile);
-
-        dos.writeUTF("Downloading:" + finalFile.getName());
-        dos.writeLong(finalFile.length());
-
-        try (FileInputStream fis = new FileInputStream(finalFile)) {
-            byte[] buffer = new byte[4096];
-            int read;
-            while ((read = fis.read(buffer)) != -1) {
-                dos.write(buffer, 0, read);
+        // Serveurs qui recevront les parties du prochain fichier, choisis selon leur état et leur charge
+        private List<StorageServerInfo> selectTargets() {
+            int serverCount = storageNodes.size();
+            int width = STRIPE_WIDTH <= 0 ? serverCount : Math.min(STRIPE_WIDTH, serverCount);
+            if (ERASURE_CODING) {
+                // Chaque fragment d'une partie sur un serveur différent, si possible
+                width = Math.min(Math.max(width, EC_DATA_SHARDS + EC_PARITY_SHARDS), serverCount);
             }
+            List<StorageServerInfo> targets = new ArrayList<>();
+            if (serverCount == 0) {
+                return targets;
+            }
+            for (String address : storageNodes.select(width)) {
+                targets.add(serverInfo(address));
+            }
+            return targets;
         }
-    } catch (IOException e) {
-        try {
-            dos.writeUTF("Erreur lors du téléchargement : " + e.getMessage());
-        } catch (IOException ignored) {
-        }
-    }
-}
-
-        private File assembleFileFromParts(String requestedFile) throws IOException {
-            List<String> mappingLines = Files.readAllLines(Paths.get("file_mapping.txt"));
-            List<String> partsToAssemble = new ArrayList<>();
-            Map<String, String> partToServerMap = new HashMap<>();
 
-            for (String line : mappingLines) {
-                String[] tokens = line.split(",");
-                if (tokens[0].equals(requestedFile)) {
-                    partsToAssemble.add(tokens[1]);
-                    partToServerMap.put(tokens[1], tokens[2]);
+        private void skipFully(DataInputStream dis, long count) throws IOException {
+            while (count > 0) {
+                long skipped = dis.skip(count);
+                if (skipped <= 0) {
+                    if (dis.read() == -1) {
+                        throw new EOFException();
+                    }
+                    skipped = 1;
                 }
+                count -= skipped;
             }
+        }
 
-            if (partsToAssemble.isEmpty()) {
-                throw new IOException("Aucune partie trouvée pour " + requestedFile);
-            }
+        private void listFiles(DataOutputStream dos) throws IOException {
+            Set<String> files = new TreeSet<>(catalog.fileNames());
+            dos.writeUTF("Fichiers disponibles : " + String.join(", ", files));
+        }
+
+        private void downloadFile(String fileName, DataOutputStream dos) throws IOException {
+            sendFile(fileName, null, 0, -1, dos);
+        }
 
-            File tempDir = new File("temp_parts");
-            if (!tempDir.exists()) tempDir.mkdir();
+        // download_range : nom, version attendue ("" : toute version), début et longueur (-1 : jusqu'à la fin)
+        private void downloadRange(DataInputStream dis, DataOutputStream dos) throws IOException {
+            String fileName = dis.readUTF();
+            String expectedVersion = dis.readUTF();
+            long offset = dis.readLong();
+            long length = dis.readLong();
+            sendFile(fileName, expectedVersion, offset, length, dos);
+        }
 
-            for (String part : partsToAssemble) {
-                String serverInfo = partToServerMap.get(part);
-                String[] serverDetails = serverInfo.split(":");
-                String serverAddress = serverDetails[0];
-                int serverPort = Integer.parseInt(serverDetails[1]);
+        /**
+         * STAT : nom → STAT, version, taille totale (-1 si inconnue), nombre de parties puis, pour
+         * chaque partie, sa taille et sa somme CRC32C (-1 si inconnue). Le client s'en sert pour
+         * télécharger les parties en parallèle (download_range) et vérifier chacune à l'arrivée.
+         */
+        private void statFile(DataInputStream dis, DataOutputStream dos) throws IOException {
+            String fileName = dis.readUTF();
+            FileCatalog.FileEntry entry = catalog.get(fileName);
+            if (entry == null || entry.parts.isEmpty()) {
+                dos.writeUTF("Erreur : Aucune partie trouvée pour " + fileName);
+                return;
+            }
 
-                downloadPart(serverAddress, serverPort, part, tempDir);
+            // Réponse assemblée avant l'envoi : une écriture sur la socket au lieu de deux par partie
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+            DataOutputStream reply = new DataOutputStream(buffer);
+            reply.writeUTF("STAT");
+            reply.writeUTF(entry.version());
+            reply.writeLong(totalSize(entry));
+            reply.writeInt(entry.parts.size());
+            for (FileCatalog.PartEntry part : entry.parts) {
+                reply.writeLong(part.size);
+                reply.writeLong(part.checksum);
             }
+            buffer.writeTo(dos);
+        }
 
-            File assembledFile = new File("assembled_files", requestedFile);
-            if (!assembledFile.getParentFile().exists()) {
-                assembledFile.getParentFile().mkdirs();
+        /**
+         * LOCATE : comme STAT, avec en plus l'échéance des jetons puis, pour chaque partie, son
+         * nom, ses copies de la plus rapide à la plus lente et un jeton de lecture directe
+         * (DIRECT_GET). Une partie codée par effacement ou compressée, qui n'a pas de copie
+         * lisible telle quelle, est annoncée sans serveur : le client la lit par download_range. DIRECT_DISABLED sans
+         * secret partagé. Contrairement à download_range, la lecture directe n'épingle pas la
+         * version : si le fichier est remplacé entre-temps, le client le voit au premier refus.
+         */
+        private void locateFile(DataInputStream dis, DataOutputStream dos) throws IOException {
+            String fileName = dis.readUTF();
+            if (accessTokens == null) {
+                dos.writeUTF("DIRECT_DISABLED");
+                return;
+            }
+            FileCatalog.FileEntry entry = catalog.get(fileName);
+            if (entry == null || entry.parts.isEmpty()) {
+                dos.writeUTF("Erreur : Aucune partie trouvée pour " + fileName);
+                return;
             }
 
-            try (FileOutputStream fos = new FileOutputStream(assembledFile)) {
-                for (String part : partsToAssemble) {
-                    File partFile = new File(tempDir, part);
-                    Files.copy(partFile.toPath(), fos);
+            long expiresAt = System.currentTimeMillis() + TOKEN_TTL_MS;
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+            DataOutputStream reply = new DataOutputStream(buffer);
+            reply.writeUTF("LOCATIONS");
+            reply.writeUTF(entry.version());
+            reply.writeLong(totalSize(entry));
+            reply.writeInt(entry.parts.size());
+            reply.writeLong(expiresAt);
+            for (FileCatalog.PartEntry part : entry.parts) {
+                reply.writeLong(part.size);
+                reply.writeLong(part.checksum);
+                reply.writeUTF(part.partName);
+                List<String> replicas = part.isErasureCoded() || part.isCompressed() ? Collections.emptyList()
+                        : nodeStats.rank(new ArrayList<>(new LinkedHashSet<>(part.servers)));
+                reply.writeInt(replicas.size());
+                for (String server : replicas) {
+                    reply.writeUTF(server);
                 }
+                reply.writeUTF(replicas.isEmpty() ? "" : accessTokens.grant("GET", part.partName, expiresAt));
             }
+            buffer.writeTo(dos);
+        }
 
-            return assembledFile;
+        // Taille totale du fichier, -1 si une partie est de taille inconnue (anciennes entrées du catalogue)
+        private long totalSize(FileCatalog.FileEntry entry) {
+            long totalSize = 0;
+            for (FileCatalog.PartEntry part : entry.parts) {
+                totalSize = totalSize < 0 || part.size < 0 ? -1 : totalSize + part.size;
+            }
+            return totalSize;
         }
 
-        private void downloadPart(String serverAddress, int serverPort, String partName, File tempDir) throws IOException {
-            if (!tempDir.exists()) {
-                tempDir.mkdirs();
+        /**
+         * Envoie au client le fichier entier (expectedVersion null, commande "download") ou les
+         * octets [offset, offset + length) d'une version donnée (commande "download_range") :
+         * seules les parties qui recouvrent la plage sont demandées aux serveurs de stockage,
+         * et seulement pour la portion utile.
+         */
+        private void sendFile(String fileName, String expectedVersion, long offset, long length,
+                              DataOutputStream dos) throws IOException {
+            // La version lue reste épinglée jusqu'à la fin de l'envoi : une suppression ou un
+            // nouvel envoi concurrent ne libère ses parties qu'après.
+            FileCatalog.FileEntry entry = catalog.acquire(fileName);
+            if (entry == null || entry.parts.isEmpty()) {
+                if (entry != null) {
+                    catalog.release(entry);
+                }
+                dos.writeUTF("Erreur lors du téléchargement : Aucune partie trouvée pour " + fileName);
+                return;
             }
 
-            try (Socket socket = new Socket(serverAddress, serverPort);
-                 DataOutputStream dos = new DataOutputStream(socket.getOutputStream());
-                 DataInputStream dis = new DataInputStream(socket.getInputStream());
-                 FileOutputStream fos = new FileOutputStream(new File(tempDir, partName))) {
+            PartFetcher[] fetchers = null;
+            try {
+                List<FileCatalog.PartEntry> parts = entry.parts;
+                boolean sizesKnown = true;
+                long totalSize = 0;
+                for (FileCatalog.PartEntry part : parts) {
+                    sizesKnown &= part.size >= 0;
+                    totalSize += part.size;
+                }
 
-                dos.writeUTF("GET_PART");
-                dos.writeUTF(partName);
+                // Portion de chaque partie à lire : la partie entière, ou son intersection avec la plage demandée
+                boolean ranged = expectedVersion != null;
+                List<FileCatalog.PartEntry> slices = new ArrayList<>();
+                List<long[]> sliceBounds = new ArrayList<>();
+                if (ranged) {
+                    String error = null;
+                    if (!sizesKnown) {
+                        error = "lecture partielle impossible, tailles des parties inconnues pour " + fileName;
+                    } else if (!expectedVersion.isEmpty() && !expectedVersion.equals(entry.version())) {
+                        error = fileName + " a été modifié depuis la version " + expectedVersion;
+                    } else if (offset < 0 || offset > totalSize) {
+                        error = "début " + offset + " hors du fichier (" + totalSize + " octets)";
+                    }
+                    if (error != null) {
+                        dos.writeUTF("Erreur lors du téléchargement : " + error);
+                        return;
+                    }
+                    length = length < 0 ? totalSize - offset : Math.min(length, totalSize - offset);
+                    long position = 0;
+                    for (FileCatalog.PartEntry part : parts) {
+                        long start = Math.max(offset, position);
+                        long end = Math.min(offset + length, position + part.size);
+                        if (start < end) {
+                            slices.add(part);
+                            sliceBounds.add(new long[] { start - position, end - start });
+                        }
+                        position += part.size;
+                    }
+                } else {
+                    for (FileCatalog.PartEntry part : parts) {
+                        slices.add(part);
+                        sliceBounds.add(new long[] { 0, -1 });
+                    }
+                }
 
-                String response = dis.readUTF();
-                System.out.println(response);
-                if ("PART_FOUND".equals(response)) {
-                    long fileSize = dis.readLong();
+                // Les READ_AHEAD_PARTS prochaines parties sont demandées en parallèle ; chaque récupérateur
+                // garde au plus MAX_BUFFERED_BLOCKS blocs en mémoire en attendant son tour. Les anciennes
+                // entrées du catalogue, sans taille, sont toutes demandées d'un coup pour connaître la taille totale.
+                int window = sizesKnown ? Math.max(1, READ_AHEAD_PARTS) : slices.size();
+                fetchers = new PartFetcher[slices.size()];
+                try {
+                    for (int i = 0; i < Math.min(window, slices.size()); i++) {
+                        fetchers[i] = startFetcher(slices.get(i), sliceBounds.get(i));
+                    }
+                    if (sizesKnown) {
+                        if (fetchers.length > 0) {
+                            fetchers[0].awaitSize();
+                        }
+                    } else {
+                        totalSize = 0;
+                        for (PartFetcher fetcher : fetchers) {
+                            totalSize += fetcher.awaitSize();
+                        }
+                    }
+                } catch (IOException e) {
+                    dos.writeUTF("Erreur lors du téléchargement : " + e.getMessage());
+                    return;
+                }
 
-                    byte[] buffer = new byte[4096];
-                    int bytesRead;
-                    long totalRead = 0;
+                dos.writeUTF("Downloading:" + fileName);
+                if (ranged) {
+                    dos.writeUTF(entry.version());
+                    dos.writeLong(totalSize);
+                    dos.writeLong(offset);
+                    dos.writeLong(length);
+                } else {
+                    dos.writeLong(totalSize);
+                }
 
-                    while (totalRead < fileSize && (bytesRead = dis.read(buffer)) != -1) {
-                        fos.write(buffer, 0, bytesRead);
-                        totalRead += bytesRead;
+                // Les parties sont envoyées au client dans l'ordre, dès que leurs octets arrivent
+                for (int i = 0; i < slices.size(); i++) {
+                    if (i + window - 1 < slices.size() && fetchers[i + window - 1] == null) {
+                        fetchers[i + window - 1] = startFetcher(slices.get(i + window - 1), sliceBounds.get(i + window - 1));
                     }
-                } else {
-                    System.err.println("Erreur: Partie " + partName + " non trouvée sur " + serverAddress + ":" + serverPort);
+                    fetchers[i].copyTo(dos);
                 }
+                dos.flush();
+                metrics.counter("transfert_client_bytes_sent_total").add(ranged ? length : totalSize);
+            } finally {
+                if (fetchers != null) {
+                    for (PartFetcher fetcher : fetchers) {
+                        if (fetcher != null) {
+                            fetcher.cancel();
+                        }
+                    }
+                }
+                catalog.release(entry);
             }
         }
 
-        private void handleDeleteFile(String fileName, DataOutputStream dos) {
-            File mappingFile = new File("file_mapping.txt");
-            File tempFile = new File("file_mapping_temp.txt");
-
-            boolean fileFound = false;
+        private PartFetcher startFetcher(FileCatalog.PartEntry part, long[] bounds) throws IOException {
+            PartFetcher fetcher = new PartFetcher(part, bounds[0], bounds[1]);
+            try {
+                fetcher.future = transferExecutor.submit(fetcher);
+            } catch (RejectedExecutionException e) {
+                throw transfersBusy(e);
+            }
+            return fetcher;
+        }
 
-            try (
-                BufferedReader reader = new BufferedReader(new FileReader(mappingFile));
-                BufferedWriter writer = new BufferedWriter(new FileWriter(tempFile))
-            ) {
-                String line;
-
-                while ((line = reader.readLine()) != null) {
-                    String[] parts = line.split(",");
-                    if (parts.length >= 3 && parts[0].trim().equals(fileName.trim())) {
-                        fileFound = true;
-                        String partFileName = parts[1].trim();
-                        String serverAddress = parts[2].trim();
-                        deletePartFromSecondaryServer(partFileName, serverAddress);
-                    } else {
-                        writer.write(line);
-                        writer.newLine();
-                    }
-                }
+        private void handleDeleteFile(String fileName, DataOutputStream dos) {
+            boolean removed;
+            try {
+                removed = catalog.remove(fileName);
             } catch (IOException e) {
                 try {
                     dos.writeUTF("Erreur lors de la suppression : " + e.getMessage());
                 } catch (IOException ioException) {
-                    System.out.println("Erreur lors de l'envoi du message d'erreur au client : " + ioException.getMessage());
+                    Log.debug("Erreur lors de l'envoi du message d'erreur au client", "erreur", ioException.getMessage());
                 }
-                System.out.println("Erreur lors du traitement du mapping : " + e.getMessage());
+                Log.warn("Erreur lors de la mise à jour du catalogue", "fichier", fileName, "erreur", e.getMessage());
                 return;
             }
 
-            if (fileFound) {
-                mappingFile.delete();
-                tempFile.renameTo(mappingFile);
+            if (removed) {
                 try {
                     dos.writeUTF("Fichier " + fileName + " supprimé.");
                 } catch (IOException e) {
-                    System.out.println("Erreur lors de l'envoi du message de succès au client : " + e.getMessage());
+                    Log.debug("Erreur lors de l'envoi du message de succès au client", "erreur", e.getMessage());
                 }
             } else {
                 try {
                     dos.writeUTF("Fichier non trouvé : " + fileName);
                 } catch (IOException e) {
-                    System.out.println("Erreur lors de l'envoi du message d'erreur au client : " + e.getMessage());
+                    Log.debug("Erreur lors de l'envoi du message d'erreur au client", "erreur", e.getMessage());
                 }
             }
         }
+    }
 
-        private void deletePartFromSecondaryServer(String partFileName, String serverAddress) {
-            try (Socket socket = new Socket(serverAddress.split(":")[0], Integer.parseInt(serverAddress.split(":")[1]));
-                 DataOutputStream dos = new DataOutputStream(socket.getOutputStream())) {
-                dos.writeUTF("DELETE_PART");
-                dos.writeUTF(partFileName);
-                System.out.println("Partie " + partFileName + " supprimée de " + serverAddress);
-            } catch (IOException e) {
-                System.out.println("Erreur lors de la suppression de la partie sur " + serverAddress + ": " + e.getMessage());
+    /**
+     * Session d'envoi reprenable (UPLOAD_INIT) : le fichier arrive morceau par morceau, chaque
+     * morceau étant une partie de PART_SIZE octets accompagnée de sa somme CRC32C, stockée et
+     * acquittée séparément. Après une coupure, le client demande les morceaux déjà reçus
+     * (UPLOAD_STATUS) et n'envoie que les autres ; le fichier n'entre dans le catalogue qu'à
+     * UPLOAD_COMMIT. Les sessions ne sont gardées qu'en mémoire : un redémarrage du serveur
+     * principal oblige à recommencer l'envoi.
+     */
+    static class UploadSession {
+        final String id = UUID.randomUUID().toString();
+        final String fileName;
+        final long fileSize;
+        final long chunkSize = PART_SIZE;
+        final int chunkCount;
+        // Serveurs de la session et nombre de parties déjà confiées à chacun
+        final StorageNodes.Placement<StorageServerInfo> placement;
+
+        // Partie stockée pour chaque morceau, null tant que le morceau n'a pas été acquitté
+        private final FileCatalog.PartEntry[] parts;
+        private final boolean[] receiving;
+        // Parties attribuées pour une écriture directe par le client (UPLOAD_PLACE), par nom,
+        // avec leur numéro de morceau, en attendant leur confirmation
+        private final Map<String, Map.Entry<Integer, FileCatalog.PartEntry>> placements = new HashMap<>();
+        private int inFlight;
+        // Temps passé à compresser les morceaux reçus par le serveur principal
+        final AtomicLong compressionNanos = new AtomicLong();
+        private long lastActivity = System.currentTimeMillis();
+        private boolean closed;
+
+        UploadSession(String fileName, long fileSize, List<StorageServerInfo> targets) {
+            this.fileName = fileName;
+            this.fileSize = fileSize;
+            this.placement = storageNodes.placement(targets);
+            this.chunkCount = (int) Math.max(1, (fileSize + chunkSize - 1) / chunkSize);
+            this.parts = new FileCatalog.PartEntry[chunkCount];
+            this.receiving = new boolean[chunkCount];
+        }
+
+        long chunkLength(int index) {
+            return Math.min(chunkSize, fileSize - index * chunkSize);
+        }
+
+        /** Réserve la réception d'un morceau ; retourne la raison du refus, ou null. */
+        synchronized String begin(int index, long length) {
+            if (closed) {
+                return "session " + id + " terminée";
+            }
+            if (index < 0 || index >= chunkCount) {
+                return "numéro hors du fichier (" + chunkCount + " morceaux)";
+            }
+            if (length != chunkLength(index)) {
+                return "longueur " + length + " au lieu de " + chunkLength(index);
+            }
+            if (receiving[index]) {
+                return "déjà en cours de réception";
+            }
+            receiving[index] = true;
+            inFlight++;
+            lastActivity = System.currentTimeMillis();
+            return null;
+        }
+
+        /** Fin de réception d'un morceau (stored null : échec) ; retourne les parties devenues inutiles. */
+        synchronized List<FileCatalog.PartEntry> end(int index, FileCatalog.PartEntry stored) {
+            receiving[index] = false;
+            inFlight--;
+            lastActivity = System.currentTimeMillis();
+            List<FileCatalog.PartEntry> obsolete = new ArrayList<>();
+            if (stored == null) {
+                return obsolete;
+            }
+            if (closed) {
+                // Session annulée ou expirée pendant la réception
+                obsolete.add(stored);
+            } else {
+                // Un morceau renvoyé (accusé de réception perdu) remplace la copie précédente
+                if (parts[index] != null) {
+                    obsolete.add(parts[index]);
+                }
+                parts[index] = stored;
+            }
+            return obsolete;
+        }
+
+        /** Attribue au morceau index une partie que le client écrira lui-même ; null si la session est fermée. */
+        synchronized FileCatalog.PartEntry place(int index) {
+            if (closed || index < 0 || index >= chunkCount) {
+                return null;
+            }
+            int replicas = Math.min(Math.max(1, REPLICATION), placement.size());
+            List<String> servers = new ArrayList<>();
+            for (StorageServerInfo target : placement.next(replicas)) {
+                servers.add(target.toString());
+            }
+            String partName = fileName + "." + Long.toString(uploadSequence.incrementAndGet(), 36) + ".part" + (index + 1);
+            FileCatalog.PartEntry part = new FileCatalog.PartEntry(partName, servers, chunkLength(index));
+            placements.put(partName, Map.entry(index, part));
+            lastActivity = System.currentTimeMillis();
+            return part;
+        }
+
+        /** Retire et retourne la partie attribuée au morceau index sous ce nom, ou null. */
+        synchronized FileCatalog.PartEntry takePlacement(int index, String partName) {
+            Map.Entry<Integer, FileCatalog.PartEntry> placed = placements.get(partName);
+            if (placed == null || placed.getKey() != index) {
+                return null;
+            }
+            placements.remove(partName);
+            return placed.getValue();
+        }
+
+        /** Retire les parties attribuées jamais confirmées, pour les supprimer. */
+        synchronized List<FileCatalog.PartEntry> dropPlacements() {
+            List<FileCatalog.PartEntry> dropped = new ArrayList<>();
+            for (Map.Entry<Integer, FileCatalog.PartEntry> placed : placements.values()) {
+                dropped.add(placed.getValue());
+            }
+            placements.clear();
+            return dropped;
+        }
+
+        synchronized List<Integer> receivedChunks() {
+            List<Integer> received = new ArrayList<>();
+            for (int i = 0; i < chunkCount; i++) {
+                if (parts[i] != null) {
+                    received.add(i);
+                }
+            }
+            return received;
+        }
+
+        /** Ferme la session et retourne ses parties dans l'ordre, ou null s'il manque un morceau. */
+        synchronized List<FileCatalog.PartEntry> commit() {
+            if (closed || inFlight > 0) {
+                return null;
+            }
+            for (FileCatalog.PartEntry part : parts) {
+                if (part == null) {
+                    return null;
+                }
+            }
+            closed = true;
+            return new ArrayList<>(Arrays.asList(parts));
+        }
+
+        /** Ferme la session et retourne les parties à supprimer, ou null si elle était déjà fermée. */
+        synchronized List<FileCatalog.PartEntry> abort() {
+            if (closed) {
+                return null;
+            }
+            closed = true;
+            List<FileCatalog.PartEntry> received = dropPlacements();
+            for (FileCatalog.PartEntry part : parts) {
+                if (part != null) {
+                    received.add(part);
+                }
+            }
+            return received;
+        }
+
+        /** Annule la session si elle est inactive depuis deadline et ne reçoit aucun morceau. */
+        synchronized List<FileCatalog.PartEntry> expire(long deadline) {
+            if (inFlight > 0 || lastActivity > deadline) {
+                return null;
+            }
+            return abort();
+        }
+    }
+
+    /**
+     * Un envoi de fichier en cours : les serveurs choisis, un NodeSender par serveur utilisé et
+     * la réserve de blocs qu'ils partagent. Le fichier est découpé soit en parties de PART_SIZE
+     * octets (ou en fragments en mode effacement), soit en morceaux dépendant du contenu : un
+     * morceau déjà connu du catalogue est alors référencé au lieu d'être envoyé une nouvelle fois.
+     */
+    static class Upload {
+        final String fileName;
+        final long fileSize;
+        // Serveurs choisis pour l'envoi et parties déjà confiées à chacun (voir StorageNodes.Placement)
+        final StorageNodes.Placement<StorageServerInfo> placement;
+        final int replicas;
+        final boolean contentDefined;
+        final String uploadTag = Long.toString(uploadSequence.incrementAndGet(), 36);
+        // Numéro de la première partie : un morceau de session d'envoi est la partie firstPart du fichier
+        final int firstPart;
+
+        // Les octets lus sur la socket du client sont envoyés directement aux serveurs
+        // de stockage : aucun fichier temporaire n'est écrit sur le disque du serveur principal.
+        // Le nombre de blocs en mémoire est borné par la réserve de tampons ; quand elle est vide,
+        // on arrête de lire le client (contre-pression TCP) jusqu'à ce qu'un envoi libère un tampon.
+        private final BlockingQueue<Block> freeBlocks = new ArrayBlockingQueue<>(MAX_BUFFERED_BLOCKS);
+        private final Map<StorageServerInfo, NodeSender> senders = new LinkedHashMap<>();
+        private final Map<NodeSender, Future<Boolean>> results = new LinkedHashMap<>();
+
+        // Parties d'un envoi en parties fixes
+        private final List<FileCatalog.PartEntry> parts = new ArrayList<>();
+        // Morceaux d'un envoi découpé selon le contenu, dans l'ordre du fichier, et ceux que cet envoi stocke lui-même
+        private final List<FileCatalog.Chunk> chunks = new ArrayList<>();
+        private final Map<FileCatalog.Chunk, FileCatalog.PartEntry> createdChunks = new LinkedHashMap<>();
+        // Compression des parties (null : parties stockées telles quelles) et partie en cours de compression
+        private final PartCompressor compressor = COMPRESSION && !ERASURE_CODING ? new PartCompressor(COMPRESSION_LEVEL) : null;
+        private byte[] partBuffer;
+
+        Upload(String fileName, long fileSize, List<StorageServerInfo> targets) {
+            this(fileName, fileSize, storageNodes.placement(targets), CONTENT_DEFINED_CHUNKING && !ERASURE_CODING, 0);
+        }
+
+        // Un morceau d'une session d'envoi, toujours découpé en parties fixes, placé avec les autres morceaux
+        Upload(String fileName, long fileSize, StorageNodes.Placement<StorageServerInfo> placement, int firstPart) {
+            this(fileName, fileSize, placement, false, firstPart);
+        }
+
+        private Upload(String fileName, long fileSize, StorageNodes.Placement<StorageServerInfo> placement,
+                       boolean contentDefined, int firstPart) {
+            this.fileName = fileName;
+            this.fileSize = fileSize;
+            this.placement = placement;
+            this.contentDefined = contentDefined;
+            this.firstPart = firstPart;
+            this.replicas = ERASURE_CODING ? EC_DATA_SHARDS + EC_PARITY_SHARDS
+                    : Math.min(Math.max(1, REPLICATION), placement.size());
+            for (int i = 0; i < MAX_BUFFERED_BLOCKS; i++) {
+                freeBlocks.add(new Block(BLOCK_SIZE));
+            }
+        }
+
+        private NodeSender senderFor(StorageServerInfo target) throws IOException {
+            NodeSender sender = senders.get(target);
+            if (sender == null) {
+                sender = new NodeSender(target, freeBlocks);
+                try {
+                    results.put(sender, transferExecutor.submit(sender));
+                } catch (RejectedExecutionException e) {
+                    throw transfersBusy(e);
+                }
+                senders.put(target, sender);
+            }
+            return sender;
+        }
+
+        /**
+         * Découpe le fichier en parties de PART_SIZE octets réparties sur les serveurs choisis
+         * selon leur charge ; les copies (ou les fragments) d'une partie vont à des serveurs
+         * différents. Chaque serveur reçoit ses parties sur une seule connexion.
+         * La somme CRC32C de chaque partie (et sa SHA-256 avec transfert.checksum.sha256) est
+         * calculée au passage et gardée dans le catalogue.
+         */
+        void streamParts(DataInputStream dis) throws IOException, InterruptedException {
+            int partCount = (int) Math.max(1, (fileSize + PART_SIZE - 1) / PART_SIZE);
+            List<List<NodeSender>> partSenders = new ArrayList<>();
+            for (int i = 0; i < partCount; i++) {
+                List<NodeSender> replicaSenders = new ArrayList<>();
+                List<String> servers = new ArrayList<>();
+                for (StorageServerInfo target : placement.next(replicas)) {
+                    replicaSenders.add(senderFor(target));
+                    servers.add(target.toString());
+                }
+                String partName = fileName + "." + uploadTag + ".part" + (firstPart + i + 1);
+                long partSize = Math.min(PART_SIZE, fileSize - i * PART_SIZE);
+                FileCatalog.PartEntry part;
+                if (ERASURE_CODING) {
+                    part = new FileCatalog.PartEntry(partName, servers, partSize, EC_DATA_SHARDS, EC_PARITY_SHARDS);
+                    for (int r = 0; r < replicas; r++) {
+                        replicaSenders.get(r).plan.add(new FileCatalog.PartEntry(part.shardName(r),
+                                Collections.singletonList(servers.get(r)), part.shardLength(r)));
+                    }
+                } else {
+                    // Ajoutée au plan de ses serveurs à l'envoi : sa taille compressée n'est pas encore connue
+                    part = new FileCatalog.PartEntry(partName, servers, partSize);
+                }
+                parts.add(part);
+                partSenders.add(replicaSenders);
+            }
+
+            // Parités en attente d'écriture : au-delà, la lecture du client s'arrête aussi
+            Semaphore parityBudget = new Semaphore(MAX_PENDING_PARITY_PARTS);
+
+            for (int i = 0; i < partCount; i++) {
+                List<NodeSender> replicaSenders = partSenders.get(i);
+                PartDigest checksum = new PartDigest();
+                if (parts.get(i).isErasureCoded()) {
+                    sendErasureCoded(dis, parts.get(i), replicaSenders, parityBudget, checksum);
+                    parts.set(i, parts.get(i).withChecksum(checksum.crc32c()).withSha256(checksum.sha256()));
+                    continue;
+                }
+                if (compressor != null) {
+                    parts.set(i, sendCompressed(dis, parts.get(i), replicaSenders));
+                    continue;
+                }
+                for (NodeSender sender : replicaSenders) {
+                    sender.plan.add(parts.get(i));
+                }
+                long remaining = parts.get(i).size;
+                while (remaining > 0) {
+                    Block block = freeBlocks.take();
+                    int read = dis.read(block.data, 0, (int) Math.min(block.data.length, remaining));
+                    if (read == -1) {
+                        freeBlocks.add(block);
+                        throw new EOFException("Connexion client interrompue pendant l'envoi de " + fileName);
+                    }
+                    block.length = read;
+                    checksum.update(block.data, 0, read);
+                    // Le même bloc part vers chaque copie ; il revient à la réserve après le dernier envoi
+                    block.references.set(replicaSenders.size());
+                    for (NodeSender sender : replicaSenders) {
+                        sender.queue.put(block);
+                    }
+                    remaining -= read;
+                }
+                parts.set(i, parts.get(i).withChecksum(checksum.crc32c()).withSha256(checksum.sha256()));
+            }
+        }
+
+        /**
+         * Lit une partie entière pour la compresser avant de l'envoyer : sa taille sur les serveurs
+         * de stockage doit précéder ses octets. Retourne la partie avec sa somme CRC32C, calculée
+         * sur le contenu non compressé, et sa taille compressée si la compression a été retenue.
+         */
+        private FileCatalog.PartEntry sendCompressed(DataInputStream dis, FileCatalog.PartEntry part,
+                                                     List<NodeSender> replicaSenders) throws IOException, InterruptedException {
+            int length = (int) part.size;
+            if (partBuffer == null || partBuffer.length < length) {
+                partBuffer = new byte[length];
+            }
+            try {
+                dis.readFully(partBuffer, 0, length);
+            } catch (EOFException e) {
+                throw new EOFException("Connexion client interrompue pendant l'envoi de " + fileName);
+            }
+            PartDigest checksum = new PartDigest();
+            checksum.update(partBuffer, 0, length);
+            part = part.withChecksum(checksum.crc32c()).withSha256(checksum.sha256());
+
+            int compressed = compressor.compress(partBuffer, length);
+            if (compressed >= 0) {
+                part = part.withCompressedSize(compressed);
+            }
+            for (NodeSender sender : replicaSenders) {
+                sender.plan.add(part);
+            }
+            sendBuffered(compressed >= 0 ? compressor.output() : partBuffer, (int) part.storedSize(), replicaSenders);
+            return part;
+        }
+
+        // Envoie data[0, length) à chaque copie par blocs de la réserve ; data peut être réutilisé au retour
+        private void sendBuffered(byte[] data, int length, List<NodeSender> replicaSenders) throws InterruptedException {
+            for (int offset = 0; offset < length; offset += BLOCK_SIZE) {
+                Block block = freeBlocks.take();
+                block.length = Math.min(BLOCK_SIZE, length - offset);
+                System.arraycopy(data, offset, block.data, 0, block.length);
+                block.references.set(replicaSenders.size());
+                for (NodeSender sender : replicaSenders) {
+                    sender.queue.put(block);
+                }
+            }
+        }
+
+        /**
+         * Lit une partie codée par effacement : ses k tranches partent vers les serveurs des
+         * fragments de données au fil de la lecture, et leur contribution aux parités est
+         * accumulée au passage. Les m parités, complètes à la fin de la partie, sont alors
+         * confiées aux serveurs des fragments de parité.
+         */
+        private void sendErasureCoded(DataInputStream dis, FileCatalog.PartEntry part, List<NodeSender> shardSenders,
+                                      Semaphore parityBudget, PartDigest checksum) throws IOException, InterruptedException {
+            ReedSolomon codec = codecFor(part.dataShards, part.parityShards);
+            int shardSize = (int) part.shardSize();
+            parityBudget.acquire();
+            byte[][] parity = new byte[part.parityShards][shardSize];
+
+            for (int d = 0; d < part.dataShards; d++) {
+                long remaining = part.shardLength(d);
+                int offset = 0;
+                while (remaining > 0) {
+                    Block block = freeBlocks.take();
+                    int read = dis.read(block.data, 0, (int) Math.min(block.data.length, remaining));
+                    if (read == -1) {
+                        freeBlocks.add(block);
+                        throw new EOFException("Connexion client interrompue pendant l'envoi de " + part.partName);
+                    }
+                    block.length = read;
+                    // La contribution est calculée avant l'envoi : une fois écrit, le bloc est réutilisé
+                    codec.encodeParity(d, block.data, 0, read, parity, offset);
+                    checksum.update(block.data, 0, read);
+                    block.references.set(1);
+                    shardSenders.get(d).queue.put(block);
+                    offset += read;
+                    remaining -= read;
+                }
+            }
+
+            AtomicInteger unwritten = new AtomicInteger(part.parityShards);
+            Runnable parityWritten = () -> {
+                if (unwritten.decrementAndGet() == 0) {
+                    parityBudget.release();
+                }
+            };
+            if (part.parityShards == 0) {
+                parityBudget.release();
+            }
+            for (int p = 0; p < part.parityShards; p++) {
+                Block block = new Block(parity[p], 0, shardSize, parityWritten);
+                block.references.set(1);
+                shardSenders.get(part.dataShards + p).queue.put(block);
+            }
+        }
+
+        /**
+         * Découpe le fichier en morceaux dépendant du contenu (ContentChunker), nommés d'après
+         * leur empreinte SHA-256. Un morceau déjà présent dans le catalogue, ou déjà envoyé plus
+         * haut dans le même fichier, est seulement référencé ; les autres partent vers les
+         * serveurs désignés par la répartition.
+         */
+        void streamChunks(DataInputStream dis) throws IOException, InterruptedException {
+            MessageDigest digest;
+            try {
+                digest = MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IOException(e);
+            }
+            // Le tampon contient toujours maxSize octets (ou la fin du fichier) avant chaque découpe
+            byte[] buffer = new byte[(int) Math.min(chunker.maxSize, Math.max(fileSize, 1))];
+            int buffered = 0;
+            long unread = fileSize;
+            do {
+                while (buffered < buffer.length && unread > 0) {
+                    int read = dis.read(buffer, buffered, (int) Math.min(buffer.length - buffered, unread));
+                    if (read == -1) {
+                        throw new EOFException("Connexion client interrompue pendant l'envoi de " + fileName);
+                    }
+                    buffered += read;
+                    unread -= read;
+                }
+
+                int length = chunker.cut(buffer, 0, buffered);
+                digest.update(buffer, 0, length);
+                String hash = HexFormat.of().formatHex(digest.digest());
+                CRC32C checksum = new CRC32C();
+                checksum.update(buffer, 0, length);
+
+                List<StorageServerInfo> chunkTargets = new ArrayList<>();
+                List<String> servers = new ArrayList<>();
+                for (StorageServerInfo target : placement.next(replicas)) {
+                    chunkTargets.add(target);
+                    servers.add(target.toString());
+                }
+                // L'empreinte qui nomme le morceau sert aussi de SHA-256 quand elle est vérifiée à la lecture
+                FileCatalog.PartEntry candidate = new FileCatalog.PartEntry(
+                        FileCatalog.CHUNK_PREFIX + hash + "." + uploadTag, servers, length, 0, 0, checksum.getValue(),
+                        -1, PartDigest.SHA256 ? hash : null);
+                FileCatalog.Chunk chunk = catalog.referenceChunk(hash, candidate);
+                chunks.add(chunk);
+                if (chunk.part() == candidate) {
+                    int compressed = compressor != null ? compressor.compress(buffer, length) : -1;
+                    FileCatalog.PartEntry stored = compressed >= 0 ? candidate.withCompressedSize(compressed) : candidate;
+                    createdChunks.put(chunk, stored);
+                    List<NodeSender> replicaSenders = new ArrayList<>();
+                    for (StorageServerInfo target : chunkTargets) {
+                        NodeSender sender = senderFor(target);
+                        sender.plan.add(stored);
+                        replicaSenders.add(sender);
+                    }
+                    sendBuffered(compressed >= 0 ? compressor.output() : buffer, (int) stored.storedSize(), replicaSenders);
+                }
+
+                System.arraycopy(buffer, length, buffer, 0, buffered - length);
+                buffered -= length;
+            } while (buffered > 0 || unread > 0);
+        }
+
+        /** Termine les envois (un envoi qui n'a pas reçu toutes ses parties est avorté) et retourne les serveurs en échec. */
+        Set<String> finish() {
+            for (NodeSender sender : senders.values()) {
+                sender.finish();
+            }
+            Set<String> failedServers = new HashSet<>();
+            for (Map.Entry<NodeSender, Future<Boolean>> result : results.entrySet()) {
+                if (!awaitResult(result.getValue())) {
+                    failedServers.add(result.getKey().serverInfo.toString());
+                }
+            }
+            return failedServers;
+        }
+
+        private boolean awaitResult(Future<Boolean> result) {
+            try {
+                return result.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            } catch (ExecutionException e) {
+                return false;
+            }
+        }
+
+        String describe() {
+            String compression = compressor != null ? ", " + compressor.describe() : "";
+            if (contentDefined) {
+                return chunks.size() + " morceaux dont " + (chunks.size() - createdChunks.size())
+                        + " déjà stockés, " + senders.size() + " serveurs" + compression;
+            }
+            return parts.size() + " parties sur " + senders.size() + " serveurs" + compression;
+        }
+
+        // Temps passé à compresser les parties de cet envoi
+        long compressionNanos() {
+            return compressor != null ? compressor.nanos() : 0;
+        }
+
+        /**
+         * Parties à enregistrer dans le catalogue, avec les copies qui ont réussi ; null s'il manque
+         * une partie (aucune copie, ou moins de k fragments pour une partie codée par effacement).
+         */
+        List<FileCatalog.PartEntry> storedParts(Set<String> failedServers) throws InterruptedIOException {
+            List<FileCatalog.PartEntry> storedParts = new ArrayList<>();
+            if (contentDefined) {
+                for (Map.Entry<FileCatalog.Chunk, FileCatalog.PartEntry> created : createdChunks.entrySet()) {
+                    FileCatalog.Chunk chunk = created.getKey();
+                    FileCatalog.PartEntry part = created.getValue();
+                    List<String> stored = new ArrayList<>(part.servers);
+                    stored.removeAll(failedServers);
+                    catalog.chunkStored(chunk, stored.isEmpty() ? null : part.withServers(stored));
+                }
+                // Un morceau repris d'un autre envoi en cours n'est utilisable qu'une fois stocké
+                try {
+                    for (FileCatalog.Chunk chunk : chunks) {
+                        FileCatalog.PartEntry part = chunk.awaitStored();
+                        if (part == null) {
+                            return null;
+                        }
+                        storedParts.add(part);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Réception interrompue : " + fileName);
+                }
+                return storedParts;
+            }
+
+            boolean success = true;
+            for (FileCatalog.PartEntry part : parts) {
+                if (part.isErasureCoded()) {
+                    List<String> stored = new ArrayList<>();
+                    int storedShards = 0;
+                    for (String server : part.servers) {
+                        boolean failed = failedServers.contains(server);
+                        stored.add(failed ? FileCatalog.PartEntry.MISSING_SHARD : server);
+                        storedShards += failed ? 0 : 1;
+                    }
+                    success &= storedShards >= part.dataShards;
+                    storedParts.add(part.withServers(stored));
+                } else {
+                    List<String> stored = new ArrayList<>(part.servers);
+                    stored.removeAll(failedServers);
+                    success &= !stored.isEmpty();
+                    storedParts.add(part.withServers(stored));
+                }
+            }
+            return success ? storedParts : null;
+        }
+
+        /** Abandonne l'envoi : ses parties sont supprimées (les morceaux le sont à leur dernière référence). */
+        void discard() {
+            if (!contentDefined) {
+                deleteParts(parts);
+            }
+        }
+
+        /** Rend les références de l'envoi sur ses morceaux ; un morceau jamais stocké est marqué en échec. */
+        void close() {
+            if (compressor != null) {
+                compressor.end();
+            }
+            for (FileCatalog.Chunk chunk : createdChunks.keySet()) {
+                catalog.chunkStored(chunk, null);
+            }
+            for (FileCatalog.Chunk chunk : chunks) {
+                catalog.releaseChunk(chunk);
+            }
+        }
+    }
+
+    /**
+     * Envoie à un serveur de stockage, dans l'ordre et sur une seule connexion, les parties qui
+     * lui sont attribuées, au fur et à mesure que leurs blocs arrivent dans sa file. Chaque bloc
+     * est rendu à la réserve une fois écrit. Les accusés de réception sont lus avec un décalage
+     * d'au plus MAX_UNACKED_PARTS parties pour ne pas attendre un aller-retour par partie.
+     */
+    static class NodeSender implements Callable<Boolean> {
+        private static final FileCatalog.PartEntry NO_MORE_PARTS = new FileCatalog.PartEntry("", Collections.emptyList(), 0);
+
+        final StorageServerInfo serverInfo;
+        // Parties à envoyer, dans l'ordre où leurs blocs arrivent dans queue
+        final BlockingQueue<FileCatalog.PartEntry> plan = new LinkedBlockingQueue<>();
+        final BlockingQueue<Block> queue = new LinkedBlockingQueue<>();
+        private final BlockingQueue<Block> freeBlocks;
+
+        NodeSender(StorageServerInfo serverInfo, BlockingQueue<Block> freeBlocks) {
+            this.serverInfo = serverInfo;
+            this.freeBlocks = freeBlocks;
+        }
+
+        /** Plus aucune partie ne suivra ; une partie en cours restée incomplète est avortée. */
+        void finish() {
+            plan.add(NO_MORE_PARTS);
+            queue.offer(Block.END);
+        }
+
+        @Override
+        public Boolean call() throws InterruptedException {
+            storageNodes.transferStarted(serverInfo.toString());
+            try {
+                return send();
+            } finally {
+                storageNodes.transferEnded(serverInfo.toString());
+            }
+        }
+
+        private boolean send() throws InterruptedException {
+            StorageConnectionPool.Connection connection = null;
+            try {
+                connection = nodeConnections.borrow(serverInfo.toString());
+                DataOutputStream dos = connection.out;
+                DataInputStream dis = connection.in;
+                LongAdder sent = metrics.counter("transfert_node_bytes_sent_total", "node", serverInfo);
+
+                List<FileCatalog.PartEntry> parts = new ArrayList<>();
+                int acknowledged = 0;
+                FileCatalog.PartEntry part;
+                while ((part = plan.take()) != NO_MORE_PARTS) {
+                    parts.add(part);
+                    dos.writeUTF("store");
+                    dos.writeUTF(part.partName);
+                    dos.writeLong(part.storedSize());
+
+                    long written = 0;
+                    while (written < part.storedSize()) {
+                        Block block = queue.take();
+                        if (block == Block.END) {
+                            // La partie est incomplète : le serveur de stockage attend encore des octets
+                            nodeConnections.invalidate(connection);
+                            Log.warn("Envoi de partie avorté", "partie", part.partName, "serveur", serverInfo, "octets", written);
+                            return false;
+                        }
+                        try {
+                            dos.write(block.data, block.offset, block.length);
+                            written += block.length;
+                            sent.add(block.length);
+                        } finally {
+                            block.release(freeBlocks);
+                        }
+                    }
+                    dos.flush();
+
+                    while (parts.size() - acknowledged > MAX_UNACKED_PARTS) {
+                        readAcknowledgement(dis, parts.get(acknowledged++));
+                    }
+                }
+                while (acknowledged < parts.size()) {
+                    readAcknowledgement(dis, parts.get(acknowledged++));
+                }
+
+                nodeConnections.release(connection);
+                return true;
+            } catch (IOException e) {
+                if (connection != null) {
+                    nodeConnections.invalidate(connection);
+                }
+                metrics.counter("transfert_node_failures_total", "node", serverInfo).increment();
+                storageNodes.recordFailure(serverInfo.toString());
+                Log.warn("Erreur lors de l'envoi vers un serveur de stockage", "serveur", serverInfo, "erreur", e.getMessage());
+                drain();
+                return false;
+            }
+        }
+
+        private void readAcknowledgement(DataInputStream dis, FileCatalog.PartEntry part) throws IOException {
+            String response = dis.readUTF();
+            if (response.startsWith("Erreur")) {
+                throw new IOException(part.partName + " : " + response);
+            }
+            Log.debug("Partie envoyée", "partie", part.partName, "serveur", serverInfo);
+        }
+
+        // Rend à la réserve les blocs restants pour ne pas bloquer la lecture du client
+        private void drain() throws InterruptedException {
+            Block block;
+            while ((block = queue.take()) != Block.END) {
+                block.release(freeBlocks);
+            }
+        }
+    }
+
+    /**
+     * Récupère une partie depuis l'une de ses copies. Les copies sont essayées de la plus rapide
+     * à la plus lente (NodeStats) ; si la première n'a pas répondu après HEDGE_DELAY_MS, la
+     * suivante est demandée aussi et la première réponse l'emporte. Si une copie échoue en cours
+     * de lecture, la suivante reprend après les octets déjà transmis (GET_PART_RANGE). Pour une
+     * lecture partielle, seule la portion [rangeStart, rangeStart + rangeLength) est demandée.
+     *
+     * La taille est publiée dès réception de l'en-tête, puis les octets sont placés par blocs
+     * dans une file bornée que le gestionnaire du client vide quand vient le tour de cette partie.
+     *
+     * Une partie compressée est lue entière, quelle que soit la portion demandée, et décompressée
+     * au fil de l'envoi au client ; seule la portion demandée de son contenu lui est transmise.
+     *
+     * Une partie codée par effacement est lue fragment par fragment : les k fragments des serveurs
+     * les plus rapides sont demandés, un fragment de plus à chaque échec ou à chaque HEDGE_DELAY_MS
+     * sans réponse, et la partie est reconstruite à partir des k premiers arrivés.
+     *
+     * Quand la partie est lue en entier, ses sommes (PartDigest) sont recalculées au fil de la
+     * lecture et comparées au catalogue ; le dernier bloc n'est transmis qu'une fois la partie
+     * vérifiée, si bien qu'une copie corrompue fait échouer la lecture au lieu de livrer des
+     * octets faux. Elle est relue sur une autre copie si rien n'a encore été transmis.
+     *
+     * Une partie lue en entière est gardée dans le cache (PartCache), telle que stockée
+     * (compressée ou non) ; les lectures suivantes, entières ou partielles, y sont servies. Une
+     * portion d'une partie déjà demandée récemment est lue avec toute la partie, pour le cache.
+     */
+    static class PartFetcher implements Runnable {
+        private static final Block FAILED = new Block(0);
+
+        final FileCatalog.PartEntry part;
+        final String partName;
+        final List<String> replicas;
+        final long expectedSize;  // -1 si le catalogue ne connaît pas la taille
+        final long rangeStart;
+        final long rangeLength;  // -1 : jusqu'à la fin de la partie
+        // Portion du contenu décompressé à transmettre, pour une partie compressée
+        private final long inflatedStart;
+        private final long inflatedLength;
+        private final CompletableFuture<Long> size = new CompletableFuture<>();
+        private final BlockingQueue<Block> freeBlocks = new ArrayBlockingQueue<>(MAX_BUFFERED_BLOCKS);
+        private final BlockingQueue<Block> readyBlocks = new LinkedBlockingQueue<>();
+        private int allocatedBlocks;
+        private long delivered;  // octets déjà lus, placés dans readyBlocks ou retenus dans held
+        // Dernier bloc lu, retenu jusqu'à la vérification de la partie entière
+        private Block held;
+        // Sommes recalculées pendant une lecture complète ; null pour une portion ou sans somme connue
+        private PartDigest digest;
+        private boolean corrupt;  // octets faux déjà transmis : aucune autre copie ne peut les remplacer
+        // Copie de la partie entière en cours de lecture, pour le cache ; null si elle n'y sera pas gardée
+        private byte[] cacheCopy;
+        // Portion lue sur les serveurs de stockage : la portion demandée, ou toute la partie pour le cache
+        private long fetchStart;
+        private long fetchLength;
+        private boolean filling;  // partie lue pour le cache : la portion demandée sera transmise depuis celui-ci
+        // Connexion en cours d'utilisation ; celui qui la retire (fin normale, erreur ou annulation) la rend au pool
+        private final AtomicReference<StorageConnectionPool.Connection> connection = new AtomicReference<>();
+        private volatile boolean cancelled;
+        private volatile IOException error;
+        Future<?> future;
+
+        PartFetcher(FileCatalog.PartEntry part, long rangeStart, long rangeLength) {
+            this.part = part;
+            this.partName = part.partName;
+            this.replicas = part.servers;
+            if (part.isCompressed()) {
+                this.expectedSize = part.compressedSize;
+                this.rangeStart = 0;
+                this.rangeLength = -1;
+                this.inflatedStart = rangeStart;
+                this.inflatedLength = rangeLength < 0 ? part.size - rangeStart : rangeLength;
+            } else {
+                this.expectedSize = part.size;
+                this.rangeStart = rangeStart;
+                this.rangeLength = rangeLength;
+                this.inflatedStart = 0;
+                this.inflatedLength = -1;
+                if (rangeStart == 0 && (rangeLength < 0 || rangeLength >= part.size)) {
+                    this.digest = newDigest();
+                }
+            }
+            this.fetchStart = this.rangeStart;
+            this.fetchLength = this.rangeLength;
+        }
+
+        // Sommes à recalculer sur le contenu de la partie ; null si le catalogue n'en a aucune
+        private PartDigest newDigest() {
+            boolean sha256 = PartDigest.SHA256 && part.sha256 != null;
+            return part.checksum >= 0 || sha256 ? new PartDigest(sha256) : null;
+        }
+
+        /** Une demande GET_PART ou GET_PART_RANGE dont l'en-tête a été reçu. */
+        private static class Attempt {
+            final StorageConnectionPool.Connection connection;
+            final long partSize;
+            final long startNanos;  // envoi de la demande, pour la durée de lecture par serveur
+
+            Attempt(StorageConnectionPool.Connection connection, long partSize, long startNanos) {
+                this.connection = connection;
+                this.partSize = partSize;
+                this.startNanos = startNanos;
+            }
+        }
+
+        @Override
+        public void run() {
+            byte[] cached = partCache.get(partName);
+            if (cached != null) {
+                serveCached(cached);
+                return;
+            }
+            if (part.isErasureCoded()) {
+                runErasureCoded();
+                return;
+            }
+            boolean partial = rangeStart > 0 || (rangeLength >= 0 && rangeLength < part.size);
+            if (partial && partCache.recordMiss(partName) && partCache.admits(part.size)) {
+                fetchStart = 0;
+                fetchLength = -1;
+                filling = true;
+                digest = newDigest();
+            }
+            Deque<String> candidates = new ArrayDeque<>(nodeStats.rank(replicas));
+            IOException lastError = new IOException("Aucune copie connue pour " + partName);
+            try {
+                while (!candidates.isEmpty() && !cancelled && !corrupt) {
+                    Attempt attempt;
+                    try {
+                        attempt = openFirstResponder(candidates);
+                    } catch (IOException e) {
+                        lastError = e;
+                        continue;
+                    }
+                    storageNodes.transferStarted(attempt.connection.server);
+                    try {
+                        streamFrom(attempt);
+                        metrics.histogram("transfert_part_fetch_duration_seconds", "node", attempt.connection.server)
+                                .recordSince(attempt.startNanos);
+                        releaseConnection();
+                        if (cacheCopy != null) {
+                            partCache.put(partName, cacheCopy);
+                        }
+                        if (filling) {
+                            serveCached(cacheCopy);
+                            return;
+                        }
+                        if (held != null) {
+                            readyBlocks.add(held);
+                        }
+                        readyBlocks.add(Block.END);
+                        return;
+                    } catch (IOException e) {
+                        recordNodeFailure(attempt.connection.server);
+                        invalidateConnection();
+                        lastError = e;
+                    } finally {
+                        storageNodes.transferEnded(attempt.connection.server);
+                    }
+                }
+            } catch (InterruptedException e) {
+                invalidateConnection();
+                Thread.currentThread().interrupt();
+                lastError = new InterruptedIOException("Téléchargement interrompu : " + partName);
+            }
+            if (held != null) {
+                freeBlocks.add(held);
+                held = null;
+            }
+            error = lastError;
+            size.completeExceptionally(lastError);
+            readyBlocks.add(FAILED);
+        }
+
+        // La portion demandée est transmise depuis le cache, sans solliciter les serveurs de stockage
+        private void serveCached(byte[] data) {
+            size.complete(part.isCompressed() ? part.size : data.length);
+            int start = (int) Math.min(rangeStart, data.length);
+            int end = rangeLength < 0 ? data.length : (int) Math.min(data.length, rangeStart + rangeLength);
+            if (start < end) {
+                readyBlocks.add(new Block(data, start, end - start, () -> { }));
+            }
+            readyBlocks.add(Block.END);
+        }
+
+        private void runErasureCoded() {
+            try {
+                byte[][] shards = fetchShards();
+                PartDigest reconstructed = newDigest();
+                if (reconstructed != null) {
+                    for (int d = 0; d < part.dataShards; d++) {
+                        reconstructed.update(shards[d], 0, (int) part.shardLength(d));
+                    }
+                    String mismatch = reconstructed.mismatch(part.checksum, part.sha256);
+                    if (mismatch != null) {
+                        throw new IOException("Partie " + partName + " reconstruite corrompue : " + mismatch);
+                    }
+                }
+                if (partCache.admits(part.size)) {
+                    byte[] content = new byte[(int) part.size];
+                    for (int d = 0; d < part.dataShards; d++) {
+                        System.arraycopy(shards[d], 0, content, (int) (d * part.shardSize()), (int) part.shardLength(d));
+                    }
+                    partCache.put(partName, content);
+                }
+                size.complete(part.size);
+                // Seule la portion demandée des fragments de données est transmise
+                long from = rangeStart;
+                long to = rangeLength < 0 ? part.size : rangeStart + rangeLength;
+                long shardSize = part.shardSize();
+                for (int d = 0; d < part.dataShards; d++) {
+                    long shardStart = d * shardSize;
+                    long start = Math.max(from, shardStart);
+                    long end = Math.min(to, shardStart + part.shardLength(d));
+                    if (start < end) {
+                        readyBlocks.add(new Block(shards[d], (int) (start - shardStart), (int) (end - start), () -> { }));
+                    }
+                }
+                readyBlocks.add(Block.END);
+            } catch (IOException e) {
+                error = e;
+                size.completeExceptionally(e);
+                readyBlocks.add(FAILED);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                error = new InterruptedIOException("Téléchargement interrompu : " + partName);
+                size.completeExceptionally(error);
+                readyBlocks.add(FAILED);
+            }
+        }
+
+        // Rassemble k fragments, des serveurs les plus rapides d'abord, et reconstruit les fragments de données manquants
+        private byte[][] fetchShards() throws IOException, InterruptedException {
+            int total = part.dataShards + part.parityShards;
+            int shardSize = (int) part.shardSize();
+            List<String> ranked = nodeStats.rank(new ArrayList<>(new LinkedHashSet<>(part.servers)));
+            List<Integer> order = new ArrayList<>();
+            for (int i = 0; i < Math.min(total, part.servers.size()); i++) {
+                if (!FileCatalog.PartEntry.MISSING_SHARD.equals(part.servers.get(i))) {
+                    order.add(i);
+                }
+            }
+            order.sort(Comparator.comparingInt(i -> ranked.indexOf(part.servers.get(i))));
+            Deque<Integer> candidates = new ArrayDeque<>(order);
+
+            AtomicBoolean complete = new AtomicBoolean();
+            CompletionService<byte[]> requests = new ExecutorCompletionService<>(transferExecutor);
+            Map<Future<byte[]>, Integer> pending = new HashMap<>();
+            byte[][] shards = new byte[total][];
+            boolean[] present = new boolean[total];
+            int received = 0;
+            IOException lastError = new IOException("Fragments insuffisants pour " + partName);
+            try {
+                while (pending.size() < part.dataShards && !candidates.isEmpty()) {
+                    submitShard(requests, pending, candidates.poll(), shardSize, complete);
+                }
+                while (received < part.dataShards) {
+                    if (pending.isEmpty() || cancelled) {
+                        throw lastError;
+                    }
+                    Future<byte[]> done = HEDGE_DELAY_MS > 0 && !candidates.isEmpty()
+                            ? requests.poll(HEDGE_DELAY_MS, TimeUnit.MILLISECONDS) : requests.take();
+                    if (done == null) {
+                        // Un fragment tarde : un fragment de plus est demandé à un autre serveur
+                        submitShard(requests, pending, candidates.poll(), shardSize, complete);
+                        continue;
+                    }
+                    int index = pending.remove(done);
+                    try {
+                        shards[index] = done.get();
+                        present[index] = true;
+                        received++;
+                    } catch (ExecutionException e) {
+                        lastError = e.getCause() instanceof IOException
+                                ? (IOException) e.getCause() : new IOException(e.getCause());
+                        if (!candidates.isEmpty()) {
+                            submitShard(requests, pending, candidates.poll(), shardSize, complete);
+                        }
+                    }
+                }
+            } finally {
+                // Les fragments encore en route ne servent plus : leurs lectures s'arrêtent
+                complete.set(true);
+            }
+
+            for (int d = 0; d < part.dataShards; d++) {
+                if (!present[d]) {
+                    codecFor(part.dataShards, part.parityShards).decodeData(shards, present, shardSize);
+                    break;
+                }
+            }
+            return shards;
+        }
+
+        // Une demande refusée faute de thread de transfert est abandonnée ; sans autre demande en cours, la lecture échoue
+        private void submitShard(CompletionService<byte[]> requests, Map<Future<byte[]>, Integer> pending,
+                                 int index, int shardSize, AtomicBoolean complete) throws IOException {
+            String server = part.servers.get(index);
+            try {
+                pending.put(requests.submit(() -> fetchShard(index, server, shardSize, complete)), index);
+            } catch (RejectedExecutionException e) {
+                if (pending.isEmpty()) {
+                    throw transfersBusy(e);
+                }
+            }
+        }
+
+        // Lit un fragment dans un tableau de shardSize octets, complété par des zéros pour le décodage
+        private byte[] fetchShard(int index, String server, int shardSize, AtomicBoolean complete) throws IOException {
+            long start = System.nanoTime();
+            String shardName = part.shardName(index);
+            StorageConnectionPool.Connection borrowed = nodeConnections.borrow(server);
+            boolean owned = true;
+            boolean abandoned = false;
+            storageNodes.transferStarted(server);
+            try {
+                borrowed.socket.setSoTimeout(HEADER_TIMEOUT_MS);
+                borrowed.out.writeUTF("GET_PART");
+                borrowed.out.writeUTF(shardName);
+                borrowed.out.flush();
+
+                String response = borrowed.in.readUTF();
+                if (!"PART_FOUND".equals(response)) {
+                    owned = false;
+                    nodeConnections.release(borrowed);
+                    throw new IOException("Fragment " + shardName + " non trouvé sur " + server);
+                }
+                long length = borrowed.in.readLong();
+                borrowed.socket.setSoTimeout(0);
+                nodeStats.recordLatency(server, System.nanoTime() - start);
+                if (length != part.shardLength(index)) {
+                    throw new IOException("Fragment " + shardName + " sur " + server + " : " + length
+                            + " octets au lieu de " + part.shardLength(index));
+                }
+
+                byte[] shard = new byte[shardSize];
+                int offset = 0;
+                while (offset < length) {
+                    if (complete.get() || cancelled) {
+                        abandoned = true;
+                        throw new IOException("Fragment " + shardName + " abandonné");
+                    }
+                    int read = borrowed.in.read(shard, offset, (int) Math.min(BLOCK_SIZE, length - offset));
+                    if (read == -1) {
+                        throw new EOFException("Fragment " + shardName + " tronqué sur " + server);
+                    }
+                    offset += read;
+                }
+                owned = false;
+                nodeConnections.release(borrowed);
+                metrics.counter("transfert_node_bytes_received_total", "node", server).add(length);
+                metrics.histogram("transfert_part_fetch_duration_seconds", "node", server).recordSince(start);
+                return shard;
+            } catch (IOException e) {
+                if (owned) {
+                    nodeConnections.invalidate(borrowed);
+                    if (!abandoned) {
+                        recordNodeFailure(server);
+                    }
+                }
+                throw e;
+            } finally {
+                storageNodes.transferEnded(server);
+            }
+        }
+
+        // Demande la partie à la prochaine copie et, si elle tarde, à la suivante ; retourne la première réponse
+        private Attempt openFirstResponder(Deque<String> candidates) throws IOException, InterruptedException {
+            AtomicBoolean claimed = new AtomicBoolean();
+            // Reprise après les octets déjà transmis, ou début de la plage demandée
+            long offset = fetchStart + delivered;
+            long count = fetchLength < 0 ? -1 : fetchLength - delivered;
+            CompletionService<Attempt> requests = new ExecutorCompletionService<>(transferExecutor);
+            String first = candidates.poll();
+            try {
+                requests.submit(() -> open(first, claimed, offset, count));
+            } catch (RejectedExecutionException e) {
+                throw transfersBusy(e);
+            }
+            int pending = 1;
+
+            Future<Attempt> done = null;
+            if (HEDGE_DELAY_MS > 0 && !candidates.isEmpty()) {
+                done = requests.poll(HEDGE_DELAY_MS, TimeUnit.MILLISECONDS);
+                if (done == null) {
+                    // Sans thread de transfert libre, on se contente de la première demande
+                    String second = candidates.poll();
+                    try {
+                        requests.submit(() -> open(second, claimed, offset, count));
+                        pending++;
+                    } catch (RejectedExecutionException e) {
+                        Log.debug("Demande de secours non lancée", "partie", partName, "erreur", e.getMessage());
+                    }
+                }
+            }
+
+            IOException lastError = null;
+            while (pending > 0) {
+                if (done == null) {
+                    done = requests.take();
+                }
+                pending--;
+                try {
+                    return done.get();
+                } catch (ExecutionException e) {
+                    lastError = e.getCause() instanceof IOException
+                            ? (IOException) e.getCause() : new IOException(e.getCause());
+                }
+                done = null;
+            }
+            throw lastError;
+        }
+
+        // Emprunte une connexion, envoie GET_PART (ou GET_PART_RANGE) et lit l'en-tête ; seule la première réponse est gardée
+        private Attempt open(String server, AtomicBoolean claimed, long offset, long count) throws IOException {
+            long start = System.nanoTime();
+            StorageConnectionPool.Connection borrowed = nodeConnections.borrow(server);
+            boolean owned = true;  // la connexion doit encore être rendue ou fermée ici
+            boolean lost = false;
+            try {
+                borrowed.socket.setSoTimeout(HEADER_TIMEOUT_MS);
+                if (offset == 0 && count < 0) {
+                    borrowed.out.writeUTF("GET_PART");
+                    borrowed.out.writeUTF(partName);
+                } else {
+                    borrowed.out.writeUTF("GET_PART_RANGE");
+                    borrowed.out.writeUTF(partName);
+                    borrowed.out.writeLong(offset);
+                    borrowed.out.writeLong(count);
+                }
+                borrowed.out.flush();
+
+                String response = borrowed.in.readUTF();
+                if (!"PART_FOUND".equals(response)) {
+                    owned = false;
+                    nodeConnections.release(borrowed);
+                    throw new IOException("Partie " + partName + " non trouvée sur " + server);
+                }
+                long partSize = borrowed.in.readLong();
+                borrowed.socket.setSoTimeout(0);
+                nodeStats.recordLatency(server, System.nanoTime() - start);
+
+                if (!claimed.compareAndSet(false, true)) {
+                    // Une autre copie a répondu avant : cette connexion est au milieu d'une partie
+                    lost = true;
+                    throw new IOException("Réponse de " + server + " arrivée après une autre copie");
+                }
+                owned = false;
+                connection.set(borrowed);
+                if (cancelled) {
+                    invalidateConnection();
+                    throw new IOException("Téléchargement annulé : " + partName);
+                }
+                return new Attempt(borrowed, partSize, start);
+            } catch (IOException e) {
+                if (owned) {
+                    nodeConnections.invalidate(borrowed);
+                    if (!lost) {
+                        recordNodeFailure(server);
+                    }
+                }
+                throw e;
+            }
+        }
+
+        private void streamFrom(Attempt attempt) throws IOException, InterruptedException {
+            String server = attempt.connection.server;
+            long partSize = attempt.partSize;
+            if ((expectedSize >= 0 && partSize != expectedSize) || partSize < fetchStart + delivered) {
+                throw new IOException("Partie " + partName + " sur " + server + " : " + partSize
+                        + " octets au lieu de " + expectedSize);
+            }
+            size.complete(part.isCompressed() ? part.size : partSize);
+
+            // Le serveur envoie les octets de fetchStart + delivered jusqu'à la fin de la portion demandée
+            DataInputStream dis = attempt.connection.in;
+            long total = fetchLength < 0 ? partSize - fetchStart : Math.min(fetchLength, partSize - fetchStart);
+            if (delivered == 0) {
+                cacheCopy = fetchStart == 0 && total == partSize && partCache.admits(partSize) ? new byte[(int) partSize] : null;
+            }
+            if (filling && cacheCopy == null) {
+                throw new IOException("Partie " + partName + " sur " + server + " : " + partSize + " octets, trop grande pour le cache");
+            }
+            LongAdder received = metrics.counter("transfert_node_bytes_received_total", "node", server);
+            while (delivered < total) {
+                Block block = takeFreeBlock();
+                int read = dis.read(block.data, 0, (int) Math.min(block.data.length, total - delivered));
+                if (read == -1) {
+                    freeBlocks.add(block);
+                    throw new EOFException("Partie " + partName + " tronquée sur " + server + " : "
+                            + (fetchStart + delivered) + "/" + partSize + " octets");
+                }
+                block.length = read;
+                received.add(read);
+                if (cacheCopy != null) {
+                    System.arraycopy(block.data, 0, cacheCopy, (int) delivered, read);
+                }
+                delivered += read;
+                if (filling) {
+                    // Tout est déjà copié pour le cache
+                    if (digest != null) {
+                        digest.update(block.data, 0, read);
+                    }
+                    freeBlocks.add(block);
+                    continue;
+                }
+                if (digest == null) {
+                    readyBlocks.add(block);
+                    continue;
+                }
+                digest.update(block.data, 0, read);
+                if (held != null) {
+                    readyBlocks.add(held);
+                }
+                held = block;
+            }
+            if (digest != null) {
+                verify(server);
+            }
+        }
+
+        // Compare les sommes de la partie entière à celles du catalogue
+        private void verify(String server) throws IOException {
+            String mismatch = digest.mismatch(part.checksum, part.sha256);
+            if (mismatch == null) {
+                return;
+            }
+            metrics.counter("transfert_parts_corrupt_total", "node", server).increment();
+            Log.warn("Partie corrompue", "partie", partName, "serveur", server, "ecart", mismatch);
+            if (filling || (held != null && delivered == held.length)) {
+                // Rien n'a été transmis : la partie est relue depuis le début sur une autre copie
+                if (held != null) {
+                    freeBlocks.add(held);
+                }
+                held = null;
+                delivered = 0;
+                digest = newDigest();
+            } else {
+                corrupt = true;
+            }
+            throw new IOException("Partie " + partName + " corrompue sur " + server + " : " + mismatch);
+        }
+
+        // Les blocs sont alloués à la demande : une petite partie n'en réserve pas MAX_BUFFERED_BLOCKS
+        private Block takeFreeBlock() throws InterruptedException {
+            Block block = freeBlocks.poll();
+            if (block == null && allocatedBlocks < MAX_BUFFERED_BLOCKS) {
+                allocatedBlocks++;
+                return new Block(BLOCK_SIZE);
+            }
+            return block != null ? block : freeBlocks.take();
+        }
+
+        private void releaseConnection() {
+            StorageConnectionPool.Connection c = connection.getAndSet(null);
+            if (c != null) {
+                nodeConnections.release(c);
+            }
+        }
+
+        private void invalidateConnection() {
+            StorageConnectionPool.Connection c = connection.getAndSet(null);
+            if (c != null) {
+                nodeConnections.invalidate(c);
+            }
+        }
+
+        long awaitSize() throws IOException {
+            try {
+                return size.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Téléchargement interrompu : " + partName);
+            } catch (ExecutionException e) {
+                throw error != null ? error : new IOException(e.getCause());
+            }
+        }
+
+        void copyTo(OutputStream out) throws IOException {
+            if (part.isCompressed()) {
+                inflateTo(out);
+                return;
+            }
+            try {
+                Block block;
+                while ((block = readyBlocks.take()) != Block.END) {
+                    if (block == FAILED) {
+                        throw error;
+                    }
+                    out.write(block.data, block.offset, block.length);
+                    block.release(freeBlocks);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Téléchargement interrompu : " + partName);
+            }
+        }
+
+        private void inflateTo(OutputStream out) throws IOException {
+            Inflater inflater = new Inflater();
+            try {
+                InputStream in = new InflaterInputStream(new ReadyBlocksInput(), inflater, BLOCK_SIZE);
+                // Une lecture jusqu'à la fin décompresse tout le contenu : il est vérifié au passage,
+                // y compris les octets sautés, et le dernier tampon attend le résultat
+                PartDigest content = inflatedStart + inflatedLength == part.size ? newDigest() : null;
+                byte[] buffer = new byte[BLOCK_SIZE];
+                long skipped = 0;
+                while (skipped < inflatedStart) {
+                    int read = in.read(buffer, 0, (int) Math.min(buffer.length, inflatedStart - skipped));
+                    if (read == -1) {
+                        throw new EOFException("Partie compressée " + partName + " tronquée");
+                    }
+                    if (content != null) {
+                        content.update(buffer, 0, read);
+                    }
+                    skipped += read;
+                }
+                byte[] pending = new byte[BLOCK_SIZE];
+                int pendingLength = 0;
+                long remaining = inflatedLength;
+                while (remaining > 0) {
+                    int read = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                    if (read == -1) {
+                        throw new EOFException("Partie compressée " + partName + " tronquée");
+                    }
+                    if (content != null) {
+                        content.update(buffer, 0, read);
+                    }
+                    out.write(pending, 0, pendingLength);
+                    byte[] written = pending;
+                    pending = buffer;
+                    buffer = written;
+                    pendingLength = read;
+                    remaining -= read;
+                }
+                String mismatch = content != null ? content.mismatch(part.checksum, part.sha256) : null;
+                if (mismatch != null) {
+                    partCache.invalidate(partName);
+                    Log.warn("Partie compressée corrompue", "partie", partName, "ecart", mismatch);
+                    throw new IOException("Partie " + partName + " corrompue : " + mismatch);
+                }
+                out.write(pending, 0, pendingLength);
+            } finally {
+                inflater.end();
+            }
+        }
+
+        // Octets compressés de la partie, pris dans readyBlocks au fur et à mesure de leur arrivée
+        private class ReadyBlocksInput extends InputStream {
+            private Block current;
+            private int position;
+
+            @Override
+            public int read() throws IOException {
+                byte[] single = new byte[1];
+                return read(single, 0, 1) == -1 ? -1 : single[0] & 0xFF;
+            }
+
+            @Override
+            public int read(byte[] target, int offset, int length) throws IOException {
+                try {
+                    while (current == null || position == current.length) {
+                        if (current != null) {
+                            current.release(freeBlocks);
+                        }
+                        current = readyBlocks.take();
+                        position = 0;
+                        if (current == Block.END) {
+                            readyBlocks.add(Block.END);
+                            current = null;
+                            return -1;
+                        }
+                        if (current == FAILED) {
+                            current = null;
+                            throw error;
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Téléchargement interrompu : " + partName);
+                }
+                int count = Math.min(length, current.length - position);
+                System.arraycopy(current.data, current.offset + position, target, offset, count);
+                position += count;
+                return count;
+            }
+        }
+
+        void cancel() {
+            cancelled = true;
+            if (future != null) {
+                future.cancel(true);
+            }
+            // Fermer la connexion débloque une lecture en cours ; une partie déjà lue a rendu la sienne
+            invalidateConnection();
+        }
+    }
+
+    static class Block {
+        static final Block END = new Block(0);
+
+        final byte[] data;
+        final int offset;
+        int length;
+        // Nombre d'envois qui doivent encore écrire ce bloc (une copie par serveur)
+        final AtomicInteger references = new AtomicInteger();
+        // Bloc hors réserve (parité, fragment reconstruit) : appelé au lieu de rendre le bloc
+        private final Runnable onRelease;
+
+        Block(int capacity) {
+            this.data = new byte[capacity];
+            this.offset = 0;
+            this.onRelease = null;
+        }
+
+        Block(byte[] data, int offset, int length, Runnable onRelease) {
+            this.data = data;
+            this.offset = offset;
+            this.length = length;
+            this.onRelease = onRelease;
+        }
+
+        void release(BlockingQueue<Block> freeBlocks) throws InterruptedException {
+            if (references.decrementAndGet() <= 0) {
+                if (onRelease == null) {
+                    freeBlocks.put(this);
+                } else {
+                    onRelease.run();
+                }
+            }
+        }
+    }
+
+    /**
+     * Rééquilibrage en tâche de fond : toutes les transfert.rebalance.intervalSeconds secondes
+     * (60), chaque partie du catalogue est comparée à la disposition voulue.
+     *   - Une partie qui a moins de transfert.replication copies sur des serveurs joignables
+     *     reçoit de nouvelles copies, lues sur une copie restante. Un serveur injoignable depuis
+     *     moins de transfert.rebalance.lostAfterSeconds (600) compte encore : une courte panne ne
+     *     déclenche pas de copie.
+     *   - Les copies des serveurs retirés de config.txt sont déplacées vers les autres serveurs.
+     *   - Les fragments perdus d'une partie codée par effacement sont reconstruits à partir des
+     *     autres fragments.
+     *   - Les parties répliquées passent des serveurs les plus remplis aux moins remplis, jusqu'à
+     *     ce que chacun soit à transfert.rebalance.tolerance (10 %) près de la moyenne. Un serveur
+     *     ajouté reçoit ainsi sa part des fichiers existants.
+     * Toutes les copies passent par un seul thread, à au plus transfert.rebalance.bytesPerSecond
+     * octets par seconde (4 Mo/s par défaut, 0 pour désactiver) : les envois et téléchargements
+     * des clients gardent le reste de la bande passante. Une copie remplacée n'est supprimée
+     * qu'après transfert.rebalance.deleteDelaySeconds (60), pour les téléchargements qui lisent
+     * encore l'ancienne version du catalogue.
+     */
+    static class Rebalancer implements Runnable {
+        private final long bytesPerSecond;
+        private final long intervalMs;
+        private final long lostAfterMs;
+        private final double tolerance;
+        private final long deleteDelaySeconds;
+        private final ScheduledExecutorService deletions = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "reequilibrage-suppressions");
+            thread.setDaemon(true);
+            return thread;
+        });
+        private final LongAdder copiedBytes = metrics.counter("transfert_rebalance_bytes_total");
+        private volatile int underReplicated;
+        // Bilan de la passe en cours, tenu par le seul thread de rééquilibrage
+        private int replicated;
+        private int rebuilt;
+        private int drained;
+        private int moved;
+        private int pendingUnderReplicated;
+
+        Rebalancer(long bytesPerSecond, long intervalMs, long lostAfterMs, double tolerance, long deleteDelaySeconds) {
+            this.bytesPerSecond = bytesPerSecond;
+            this.intervalMs = intervalMs;
+            this.lostAfterMs = lostAfterMs;
+            this.tolerance = tolerance;
+            this.deleteDelaySeconds = deleteDelaySeconds;
+        }
+
+        static Rebalancer fromSystemProperties() {
+            long bytesPerSecond = Long.getLong("transfert.rebalance.bytesPerSecond", 4L * 1024 * 1024);
+            if (bytesPerSecond <= 0) {
+                return null;
+            }
+            return new Rebalancer(bytesPerSecond,
+                    Math.max(1, Long.getLong("transfert.rebalance.intervalSeconds", 60)) * 1000,
+                    Long.getLong("transfert.rebalance.lostAfterSeconds", 600) * 1000,
+                    Double.parseDouble(System.getProperty("transfert.rebalance.tolerance", "0.1")),
+                    Long.getLong("transfert.rebalance.deleteDelaySeconds", 60));
+        }
+
+        void start() {
+            metrics.gauge("transfert_parts_under_replicated", () -> underReplicated);
+            Thread thread = new Thread(this, "reequilibrage");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                try {
+                    Thread.sleep(intervalMs);
+                    rebalance();
+                } catch (InterruptedException e) {
+                    return;
+                } catch (RuntimeException e) {
+                    Log.warn("Erreur du rééquilibrage", "erreur", e);
+                }
+            }
+        }
+
+        void rebalance() throws InterruptedException {
+            long start = System.currentTimeMillis();
+            long bytesBefore = copiedBytes.sum();
+            replicated = rebuilt = drained = moved = pendingUnderReplicated = 0;
+
+            // Fichiers qui référencent chaque partie ; ceux dont la liste de serveurs est en
+            // retard sur le catalogue (version enregistrée pendant un déplacement) sont rattrapés
+            Map<String, List<String>> filesByPart = new LinkedHashMap<>();
+            Set<String> stale = new HashSet<>();
+            for (String fileName : catalog.fileNames()) {
+                FileCatalog.FileEntry entry = catalog.get(fileName);
+                if (entry == null) {
+                    continue;
+                }
+                for (FileCatalog.PartEntry part : entry.parts) {
+                    filesByPart.computeIfAbsent(part.partName, name -> new ArrayList<>()).add(fileName);
+                    FileCatalog.PartEntry current = catalog.part(part.partName);
+                    if (current != null && !current.servers.equals(part.servers)) {
+                        stale.add(part.partName);
+                    }
+                }
+            }
+
+            int replicas = Math.max(1, Math.min(REPLICATION, storageNodes.placeableAddresses().size()));
+            for (Map.Entry<String, List<String>> entry : filesByPart.entrySet()) {
+                FileCatalog.PartEntry part = catalog.part(entry.getKey());
+                if (part == null) {
+                    continue;
+                }
+                boolean updated = part.isErasureCoded()
+                        ? repairShards(part, entry.getValue())
+                        : repairReplicas(part, entry.getValue(), replicas);
+                if (!updated && stale.contains(part.partName)) {
+                    update(part, entry.getValue());
+                }
+            }
+            underReplicated = pendingUnderReplicated;
+            balance(filesByPart);
+
+            long bytes = copiedBytes.sum() - bytesBefore;
+            boolean active = bytes > 0 || drained > 0 || pendingUnderReplicated > 0;
+            if (active || Log.enabled(Log.Level.DEBUG)) {
+                Object[] fields = {"parties", filesByPart.size(), "copies", replicated, "fragments_reconstruits", rebuilt,
+                        "copies_retirees", drained, "deplacees", moved, "sous_repliquees", pendingUnderReplicated,
+                        "octets", bytes, "ms", System.currentTimeMillis() - start};
+                if (active) {
+                    Log.info("Rééquilibrage terminé", fields);
+                } else {
+                    Log.debug("Rééquilibrage terminé", fields);
+                }
+            }
+        }
+
+        // Rétablit le nombre de copies d'une partie répliquée ; retourne true si le catalogue a été mis à jour
+        private boolean repairReplicas(FileCatalog.PartEntry part, List<String> files, int replicas) throws InterruptedException {
+            List<String> kept = new ArrayList<>();  // copies joignables ou brièvement injoignables
+            List<String> sources = new ArrayList<>();
+            List<String> removed = new ArrayList<>();
+            boolean lost = false;
+            for (String server : new LinkedHashSet<>(part.servers)) {
+                switch (storageNodes.health(server, lostAfterMs)) {
+                    case AVAILABLE:
+                        kept.add(server);
+                        sources.add(server);
+                        break;
+                    case UNREACHABLE:
+                        kept.add(server);
+                        break;
+                    case LOST:
+                        lost = true;
+                        break;
+                    case REMOVED:
+                        removed.add(server);
+                        break;
+                    default:
+                        break;
+                }
+            }
+            sources.addAll(removed);
+            if (kept.size() >= replicas && removed.isEmpty() && !lost) {
+                return false;
+            }
+            if (sources.isEmpty()) {
+                pendingUnderReplicated++;
+                Log.warn("Aucune copie lisible, partie non réparée", "partie", part.partName, "serveurs", part.joinedServers());
+                return false;
+            }
+
+            List<String> servers = new ArrayList<>(kept);
+            if (servers.size() < replicas) {
+                for (String destination : storageNodes.select(replicas - servers.size(), part.servers)) {
+                    if (copy(part.partName, part.storedSize(), sources, destination, part)) {
+                        servers.add(destination);
+                        replicated++;
+                    }
+                }
+            }
+            // Un serveur retiré reste dans la liste tant qu'il manque des copies ailleurs
+            List<String> dropped = new ArrayList<>();
+            for (String server : removed) {
+                if (servers.size() < replicas) {
+                    servers.add(server);
+                } else {
+                    dropped.add(server);
+                }
+            }
+            if (servers.size() < replicas) {
+                pendingUnderReplicated++;
+            }
+            if (servers.isEmpty() || servers.equals(part.servers)) {
+                return false;
+            }
+            if (!update(part.withServers(servers), files)) {
+                return false;
+            }
+            for (String server : dropped) {
+                deleteLater(part.partName, -1, server);
+                drained++;
+            }
+            return true;
+        }
+
+        // Recrée ailleurs les fragments perdus ou placés sur un serveur retiré
+        private boolean repairShards(FileCatalog.PartEntry part, List<String> files) throws InterruptedException {
+            int total = part.dataShards + part.parityShards;
+            List<String> servers = new ArrayList<>(part.servers);
+            while (servers.size() < total) {
+                servers.add(FileCatalog.PartEntry.MISSING_SHARD);
+            }
+            Map<Integer, String> replaced = new LinkedHashMap<>();
+            byte[][] shards = null;
+            boolean missing = false;
+            for (int i = 0; i < total; i++) {
+                String server = servers.get(i);
+                StorageNodes.Health health = FileCatalog.PartEntry.MISSING_SHARD.equals(server)
+                        ? StorageNodes.Health.LOST : storageNodes.health(server, lostAfterMs);
+                if (health == StorageNodes.Health.AVAILABLE || health == StorageNodes.Health.UNREACHABLE) {
+                    continue;
+                }
+                missing = true;
+                // Un autre serveur que ceux des autres fragments si possible
+                List<String> destinations = storageNodes.select(1, servers);
+                if (destinations.isEmpty()) {
+                    destinations = storageNodes.select(1, Collections.emptyList());
+                }
+                if (destinations.isEmpty()) {
+                    continue;
+                }
+                String destination = destinations.get(0);
+                String shardName = part.shardName(i);
+                boolean stored = health == StorageNodes.Health.REMOVED
+                        && copy(shardName, part.shardLength(i), Collections.singletonList(server), destination, null);
+                if (!stored) {
+                    if (shards == null) {
+                        shards = reconstruct(part);
+                        if (shards == null) {
+                            break;
+                        }
+                    }
+                    stored = write(destination, shardName, shards[i], (int) part.shardLength(i));
+                    if (stored) {
+                        rebuilt++;
+                    }
+                }
+                if (stored) {
+                    if (health == StorageNodes.Health.REMOVED) {
+                        replaced.put(i, server);
+                    }
+                    servers.set(i, destination);
+                }
+            }
+            if (missing && servers.equals(part.servers)) {
+                pendingUnderReplicated++;
+            }
+            if (servers.equals(part.servers) || !update(part.withServers(servers), files)) {
+                return false;
+            }
+            for (Map.Entry<Integer, String> old : replaced.entrySet()) {
+                deleteLater(part.partName, old.getKey(), old.getValue());
+                drained++;
+            }
+            return true;
+        }
+
+        // Lit k fragments, vérifie le contenu et recalcule tous les fragments ; null en cas d'échec
+        private byte[][] reconstruct(FileCatalog.PartEntry part) throws InterruptedException {
+            long start = System.nanoTime();
+            int shardSize = (int) part.shardSize();
+            try {
+                byte[][] shards = new PartFetcher(part, 0, -1).fetchShards();
+                boolean sha256 = PartDigest.SHA256 && part.sha256 != null;
+                PartDigest digest = part.checksum >= 0 || sha256 ? new PartDigest(sha256) : null;
+                if (digest != null) {
+                    for (int d = 0; d < part.dataShards; d++) {
+                        digest.update(shards[d], 0, (int) part.shardLength(d));
+                    }
+                    String mismatch = digest.mismatch(part.checksum, part.sha256);
+                    if (mismatch != null) {
+                        throw new IOException("partie reconstruite corrompue : " + mismatch);
+                    }
+                }
+                byte[][] all = new byte[part.dataShards + part.parityShards][];
+                for (int i = 0; i < all.length; i++) {
+                    all[i] = i < part.dataShards ? shards[i] : new byte[shardSize];
+                }
+                codecFor(part.dataShards, part.parityShards).encode(all, shardSize);
+                pace(start, (long) part.dataShards * shardSize);
+                return all;
+            } catch (IOException e) {
+                Log.warn("Reconstruction impossible", "partie", part.partName, "erreur", e.getMessage());
+                return null;
+            }
+        }
+
+        /**
+         * Déplace des parties répliquées des serveurs les plus remplis vers les moins remplis.
+         * Seules les parties dont toutes les copies sont joignables sont déplacées, et jamais
+         * au point d'inverser l'écart entre les deux serveurs.
+         */
+        private void balance(Map<String, List<String>> filesByPart) throws InterruptedException {
+            List<String> nodes = storageNodes.placeableAddresses();
+            if (nodes.size() < 2) {
+                return;
+            }
+            Map<String, Long> stored = new HashMap<>();
+            for (String node : nodes) {
+                stored.put(node, 0L);
+            }
+            Map<String, List<FileCatalog.PartEntry>> movable = new HashMap<>();
+            long total = 0;
+            for (String partName : filesByPart.keySet()) {
+                FileCatalog.PartEntry part = catalog.part(partName);
+                if (part == null) {
+                    continue;
+                }
+                if (part.isErasureCoded()) {
+                    for (int i = 0; i < part.servers.size(); i++) {
+                        if (stored.containsKey(part.servers.get(i))) {
+                            stored.merge(part.servers.get(i), part.shardLength(i), Long::sum);
+                            total += part.shardLength(i);
+                        }
+                    }
+                    continue;
+                }
+                boolean healthy = true;
+                for (String server : part.servers) {
+                    healthy &= storageNodes.health(server, lostAfterMs) == StorageNodes.Health.AVAILABLE;
+                }
+                for (String server : new LinkedHashSet<>(part.servers)) {
+                    if (stored.containsKey(server)) {
+                        stored.merge(server, part.storedSize(), Long::sum);
+                        total += part.storedSize();
+                        if (healthy) {
+                            movable.computeIfAbsent(server, s -> new ArrayList<>()).add(part);
+                        }
+                    }
+                }
+            }
+            double mean = (double) total / nodes.size();
+            List<String> fullest = new ArrayList<>(nodes);
+            fullest.sort(Comparator.comparingLong(stored::get).reversed());
+            for (String from : fullest) {
+                for (FileCatalog.PartEntry part : movable.getOrDefault(from, Collections.emptyList())) {
+                    if (stored.get(from) <= mean * (1 + tolerance)) {
+                        break;
+                    }
+                    long size = part.storedSize();
+                    String to = null;
+                    for (String node : nodes) {
+                        if (!part.servers.contains(node) && stored.get(node) < mean * (1 - tolerance)
+                                && (to == null || stored.get(node) < stored.get(to))) {
+                            to = node;
+                        }
+                    }
+                    if (to == null || stored.get(to) + size > stored.get(from) - size) {
+                        continue;
+                    }
+                    FileCatalog.PartEntry current = catalog.part(part.partName);
+                    if (current == null || !current.servers.equals(part.servers)
+                            || !copy(part.partName, size, Collections.singletonList(from), to, part)) {
+                        continue;
+                    }
+                    List<String> servers = new ArrayList<>(current.servers);
+                    servers.set(servers.indexOf(from), to);
+                    if (update(current.withServers(servers), filesByPart.get(part.partName))) {
+                        deleteLater(part.partName, -1, from);
+                        stored.merge(from, -size, Long::sum);
+                        stored.merge(to, size, Long::sum);
+                        moved++;
+                    }
+                }
+            }
+        }
+
+        // Enregistre la nouvelle liste de serveurs ; si plus aucun fichier n'utilise la partie, les nouvelles copies sont supprimées
+        private boolean update(FileCatalog.PartEntry updated, List<String> files) {
+            try {
+                if (catalog.replacePart(files, updated) > 0) {
+                    return true;
+                }
+            } catch (IOException e) {
+                Log.warn("Erreur lors de la mise à jour du catalogue", "partie", updated.partName, "erreur", e.getMessage());
+            }
+            FileCatalog.PartEntry current = catalog.part(updated.partName);
+            for (int i = 0; i < updated.servers.size(); i++) {
+                String server = updated.servers.get(i);
+                String storedName = updated.isErasureCoded() ? updated.shardName(i) : updated.partName;
+                boolean referenced = current != null && (updated.isErasureCoded()
+                        ? i < current.servers.size() && server.equals(current.servers.get(i))
+                        : current.servers.contains(server));
+                if (!referenced && !FileCatalog.PartEntry.MISSING_SHARD.equals(server)) {
+                    deletePartFromSecondaryServer(storedName, server);
+                }
+            }
+            return false;
+        }
+
+        // Supprime plus tard la copie (ou le fragment shard, -1 pour une partie répliquée) laissée sur server,
+        // sauf si le catalogue l'y a remise entre-temps
+        private void deleteLater(String partName, int shard, String server) {
+            deletions.schedule(() -> {
+                FileCatalog.PartEntry current = catalog.part(partName);
+                boolean referenced = current != null && (shard < 0
+                        ? current.servers.contains(server)
+                        : shard < current.servers.size() && server.equals(current.servers.get(shard)));
+                if (!referenced) {
+                    deletePartFromSecondaryServer(shard < 0 ? partName : partName + ".s" + shard, server);
+                }
+            }, deleteDelaySeconds, TimeUnit.SECONDS);
+        }
+
+        // Copie storedName depuis la première source qui l'a ; part permet de vérifier une partie répliquée non compressée
+        private boolean copy(String storedName, long length, List<String> sources, String destination,
+                             FileCatalog.PartEntry part) throws InterruptedException {
+            for (String source : sources) {
+                if (source.equals(destination)) {
+                    continue;
+                }
+                try {
+                    transfer(storedName, length, source, destination, part);
+                    return true;
+                } catch (IOException e) {
+                    Log.warn("Copie impossible", "partie", storedName, "source", source, "destination", destination,
+                            "erreur", e.getMessage());
+                }
+            }
+            return false;
+        }
+
+        private void transfer(String storedName, long length, String source, String destination,
+                              FileCatalog.PartEntry part) throws IOException, InterruptedException {
+            StorageConnectionPool.Connection from = nodeConnections.borrow(source);
+            StorageConnectionPool.Connection to = null;
+            boolean fromReusable = false;
+            boolean toReusable = false;
+            storageNodes.transferStarted(source);
+            storageNodes.transferStarted(destination);
+            try {
+                from.socket.setSoTimeout(HEADER_TIMEOUT_MS);
+                from.out.writeUTF("GET_PART");
+                from.out.writeUTF(storedName);
+                from.out.flush();
+                if (!"PART_FOUND".equals(from.in.readUTF())) {
+                    fromReusable = true;
+                    throw new IOException("non trouvée sur " + source);
+                }
+                long size = from.in.readLong();
+                if (size != length) {
+                    throw new IOException(size + " octets sur " + source + " au lieu de " + length);
+                }
+
+                boolean sha256 = part != null && PartDigest.SHA256 && part.sha256 != null;
+                boolean verify = part != null && !part.isErasureCoded() && !part.isCompressed() && (part.checksum >= 0 || sha256);
+                PartDigest digest = verify ? new PartDigest(sha256) : null;
+                LongAdder received = metrics.counter("transfert_node_bytes_received_total", "node", source);
+                LongAdder sent = metrics.counter("transfert_node_bytes_sent_total", "node", destination);
+                to = nodeConnections.borrow(destination);
+                to.out.writeUTF("store");
+                to.out.writeUTF(storedName);
+                to.out.writeLong(length);
+                byte[] buffer = new byte[BLOCK_SIZE];
+                long start = System.nanoTime();
+                long copied = 0;
+                while (copied < length) {
+                    int read = from.in.read(buffer, 0, (int) Math.min(buffer.length, length - copied));
+                    if (read == -1) {
+                        throw new EOFException("tronquée sur " + source);
+                    }
+                    if (digest != null) {
+                        digest.update(buffer, 0, read);
+                    }
+                    to.out.write(buffer, 0, read);
+                    copied += read;
+                    received.add(read);
+                    sent.add(read);
+                    copiedBytes.add(read);
+                    pace(start, copied);
+                }
+                from.socket.setSoTimeout(0);
+                fromReusable = true;
+                to.out.flush();
+                String response = to.in.readUTF();
+                toReusable = true;
+                if (response.startsWith("Erreur")) {
+                    throw new IOException(destination + " : " + response);
+                }
+                String mismatch = digest != null ? digest.mismatch(part.checksum, part.sha256) : null;
+                if (mismatch != null) {
+                    deletePartFromSecondaryServer(storedName, destination);
+                    throw new IOException("copie corrompue sur " + source + " : " + mismatch);
+                }
+            } finally {
+                if (fromReusable) {
+                    nodeConnections.release(from);
+                } else {
+                    nodeConnections.invalidate(from);
+                }
+                if (to != null) {
+                    if (toReusable) {
+                        nodeConnections.release(to);
+                    } else {
+                        nodeConnections.invalidate(to);
+                    }
+                }
+                storageNodes.transferEnded(source);
+                storageNodes.transferEnded(destination);
+            }
+        }
+
+        // Écrit un fragment reconstruit
+        private boolean write(String destination, String storedName, byte[] data, int length) throws InterruptedException {
+            StorageConnectionPool.Connection to = null;
+            boolean reusable = false;
+            storageNodes.transferStarted(destination);
+            try {
+                to = nodeConnections.borrow(destination);
+                to.out.writeUTF("store");
+                to.out.writeUTF(storedName);
+                to.out.writeLong(length);
+                LongAdder sent = metrics.counter("transfert_node_bytes_sent_total", "node", destination);
+                long start = System.nanoTime();
+                for (int offset = 0; offset < length; offset += BLOCK_SIZE) {
+                    int count = Math.min(BLOCK_SIZE, length - offset);
+                    to.out.write(data, offset, count);
+                    sent.add(count);
+                    copiedBytes.add(count);
+                    pace(start, offset + count);
+                }
+                to.out.flush();
+                String response = to.in.readUTF();
+                reusable = true;
+                if (response.startsWith("Erreur")) {
+                    throw new IOException(response);
+                }
+                return true;
+            } catch (IOException e) {
+                Log.warn("Écriture du fragment impossible", "partie", storedName, "destination", destination,
+                        "erreur", e.getMessage());
+                return false;
+            } finally {
+                if (to != null) {
+                    if (reusable) {
+                        nodeConnections.release(to);
+                    } else {
+                        nodeConnections.invalidate(to);
+                    }
+                }
+                storageNodes.transferEnded(destination);
+            }
+        }
+
+        // Attend si la copie en cours (commencée à startNanos) a dépassé le débit autorisé
+        private void pace(long startNanos, long bytes) throws InterruptedException {
+            long aheadMs = bytes * 1000 / bytesPerSecond - (System.nanoTime() - startNanos) / 1_000_000;
+            if (aheadMs > 0) {
+                Thread.sleep(aheadMs);
             }
         }
     }
@@ -1,118 +1,470 @@
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Set;
 
 public class ServeurSecondaire {
     private static int port = 5002;  // Le port sur lequel le serveur secondaire écoute pour recevoir des fichiers
+    private static File storageDir = new File("storage");  // Répertoire contenant les parties
+
+    // Transfert direct noyau-à-noyau (sendfile) ; désactivable avec -Dtransfert.zeroCopy=false
+    static boolean zeroCopy = Boolean.parseBoolean(System.getProperty("transfert.zeroCopy", "true"));
+    // Taille du tampon utilisé quand le transfert direct n'est pas possible
+    static final int COPY_BUFFER_SIZE = 256 * 1024;
+    // Vérification des jetons des clients qui lisent et écrivent directement (null : accès direct refusé)
+    private static final AccessToken accessTokens = AccessToken.fromSystemProperties();
+    // Relecture complète et comparaison au fichier .sum avant une lecture directe d'un client, au
+    // plus une fois tant que la partie ne change pas (voir PartScrubber.verify) ; désactivable avec
+    // -Dtransfert.checksum.verifyOnRead=false, la taille restant alors seule vérifiée. Le serveur
+    // principal vérifie lui-même les sommes au fil de ses lectures : seule la taille est vérifiée pour lui
+    static boolean verifyOnRead = Boolean.parseBoolean(System.getProperty("transfert.checksum.verifyOnRead", "true"));
+    // Adresse signée dans les reçus d'écriture directe, celle de config.txt ; par défaut l'adresse locale de la connexion
+    private static final String advertisedAddress = System.getProperty("transfert.node.address");
+    // Commandes réservées au serveur principal quand un secret partagé est configuré (voir AUTH)
+    private static final Set<String> COORDINATOR_COMMANDS = Set.of("store", "GET_PART", "GET_PART_RANGE", "DELETE_PART");
+    // Compteurs et durées exposés par HTTP et JMX (voir Metrics), communs aux serveurs d'une même JVM
+    static final Metrics metrics = new Metrics();
+    // Commandes mesurées sous leur nom ; les autres le sont sous "unknown"
+    private static final Set<String> COMMANDS =
+            Set.of("store", "GET_PART", "GET_PART_RANGE", "DIRECT_GET", "DIRECT_STORE", "DELETE_PART", "PING", "STATUS");
 
     public static void main(String[] args) {
-        System.out.println("Démarrage du serveur secondaire...");
+        if (args.length > 0) {
+            port = Integer.parseInt(args[0]);
+        }
+        if (args.length > 1) {
+            storageDir = new File(args[1]);
+        }
+        Log.info("Démarrage du serveur secondaire", "port", port, "stockage", storageDir);
 
         // Lancement du serveur dans un thread séparé
         new Thread(() -> startServer()).start();
     }
 
     private static void startServer() {
-        try (ServerSocket serverSocket = new ServerSocket(port)) {
-            System.out.println("Serveur secondaire démarré sur le port " + port + ".");
-
-            while (true) {
-                Socket clientSocket = serverSocket.accept();
-                new FileReceiveHandler(clientSocket).start();
+        try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+            serverChannel.bind(new InetSocketAddress(port));
+            Log.info("Serveur secondaire démarré", "port", port);
+            ConnectionExecutor connections = ConnectionExecutor.fromSystemProperties("Serveur secondaire");
+            connections.startReporting();
+            connections.registerMetrics(metrics);
+            metrics.gauge("transfert_log_dropped_total", Log::dropped);
+            metrics.publish("secondaire:" + port);
+            PartScrubber scrubber = PartScrubber.fromSystemProperties(storageDir);
+            if (scrubber != null) {
+                scrubber.start();
             }
+            serve(serverChannel, storageDir, connections);
         } catch (IOException e) {
-            System.out.println("Erreur du serveur secondaire : " + e.getMessage());
+            Log.warn("Erreur du serveur secondaire", "port", port, "erreur", e.getMessage());
+        }
+    }
+
+    static void serve(ServerSocketChannel serverChannel, File storageDir, ConnectionExecutor connections) throws IOException {
+        while (true) {
+            SocketChannel clientChannel = serverChannel.accept();
+            // En-têtes et octets des parties partent en écritures séparées : sans ce réglage,
+            // l'algorithme de Nagle retient la deuxième jusqu'à l'accusé de réception différé (~40 ms)
+            clientChannel.socket().setTcpNoDelay(true);
+            connections.submit(clientChannel, new FileReceiveHandler(clientChannel, storageDir, connections));
         }
     }
 
-    static class FileReceiveHandler extends Thread {
-        private Socket clientSocket;
+    /**
+     * Copie count octets du canal vers le fichier à partir de la position 0.
+     * transferFrom n'est utilisé que depuis un autre FileChannel : depuis une socket, le JDK
+     * le réalise avec un tampon intermédiaire de 8 Ko, plus lent qu'une lecture directe dans
+     * un grand tampon hors tas. La lecture manuelle permet aussi de détecter la fin du flux.
+     */
+    static void copyToFile(ReadableByteChannel in, FileChannel out, long count) throws IOException {
+        copyToFile(in, out, count, null);
+    }
 
-        public FileReceiveHandler(Socket clientSocket) {
-            this.clientSocket = clientSocket;
+    // Même copie, en calculant au passage les sommes des octets reçus (checksum null : aucun calcul)
+    static void copyToFile(ReadableByteChannel in, FileChannel out, long count, PartDigest checksum) throws IOException {
+        ByteBuffer buffer = null;
+        long position = 0;
+        while (position < count) {
+            long transferred = (zeroCopy && checksum == null && in instanceof FileChannel)
+                    ? out.transferFrom(in, position, count - position) : 0;
+            if (transferred == 0) {
+                if (buffer == null) {
+                    buffer = ByteBuffer.allocateDirect(COPY_BUFFER_SIZE);
+                }
+                buffer.clear().limit((int) Math.min(buffer.capacity(), count - position));
+                int read = in.read(buffer);
+                if (read == -1) {
+                    throw new EOFException("Flux interrompu après " + position + "/" + count + " octets");
+                }
+                buffer.flip();
+                if (checksum != null) {
+                    checksum.update(buffer);
+                }
+                while (buffer.hasRemaining()) {
+                    transferred += out.write(buffer, position + transferred);
+                }
+            }
+            position += transferred;
+        }
+    }
+
+    /**
+     * Envoie count octets du fichier, à partir de offset, vers le canal. Si le transport ne
+     * permet pas sendfile (transferTo ne progresse plus), on bascule sur une copie par tampon.
+     */
+    static void copyFromFile(FileChannel in, long offset, long count, WritableByteChannel out) throws IOException {
+        ByteBuffer buffer = null;
+        long position = 0;
+        while (position < count) {
+            long transferred = zeroCopy ? in.transferTo(offset + position, count - position, out) : 0;
+            if (transferred == 0) {
+                if (buffer == null) {
+                    buffer = ByteBuffer.allocateDirect(COPY_BUFFER_SIZE);
+                }
+                buffer.clear().limit((int) Math.min(buffer.capacity(), count - position));
+                int read = in.read(buffer, offset + position);
+                if (read == -1) {
+                    throw new EOFException("Fichier tronqué après " + position + "/" + count + " octets");
+                }
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    transferred += out.write(buffer);
+                }
+            }
+            position += transferred;
+        }
+    }
+
+    static class FileReceiveHandler implements Runnable {
+        private final SocketChannel clientChannel;
+        private final File storageDir;
+        // Exécute aussi les requêtes d'une connexion passée en trames
+        private final ConnectionExecutor connections;
+        // Sans secret partagé, toute connexion a les droits du serveur principal
+        private boolean coordinator = accessTokens == null;
+
+        public FileReceiveHandler(SocketChannel clientChannel, File storageDir, ConnectionExecutor connections) {
+            this.clientChannel = clientChannel;
+            this.storageDir = storageDir;
+            this.connections = connections;
         }
 
         @Override
         public void run() {
+            // Les en-têtes passent par des flux sans tampon de lecture anticipée : après readUTF
+            // ou readLong, la position du canal est exactement au début des données du fichier.
             try (
-                DataInputStream dis = new DataInputStream(clientSocket.getInputStream());
-                DataOutputStream dos = new DataOutputStream(clientSocket.getOutputStream());
+                SocketChannel channel = clientChannel;
+                DataInputStream dis = new DataInputStream(Channels.newInputStream(channel));
+                DataOutputStream dos = new DataOutputStream(Channels.newOutputStream(channel));
             ) {
-                String command = dis.readUTF();
-
-                if ("store".equals(command)) {
-                    receiveFile(dis, dos);
-                } else if ("GET_PART".equals(command)) {
-                    handleGetPart(dis, dos);
-                } else if ("DELETE_PART".equals(command)) {
-                    handleDeletePart(dis, dos);
-                } else {
-                    dos.writeUTF("Commande non reconnue");
-                }
+                // Une connexion peut enchaîner plusieurs commandes ; elle se termine quand le
+                // serveur principal la ferme, ou après une erreur qui laisse le flux désynchronisé.
+                boolean open = true;
+                while (open) {
+                    String command;
+                    try {
+                        command = dis.readUTF();
+                    } catch (EOFException e) {
+                        break;
+                    }
 
+                    if ("FRAMED".equals(command)) {
+                        // Lecture et écritures ont lieu en même temps : les flux de Channels
+                        // prennent tous deux le verrou du canal bloquant, pas ceux de la socket.
+                        // Chaque requête a ses propres flux ; les octets des parties y passent
+                        // aussi, par des canaux qui les enveloppent.
+                        int version = dis.readInt();
+                        Socket socket = channel.socket();
+                        FramedSession.serve(version, new DataInputStream(socket.getInputStream()),
+                                new DataOutputStream(socket.getOutputStream()),
+                                (operation, in, out) -> dispatch(operation, in, out, Channels.newChannel(in), Channels.newChannel(out)),
+                                connections);
+                        open = false;
+                    } else if ("AUTH".equals(command)) {
+                        open = authenticate(dis, dos);
+                    } else {
+                        open = dispatch(command, dis, dos, channel, channel);
+                    }
+                }
             } catch (IOException e) {
-                System.out.println("Erreur avec le client : " + e.getMessage());
+                Log.debug("Connexion terminée sur erreur", "erreur", e.getMessage());
+            }
+        }
+
+        // Les octets des parties passent directement par in et out ; retourne false si le flux
+        // est désynchronisé et que la connexion doit être fermée
+        private boolean dispatch(String command, DataInputStream dis, DataOutputStream dos,
+                                 ReadableByteChannel in, WritableByteChannel out) throws IOException {
+            long start = System.nanoTime();
+            try {
+                return execute(command, dis, dos, in, out);
+            } finally {
+                metrics.histogram("transfert_command_duration_seconds", "command",
+                        COMMANDS.contains(command) ? command : "unknown").recordSince(start);
+            }
+        }
+
+        /**
+         * AUTH → AUTH_OK sans secret partagé ; sinon CHALLENGE et un défi aléatoire, auquel le
+         * serveur principal répond par sa signature → AUTH_OK, ou ACCES_REFUSE et la connexion
+         * est fermée. Une connexion authentifiée peut utiliser store, GET_PART, GET_PART_RANGE
+         * et DELETE_PART ; les clients n'ont que DIRECT_GET et DIRECT_STORE, avec un jeton.
+         */
+        private boolean authenticate(DataInputStream dis, DataOutputStream dos) throws IOException {
+            if (accessTokens == null) {
+                dos.writeUTF("AUTH_OK");
+                return true;
+            }
+            String challenge = accessTokens.challenge();
+            dos.writeUTF("CHALLENGE");
+            dos.writeUTF(challenge);
+            if (!accessTokens.validAnswer(dis.readUTF(), challenge)) {
+                Log.warn("Authentification du serveur principal refusée", "distant", clientChannel.getRemoteAddress());
+                dos.writeUTF("ACCES_REFUSE");
+                return false;
+            }
+            coordinator = true;
+            dos.writeUTF("AUTH_OK");
+            return true;
+        }
+
+        // Lit l'en-tête d'une commande réservée pour garder le flux synchronisé, puis la refuse ;
+        // les octets d'une partie suivent l'en-tête de store : la connexion est alors fermée
+        private boolean refuse(String command, DataInputStream dis, DataOutputStream dos) throws IOException {
+            String partName = dis.readUTF();
+            if ("store".equals(command)) {
+                dis.readLong();
+            } else if ("GET_PART_RANGE".equals(command)) {
+                dis.readLong();
+                dis.readLong();
+            }
+            Log.warn("Commande refusée à une connexion non authentifiée", "commande", command, "partie", partName);
+            dos.writeUTF("ACCES_REFUSE");
+            return !"store".equals(command);
+        }
+
+        private boolean execute(String command, DataInputStream dis, DataOutputStream dos,
+                                ReadableByteChannel in, WritableByteChannel out) throws IOException {
+            if (!coordinator && COORDINATOR_COMMANDS.contains(command)) {
+                return refuse(command, dis, dos);
+            }
+            if ("store".equals(command)) {
+                return receiveFile(dis, dos, in);
+            } else if ("GET_PART".equals(command)) {
+                handleGetPart(dis, dos, out);
+            } else if ("GET_PART_RANGE".equals(command)) {
+                handleGetPartRange(dis, dos, out);
+            } else if ("DIRECT_GET".equals(command)) {
+                handleDirectGet(dis, dos, out);
+            } else if ("DIRECT_STORE".equals(command)) {
+                return handleDirectStore(dis, dos, in);
+            } else if ("DELETE_PART".equals(command)) {
+                handleDeletePart(dis, dos);
+            } else if ("PING".equals(command)) {
+                dos.writeUTF("PONG");
+            } else if ("STATUS".equals(command)) {
+                reportStatus(dos);
+            } else {
+                dos.writeUTF("Commande non reconnue");
+                return false;
             }
+            return true;
         }
 
-        private void receiveFile(DataInputStream dis, DataOutputStream dos) {
+        // Retourne false si la partie n'a pas pu être lue en entier : la connexion doit être fermée
+        private boolean receiveFile(DataInputStream dis, DataOutputStream dos, ReadableByteChannel in) {
             try {
                 // Lire le nom et la taille du fichier
                 String fileName = dis.readUTF();
                 long fileSize = dis.readLong();
+                storePart(fileName, fileSize, in);
+                dos.writeUTF("Fichier reçu et sauvegardé avec succès.");
+                return true;
+            } catch (IOException e) {
+                return reportStoreFailure(dos, e);
+            }
+        }
 
-                // Créer le fichier local pour stocker la partie du fichier
-                File file = new File("storage/" + fileName);
-                file.getParentFile().mkdirs();  // Créer les répertoires nécessaires si inexistants
+        /**
+         * Écriture directe par un client : "store" précédé d'un jeton d'écriture signé par le
+         * serveur principal. La réponse donne le CRC32C des octets écrits et un reçu signé que
+         * le client transmet au serveur principal. Un jeton refusé ferme la connexion, puisque
+         * les octets de la partie suivent l'en-tête.
+         */
+        private boolean handleDirectStore(DataInputStream dis, DataOutputStream dos, ReadableByteChannel in) {
+            try {
+                String token = dis.readUTF();
+                long expiresAt = dis.readLong();
+                String fileName = dis.readUTF();
+                long fileSize = dis.readLong();
+                if (accessTokens == null || !accessTokens.allows(token, "PUT", fileName, expiresAt)) {
+                    Log.warn("Écriture directe refusée", "partie", fileName);
+                    dos.writeUTF("ACCES_REFUSE");
+                    return false;
+                }
+                PartDigest checksum = storePart(fileName, fileSize, in);
+                dos.writeUTF("STORED");
+                dos.writeLong(checksum.crc32c());
+                dos.writeUTF(accessTokens.receipt(nodeAddress(), fileName, fileSize, checksum.crc32c()));
+                return true;
+            } catch (IOException e) {
+                return reportStoreFailure(dos, e);
+            }
+        }
 
-                try (FileOutputStream fos = new FileOutputStream(file)) {
-                    byte[] buffer = new byte[4096];
-                    long totalRead = 0;
-                    int bytesRead;
+        // Les sommes des octets reçus sont calculées pendant la copie et notées dans le fichier
+        // .sum de la partie, que la vérification en tâche de fond (PartScrubber) compare au disque
+        private PartDigest storePart(String fileName, long fileSize, ReadableByteChannel in) throws IOException {
+            // Créer le fichier local pour stocker la partie du fichier
+            File file = partFile(fileName);
+            if (file == null) {
+                throw new IOException("nom de partie invalide : " + fileName);
+            }
+            file.getParentFile().mkdirs();  // Créer les répertoires nécessaires si inexistants
 
-                    // Lire et écrire les données du fichier
-                    while (totalRead < fileSize && (bytesRead = dis.read(buffer)) != -1) {
-                        fos.write(buffer, 0, bytesRead);
-                        totalRead += bytesRead;
-                    }
+            PartDigest checksum = new PartDigest();
+            PartScrubber.beginWrite(file);
+            try {
+                try (FileChannel fileChannel = FileChannel.open(file.toPath(),
+                        StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                    copyToFile(in, fileChannel, fileSize, checksum);
                 }
-
-                System.out.println("Fichier " + fileName + " reçu et sauvegardé.");
-                dos.writeUTF("Fichier reçu et sauvegardé avec succès.");
+                PartScrubber.writeSums(file, fileSize, checksum);
             } catch (IOException e) {
-                try {
-                    dos.writeUTF("Erreur lors de la réception du fichier : " + e.getMessage());
-                } catch (IOException ioException) {
-                    System.out.println("Erreur lors de l'envoi du message d'erreur au client : " + ioException.getMessage());
+                file.delete();  // Ne pas garder de partie tronquée
+                PartScrubber.removeSums(file);
+                throw e;
+            } finally {
+                PartScrubber.endWrite(file);
+            }
+            metrics.counter("transfert_bytes_stored_total").add(fileSize);
+            Log.debug("Partie reçue et sauvegardée", "partie", fileName, "octets", fileSize);
+            return checksum;
+        }
+
+        // Fichier de la partie dans le répertoire de stockage, ou null si le nom en sortirait
+        // (chemin absolu, "..") : le nom vient du réseau
+        private File partFile(String partName) {
+            Path root = storageDir.toPath().toAbsolutePath().normalize();
+            try {
+                Path path = root.resolve(partName).normalize();
+                if (path.startsWith(root) && !path.equals(root)) {
+                    return path.toFile();
+                }
+            } catch (InvalidPathException e) {
+                // Caractère nul ou autre nom impossible sur ce système
+            }
+            Log.warn("Nom de partie refusé", "partie", partName);
+            return null;
+        }
+
+        private String nodeAddress() throws IOException {
+            if (advertisedAddress != null) {
+                return advertisedAddress;
+            }
+            InetSocketAddress local = (InetSocketAddress) clientChannel.getLocalAddress();
+            return local.getAddress().getHostAddress() + ":" + local.getPort();
+        }
+
+        private boolean reportStoreFailure(DataOutputStream dos, IOException e) {
+            try {
+                dos.writeUTF("Erreur lors de la réception du fichier : " + e.getMessage());
+            } catch (IOException ioException) {
+                Log.debug("Erreur lors de l'envoi du message d'erreur au client", "erreur", ioException.getMessage());
+            }
+            Log.warn("Erreur lors de la réception du fichier", "erreur", e.getMessage());
+            return false;
+        }
+
+        private void handleGetPart(DataInputStream dis, DataOutputStream dos, WritableByteChannel out) throws IOException {
+            String partName = dis.readUTF();
+            File partFile = partFile(partName);
+
+            if (partFile != null && partFile.isFile() && PartScrubber.checkSize(partFile)) {
+                try (FileChannel fileChannel = FileChannel.open(partFile.toPath(), StandardOpenOption.READ)) {
+                    long size = fileChannel.size();
+                    dos.writeUTF("PART_FOUND");
+                    dos.writeLong(size); // Envoie la taille du fichier
+                    copyFromFile(fileChannel, 0, size, out);
+                    metrics.counter("transfert_bytes_served_total").add(size);
                 }
-                System.out.println("Erreur lors de la réception du fichier : " + e.getMessage());
+            } else {
+                metrics.counter("transfert_parts_not_found_total").increment();
+                dos.writeUTF("PART_NOT_FOUND");
             }
         }
 
-        private void handleGetPart(DataInputStream dis, DataOutputStream dos) throws IOException {
+        // Comme GET_PART, mais seuls les octets [offset, offset + length) sont envoyés (length -1 : jusqu'à
+        // la fin, bornés à la taille de la partie) ; l'en-tête donne toujours la taille complète
+        private void handleGetPartRange(DataInputStream dis, DataOutputStream dos, WritableByteChannel out) throws IOException {
             String partName = dis.readUTF();
-            File partFile = new File("storage", partName); // Répertoire contenant les parties
+            long offset = dis.readLong();
+            long length = dis.readLong();
+            sendPartRange(partName, offset, length, false, dos, out);
+        }
 
-            if (partFile.exists() && partFile.isFile()) {
-                dos.writeUTF("PART_FOUND");
-                dos.writeLong(partFile.length()); // Envoie la taille du fichier
+        // Lecture directe par un client : GET_PART_RANGE précédé d'un jeton de lecture signé par le serveur principal
+        private void handleDirectGet(DataInputStream dis, DataOutputStream dos, WritableByteChannel out) throws IOException {
+            String token = dis.readUTF();
+            long expiresAt = dis.readLong();
+            String partName = dis.readUTF();
+            long offset = dis.readLong();
+            long length = dis.readLong();
+            if (accessTokens == null || !accessTokens.allows(token, "GET", partName, expiresAt)) {
+                Log.warn("Lecture directe refusée", "partie", partName);
+                dos.writeUTF("ACCES_REFUSE");
+                return;
+            }
+            sendPartRange(partName, offset, length, true, dos, out);
+        }
 
-                try (FileInputStream fis = new FileInputStream(partFile)) {
-                    byte[] buffer = new byte[4096];
-                    int bytesRead;
-                    while ((bytesRead = fis.read(buffer)) != -1) {
-                        dos.write(buffer, 0, bytesRead);
-                    }
+        // direct : lecture d'un client, qui ne peut pas vérifier une portion ; la partie est alors
+        // vérifiée en entier quelle que soit la portion demandée (une fois tant qu'elle ne change pas)
+        private void sendPartRange(String partName, long offset, long length, boolean direct, DataOutputStream dos,
+                                   WritableByteChannel out) throws IOException {
+            File partFile = partFile(partName);
+            boolean verify = verifyOnRead && direct;
+
+            // Une partie tronquée, corrompue ou mise de côté est signalée absente : le lecteur en lit une autre copie
+            if (partFile != null && partFile.isFile() && (verify ? PartScrubber.verify(partFile) : PartScrubber.checkSize(partFile))) {
+                try (FileChannel fileChannel = FileChannel.open(partFile.toPath(), StandardOpenOption.READ)) {
+                    long size = fileChannel.size();
+                    long start = Math.min(Math.max(offset, 0), size);
+                    long count = length < 0 ? size - start : Math.min(length, size - start);
+                    dos.writeUTF("PART_FOUND");
+                    dos.writeLong(size);
+                    copyFromFile(fileChannel, start, count, out);
+                    metrics.counter("transfert_bytes_served_total").add(count);
                 }
             } else {
+                metrics.counter("transfert_parts_not_found_total").increment();
                 dos.writeUTF("PART_NOT_FOUND");
             }
         }
 
+        // STATUS → STATUS, octets libres, octets au total du disque qui porte le répertoire de stockage
+        // (battement du serveur principal, voir StorageNodes)
+        private void reportStatus(DataOutputStream dos) throws IOException {
+            File disk = storageDir.getAbsoluteFile();
+            while (disk.getParentFile() != null && !disk.exists()) {
+                disk = disk.getParentFile();  // répertoire pas encore créé : son parent est sur le même disque
+            }
+            dos.writeUTF("STATUS");
+            dos.writeLong(disk.getUsableSpace());
+            dos.writeLong(disk.getTotalSpace());
+        }
+
         private void handleDeletePart(DataInputStream dis, DataOutputStream dos) throws IOException {
             String partName = dis.readUTF();
-            File partFile = new File("storage/" + partName); // Chemin des fichiers dans le serveur secondaire
+            File partFile = partFile(partName);
         
-            if (partFile.exists() && partFile.delete()) {
+            if (partFile != null && partFile.exists() && partFile.delete()) {
+                PartScrubber.removeSums(partFile);
                 dos.writeUTF("SUCCESS");
             } else {
                 dos.writeUTF("FAILURE");
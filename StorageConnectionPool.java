@@ -0,0 +1,203 @@
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Connexions persistantes du serveur principal vers les serveurs de stockage, regroupées par
+ * serveur ("ip:port"). Une connexion empruntée est rendue avec release() après une commande
+ * complète, ou abandonnée avec invalidate() si le flux a pu être laissé au milieu d'un transfert.
+ * Avec un secret partagé, chaque nouvelle connexion s'authentifie (AUTH) avant d'être prêtée :
+ * les serveurs de stockage réservent les commandes internes au serveur principal.
+ *
+ * Réglages (propriétés système) :
+ *   transfert.nodePool.max           connexions simultanées maximum par serveur (32)
+ *   transfert.nodePool.waitMs        attente maximale d'une connexion libre (30000)
+ *   transfert.nodePool.idleSeconds   fermeture des connexions inutilisées depuis ce délai (60)
+ *   transfert.nodePool.checkAfterMs  PING avant de réutiliser une connexion restée inactive (5000)
+ */
+class StorageConnectionPool {
+
+    private static final int CONNECT_TIMEOUT_MS = 5000;
+    private static final int PING_TIMEOUT_MS = 2000;
+    private static final int STREAM_BUFFER_SIZE = 64 * 1024;
+
+    static class Connection {
+        final String server;
+        final Socket socket;
+        final DataInputStream in;
+        final DataOutputStream out;
+        private long lastUsed = System.currentTimeMillis();
+
+        Connection(String server, Socket socket) throws IOException {
+            this.server = server;
+            this.socket = socket;
+            this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), STREAM_BUFFER_SIZE));
+            this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), STREAM_BUFFER_SIZE));
+        }
+
+        void close() {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private static class NodePool {
+        final Deque<Connection> idle = new ArrayDeque<>();
+        final Semaphore permits;
+
+        NodePool(int maxConnections) {
+            this.permits = new Semaphore(maxConnections, true);
+        }
+    }
+
+    private final Map<String, NodePool> pools = new ConcurrentHashMap<>();
+    private final AccessToken credentials;
+    private final int maxPerNode = Integer.getInteger("transfert.nodePool.max", 32);
+    private final long waitMillis = Long.getLong("transfert.nodePool.waitMs", 30000);
+    private final long idleMillis = Long.getLong("transfert.nodePool.idleSeconds", 60) * 1000;
+    private final long checkAfterMillis = Long.getLong("transfert.nodePool.checkAfterMs", 5000);
+    private final AtomicLong opened = new AtomicLong();
+    private final AtomicLong reused = new AtomicLong();
+
+    // credentials null : aucun secret partagé, les connexions ne s'authentifient pas
+    StorageConnectionPool(AccessToken credentials) {
+        this.credentials = credentials;
+        ScheduledExecutorService evictor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "eviction-connexions-stockage");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long period = Math.max(1000, idleMillis / 2);
+        evictor.scheduleWithFixedDelay(this::evictIdle, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    Connection borrow(String server) throws IOException {
+        NodePool pool = pools.computeIfAbsent(server, s -> new NodePool(maxPerNode));
+        try {
+            if (!pool.permits.tryAcquire(waitMillis, TimeUnit.MILLISECONDS)) {
+                throw new IOException("Aucune connexion disponible vers " + server);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Attente d'une connexion vers " + server + " interrompue");
+        }
+
+        try {
+            Connection connection;
+            while ((connection = pollIdle(pool)) != null) {
+                if (System.currentTimeMillis() - connection.lastUsed < checkAfterMillis || ping(connection)) {
+                    reused.incrementAndGet();
+                    return connection;
+                }
+                connection.close();
+            }
+            return open(server);
+        } catch (IOException | RuntimeException e) {
+            pool.permits.release();
+            throw e;
+        }
+    }
+
+    /** Rend une connexion dont la dernière commande a été entièrement lue et écrite. */
+    void release(Connection connection) {
+        NodePool pool = pools.get(connection.server);
+        connection.lastUsed = System.currentTimeMillis();
+        synchronized (pool) {
+            pool.idle.push(connection);
+        }
+        pool.permits.release();
+    }
+
+    /** Ferme une connexion dont le flux n'est plus dans un état sûr. */
+    void invalidate(Connection connection) {
+        connection.close();
+        pools.get(connection.server).permits.release();
+    }
+
+    void registerMetrics(Metrics metrics) {
+        metrics.gauge("transfert_node_connections_opened_total", opened::get);
+        metrics.gauge("transfert_node_connections_reused_total", reused::get);
+    }
+
+    String describe() {
+        int idle = 0;
+        for (NodePool pool : pools.values()) {
+            synchronized (pool) {
+                idle += pool.idle.size();
+            }
+        }
+        return "ouvertes=" + opened.get() + " réutilisées=" + reused.get() + " inactives=" + idle;
+    }
+
+    private Connection pollIdle(NodePool pool) {
+        synchronized (pool) {
+            return pool.idle.poll();
+        }
+    }
+
+    private Connection open(String server) throws IOException {
+        String[] address = server.split(":");
+        Socket socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress(address[0], Integer.parseInt(address[1])), CONNECT_TIMEOUT_MS);
+            socket.setTcpNoDelay(true);
+            Connection connection = new Connection(server, socket);
+            if (credentials != null) {
+                authenticate(connection);
+            }
+            opened.incrementAndGet();
+            return connection;
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    private void authenticate(Connection connection) throws IOException {
+        connection.socket.setSoTimeout(PING_TIMEOUT_MS);
+        connection.out.writeUTF("AUTH");
+        connection.out.flush();
+        String response = connection.in.readUTF();
+        if ("CHALLENGE".equals(response)) {
+            connection.out.writeUTF(credentials.answer(connection.in.readUTF()));
+            connection.out.flush();
+            response = connection.in.readUTF();
+        }
+        if (!"AUTH_OK".equals(response)) {
+            throw new IOException("Authentification refusée par " + connection.server + " : " + response);
+        }
+        connection.socket.setSoTimeout(0);
+    }
+
+    private boolean ping(Connection connection) {
+        try {
+            connection.socket.setSoTimeout(PING_TIMEOUT_MS);
+            connection.out.writeUTF("PING");
+            connection.out.flush();
+            boolean alive = "PONG".equals(connection.in.readUTF());
+            connection.socket.setSoTimeout(0);
+            return alive;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private void evictIdle() {
+        long now = System.currentTimeMillis();
+        for (NodePool pool : pools.values()) {
+            synchronized (pool) {
+                // Les connexions les plus anciennes sont au fond de la pile
+                while (!pool.idle.isEmpty() && now - pool.idle.peekLast().lastUsed > idleMillis) {
+                    pool.idle.pollLast().close();
+                }
+            }
+        }
+    }
+}
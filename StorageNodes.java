@@ -0,0 +1,440 @@
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.ToLongFunction;
+
+/**
+ * Serveurs de stockage déclarés dans config.txt, leur état et le choix de ceux qui reçoivent
+ * les nouvelles parties.
+ *
+ * Toutes les transfert.heartbeat.seconds secondes (5 par défaut, 0 pour désactiver), chaque
+ * serveur reçoit une commande STATUS qui donne l'espace libre de son répertoire de stockage ;
+ * après transfert.heartbeat.misses réponses manquées (3) il est considéré injoignable, et
+ * redevient disponible à la première réponse. Au même rythme, config.txt est relu s'il a été
+ * modifié : les serveurs ajoutés reçoivent aussitôt des parties, les serveurs retirés n'en
+ * reçoivent plus (les parties qu'ils ont déjà restent lisibles tant qu'ils répondent).
+ *
+ * La charge d'un serveur combine les transferts en cours, son débit récent (octets envoyés et
+ * reçus, rapportés à transfert.placement.busyBytesPerSecond) et son taux de remplissage ; un
+ * échec récent la multiplie. Les serveurs injoignables ou avec moins de
+ * transfert.placement.minFreeBytes octets libres ne reçoivent plus rien, sauf si aucun autre
+ * ne reste. Parmi les autres, chaque choix compare deux serveurs tirés au hasard et garde le
+ * moins chargé (« power of two choices ») : la charge s'équilibre sans que tous les envois
+ * simultanés se précipitent sur le même serveur.
+ */
+class StorageNodes {
+
+    private static final long FAILURE_PENALTY_MS = 30_000;
+    private static final double FAILURE_FACTOR = 4;
+    private static final double THROUGHPUT_SMOOTHING = 0.5;
+
+    /** Disponibilité d'un serveur pour les copies qu'il détient (voir health). */
+    enum Health { AVAILABLE, UNREACHABLE, LOST, REMOVED }
+
+    /** État d'un serveur de stockage. */
+    static final class Node {
+        final String address;
+        final String host;
+        final int port;
+        final AtomicInteger inFlight = new AtomicInteger();
+        volatile boolean alive = true;  // présumé joignable jusqu'au premier battement manqué
+        volatile long usableBytes = -1;  // -1 tant que le serveur n'a pas répondu à STATUS
+        volatile long totalBytes = -1;
+        volatile double bytesPerSecond;
+        volatile long lastFailure;
+        volatile long lastSeen;
+        volatile long unreachableSince;
+        // Mis à jour par le seul thread des battements
+        private int missed;
+        private long lastBytes = -1;
+        private long lastSample;
+
+        Node(String address, String host, int port) {
+            this.address = address;
+            this.host = host;
+            this.port = port;
+        }
+    }
+
+    private final File configFile;
+    private final ToLongFunction<String> bytesTransferred;
+    private final int heartbeatSeconds = Integer.getInteger("transfert.heartbeat.seconds", 5);
+    private final int timeoutMillis = Integer.getInteger("transfert.heartbeat.timeoutMs", 2000);
+    private final int allowedMisses = Math.max(1, Integer.getInteger("transfert.heartbeat.misses", 3));
+    private final long minFreeBytes = Long.getLong("transfert.placement.minFreeBytes", 256L * 1024 * 1024);
+    private final double busyBytesPerSecond = Math.max(1, Long.getLong("transfert.placement.busyBytesPerSecond", 64L * 1024 * 1024));
+    // Liste remplacée en entier à chaque rechargement : les lecteurs n'ont jamais besoin de verrou
+    private volatile List<Node> nodes = Collections.emptyList();
+    private final Map<String, Node> byAddress = new ConcurrentHashMap<>();
+    private long configModified;
+    private Metrics metrics;
+
+    /** bytesTransferred donne le total des octets échangés avec un serveur, pour en déduire son débit. */
+    StorageNodes(File configFile, ToLongFunction<String> bytesTransferred) {
+        this.configFile = configFile;
+        this.bytesTransferred = bytesTransferred;
+    }
+
+    /**
+     * Relit le fichier de configuration (une ligne hôte:port par serveur). Les serveurs déjà
+     * connus gardent leur état. Retourne false si le fichier n'a pas pu être lu.
+     */
+    synchronized boolean reload() {
+        List<String> lines;
+        long modified = configFile.lastModified();
+        try {
+            lines = Files.readAllLines(configFile.toPath());
+        } catch (IOException e) {
+            Log.warn("Erreur lors du chargement de la configuration", "fichier", configFile, "erreur", e.getMessage());
+            return false;
+        }
+        List<Node> updated = new ArrayList<>();
+        Set<String> seen = new HashSet<>();
+        for (String line : lines) {
+            String[] parts = line.trim().split(":");
+            if (parts.length != 2 || !seen.add(line.trim())) {
+                continue;
+            }
+            int port;
+            try {
+                port = Integer.parseInt(parts[1]);
+            } catch (NumberFormatException e) {
+                Log.warn("Ligne de configuration ignorée", "ligne", line);
+                continue;
+            }
+            Node node = byAddress.get(line.trim());
+            if (node == null) {
+                node = new Node(line.trim(), parts[0], port);
+                if (!nodes.isEmpty() || configModified != 0) {
+                    Log.info("Serveur de stockage ajouté", "serveur", node.address);
+                }
+                register(node);
+            }
+            updated.add(node);
+        }
+        for (Node node : nodes) {
+            if (!seen.contains(node.address)) {
+                Log.info("Serveur de stockage retiré", "serveur", node.address);
+                unregister(node);
+            }
+        }
+        nodes = Collections.unmodifiableList(updated);
+        configModified = modified;
+        return true;
+    }
+
+    private void register(Node node) {
+        byAddress.put(node.address, node);
+        if (metrics != null) {
+            metrics.gauge("transfert_node_alive", "node", node.address, () -> node.alive ? 1 : 0);
+            metrics.gauge("transfert_node_usable_bytes", "node", node.address, () -> node.usableBytes);
+            metrics.gauge("transfert_node_transfers_in_flight", "node", node.address, node.inFlight::get);
+            metrics.gauge("transfert_node_recent_bytes_per_second", "node", node.address, () -> (long) node.bytesPerSecond);
+        }
+    }
+
+    private void unregister(Node node) {
+        byAddress.remove(node.address);
+        if (metrics != null) {
+            metrics.remove("transfert_node_alive", "node", node.address);
+            metrics.remove("transfert_node_usable_bytes", "node", node.address);
+            metrics.remove("transfert_node_transfers_in_flight", "node", node.address);
+            metrics.remove("transfert_node_recent_bytes_per_second", "node", node.address);
+        }
+    }
+
+    synchronized void registerMetrics(Metrics metrics) {
+        this.metrics = metrics;
+        for (Node node : nodes) {
+            register(node);
+        }
+        metrics.gauge("transfert_nodes_configured", () -> nodes.size());
+        metrics.gauge("transfert_nodes_alive", () -> nodes.stream().filter(node -> node.alive).count());
+    }
+
+    int size() {
+        return nodes.size();
+    }
+
+    List<String> addresses() {
+        List<String> addresses = new ArrayList<>();
+        for (Node node : nodes) {
+            addresses.add(node.address);
+        }
+        return addresses;
+    }
+
+    /** Un transfert (envoi ou lecture d'une partie) commence avec ce serveur. */
+    void transferStarted(String address) {
+        Node node = byAddress.get(address);
+        if (node != null) {
+            node.inFlight.incrementAndGet();
+        }
+    }
+
+    void transferEnded(String address) {
+        Node node = byAddress.get(address);
+        if (node != null) {
+            node.inFlight.decrementAndGet();
+        }
+    }
+
+    /** Échec d'un échange avec ce serveur : il est évité pendant FAILURE_PENALTY_MS. */
+    void recordFailure(String address) {
+        Node node = byAddress.get(address);
+        if (node != null) {
+            node.lastFailure = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * AVAILABLE : le serveur répond ; UNREACHABLE : il ne répond plus depuis moins de lostAfterMs,
+     * ses copies comptent encore ; LOST : injoignable depuis plus longtemps, ses copies sont
+     * considérées perdues ; REMOVED : retiré de la configuration, ses copies restent lisibles
+     * mais doivent être déplacées.
+     */
+    Health health(String address, long lostAfterMs) {
+        Node node = byAddress.get(address);
+        if (node == null) {
+            return Health.REMOVED;
+        }
+        if (node.alive) {
+            return Health.AVAILABLE;
+        }
+        return System.currentTimeMillis() - node.unreachableSince >= lostAfterMs ? Health.LOST : Health.UNREACHABLE;
+    }
+
+    /** Serveurs qui peuvent recevoir de nouvelles parties (joignables, avec assez d'espace libre). */
+    List<String> placeableAddresses() {
+        List<String> addresses = new ArrayList<>();
+        for (Node node : nodes) {
+            if (placeable(node)) {
+                addresses.add(node.address);
+            }
+        }
+        return addresses;
+    }
+
+    // Charge d'un serveur, 1 pour un serveur inactif, vide et sans échec récent
+    private double load(Node node, long now) {
+        double busy = node.inFlight.get() + node.bytesPerSecond / busyBytesPerSecond;
+        double used = node.totalBytes > 0 ? 1 - (double) node.usableBytes / node.totalBytes : 0;
+        double load = (1 + busy) * (1 + used);
+        return now - node.lastFailure < FAILURE_PENALTY_MS ? load * FAILURE_FACTOR : load;
+    }
+
+    private double load(String address, long now) {
+        Node node = byAddress.get(address);
+        return node == null ? FAILURE_FACTOR : load(node, now);
+    }
+
+    private boolean placeable(Node node) {
+        return node.alive && (node.usableBytes < 0 || node.usableBytes >= minFreeBytes);
+    }
+
+    /**
+     * Choisit au plus width serveurs pour un nouveau fichier, par deux choix aléatoires parmi
+     * les serveurs disponibles. Si aucun ne l'est, tous les serveurs configurés sont retournés :
+     * l'envoi échouera comme avant plutôt que d'être refusé d'avance.
+     */
+    List<String> select(int width) {
+        List<Node> candidates = new ArrayList<>();
+        for (Node node : nodes) {
+            if (placeable(node)) {
+                candidates.add(node);
+            }
+        }
+        if (candidates.isEmpty()) {
+            candidates.addAll(nodes);
+        }
+        return choose(candidates, width);
+    }
+
+    /** Comme select, parmi les seuls serveurs disponibles qui ne sont pas dans excluded. */
+    List<String> select(int width, Collection<String> excluded) {
+        List<Node> candidates = new ArrayList<>();
+        for (Node node : nodes) {
+            if (placeable(node) && !excluded.contains(node.address)) {
+                candidates.add(node);
+            }
+        }
+        return choose(candidates, width);
+    }
+
+    private List<String> choose(List<Node> candidates, int width) {
+        long now = System.currentTimeMillis();
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        List<String> selected = new ArrayList<>();
+        while (selected.size() < width && !candidates.isEmpty()) {
+            int first = random.nextInt(candidates.size());
+            int chosen = first;
+            if (candidates.size() > 1) {
+                int second = random.nextInt(candidates.size() - 1);
+                second = second >= first ? second + 1 : second;
+                chosen = load(candidates.get(second), now) < load(candidates.get(first), now) ? second : first;
+            }
+            selected.add(candidates.remove(chosen).address);
+        }
+        return selected;
+    }
+
+    /** Répartition des parties d'un envoi sur les serveurs retenus par select(). */
+    <T> Placement<T> placement(List<T> targets) {
+        return new Placement<>(this, targets);
+    }
+
+    /**
+     * Choisit les serveurs de chaque partie d'un envoi parmi ses serveurs (identifiés par
+     * toString()), par deux choix aléatoires pondérés par la charge de chaque serveur et par
+     * le nombre de parties de l'envoi qu'il a déjà reçues. Des serveurs de charges égales
+     * reçoivent autant de parties ; un serveur deux fois plus chargé en reçoit environ deux
+     * fois moins.
+     */
+    static final class Placement<T> {
+        private final StorageNodes nodes;
+        private final List<T> targets;
+        private final int[] assigned;
+
+        private Placement(StorageNodes nodes, List<T> targets) {
+            this.nodes = nodes;
+            this.targets = targets;
+            this.assigned = new int[targets.size()];
+        }
+
+        int size() {
+            return targets.size();
+        }
+
+        /**
+         * count serveurs distincts pour la prochaine partie ; s'il y en a moins que count (fragments
+         * du codage par effacement sur peu de serveurs), certains reviennent plusieurs fois.
+         */
+        synchronized List<T> next(int count) {
+            long now = System.currentTimeMillis();
+            int size = targets.size();
+            double[] weights = new double[size];
+            List<Integer> candidates = new ArrayList<>();
+            for (int i = 0; i < size; i++) {
+                weights[i] = nodes.load(String.valueOf(targets.get(i)), now) * (1 + assigned[i]);
+                candidates.add(i);
+            }
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            List<T> chosen = new ArrayList<>();
+            List<Integer> order = new ArrayList<>();
+            while (order.size() < Math.min(count, size)) {
+                int first = random.nextInt(candidates.size());
+                int pick = first;
+                if (candidates.size() > 1) {
+                    int second = random.nextInt(candidates.size() - 1);
+                    second = second >= first ? second + 1 : second;
+                    pick = weights[candidates.get(second)] < weights[candidates.get(first)] ? second : first;
+                }
+                order.add(candidates.remove(pick));
+            }
+            for (int i = 0; i < count && size > 0; i++) {
+                int target = order.get(i % order.size());
+                assigned[target]++;
+                chosen.add(targets.get(target));
+            }
+            return chosen;
+        }
+    }
+
+    /** Démarre les battements et la relecture de la configuration. */
+    void start() {
+        if (heartbeatSeconds <= 0) {
+            return;
+        }
+        ExecutorService probes = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "battements-stockage");
+            thread.setDaemon(true);
+            return thread;
+        });
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "etat-serveurs-stockage");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(() -> {
+            try {
+                heartbeat(probes);
+            } catch (RuntimeException e) {
+                Log.warn("Erreur lors du suivi des serveurs de stockage", "erreur", e);
+            }
+        }, 0, heartbeatSeconds, TimeUnit.SECONDS);
+    }
+
+    private void heartbeat(ExecutorService probes) {
+        if (configFile.lastModified() != configModified) {
+            reload();
+        }
+        List<Node> current = nodes;
+        Map<Node, Future<long[]>> replies = new LinkedHashMap<>();
+        for (Node node : current) {
+            replies.put(node, probes.submit(() -> probe(node)));
+        }
+        long now = System.currentTimeMillis();
+        for (Map.Entry<Node, Future<long[]>> reply : replies.entrySet()) {
+            Node node = reply.getKey();
+            long[] space = null;
+            String error = null;
+            try {
+                space = reply.getValue().get();
+            } catch (ExecutionException e) {
+                error = String.valueOf(e.getCause().getMessage());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            sampleThroughput(node, now);
+            if (space != null) {
+                node.usableBytes = space[0];
+                node.totalBytes = space[1];
+                node.lastSeen = now;
+                node.missed = 0;
+                if (!node.alive) {
+                    node.alive = true;
+                    Log.info("Serveur de stockage de nouveau joignable", "serveur", node.address);
+                }
+            } else if (++node.missed >= allowedMisses && node.alive) {
+                node.alive = false;
+                node.unreachableSince = now;
+                Log.warn("Serveur de stockage injoignable, plus aucune partie ne lui est confiée",
+                        "serveur", node.address, "battements_manques", node.missed, "erreur", error);
+            }
+        }
+    }
+
+    // Débit depuis le battement précédent, lissé
+    private void sampleThroughput(Node node, long now) {
+        long bytes = bytesTransferred.applyAsLong(node.address);
+        if (node.lastBytes >= 0 && now > node.lastSample) {
+            double rate = (bytes - node.lastBytes) * 1000.0 / (now - node.lastSample);
+            node.bytesPerSecond += THROUGHPUT_SMOOTHING * (rate - node.bytesPerSecond);
+        }
+        node.lastBytes = bytes;
+        node.lastSample = now;
+    }
+
+    // STATUS → STATUS, octets libres, octets au total ; un serveur plus ancien qui ne connaît pas
+    // la commande répond quand même, et compte comme joignable (espace inconnu)
+    private long[] probe(Node node) throws IOException {
+        try (Socket socket = new Socket()) {
+            socket.connect(new InetSocketAddress(node.host, node.port), timeoutMillis);
+            socket.setSoTimeout(timeoutMillis);
+            socket.setTcpNoDelay(true);
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            out.writeUTF("STATUS");
+            out.flush();
+            if (!"STATUS".equals(in.readUTF())) {
+                return new long[] {-1, -1};
+            }
+            return new long[] {in.readLong(), in.readLong()};
+        }
+    }
+}
@@ -0,0 +1,63 @@
+import java.io.PrintStream;
+
+/**
+ * Chronométrage commun aux programmes de bench/ : une exécution d'échauffement (compilation
+ * JIT, caches du système), puis des itérations chronométrées une à une, dont on affiche la
+ * moyenne et la meilleure. Les écarts entre les deux signalent une mesure bruitée.
+ */
+class BenchmarkRun {
+
+    // Sortie des résultats ; un programme dont les serveurs écrivent sur System.out peut la garder à part
+    static PrintStream out = System.out;
+
+    interface Task {
+        void run() throws Exception;
+    }
+
+    /** Débit en Mo/s, chaque itération traitant bytesPerIteration octets. */
+    static void throughput(String name, int iterations, long bytesPerIteration, Task task) throws Exception {
+        long[] nanos = time(iterations, task);
+        double mb = bytesPerIteration / (1024.0 * 1024.0);
+        out.printf("%-32s %9.1f Mo/s   (meilleure : %.1f)%n", name,
+                mb * iterations / seconds(total(nanos)), mb / seconds(best(nanos)));
+    }
+
+    /** Opérations par seconde et durée moyenne d'une opération, chaque itération en faisant opsPerIteration. */
+    static void rate(String name, int iterations, long opsPerIteration, Task task) throws Exception {
+        long[] nanos = time(iterations, task);
+        double ops = (double) opsPerIteration * iterations;
+        out.printf("%-32s %9.0f op/s   %10.2f µs/op (meilleure : %.2f)%n", name,
+                ops / seconds(total(nanos)), total(nanos) / ops / 1000, best(nanos) / (double) opsPerIteration / 1000);
+    }
+
+    private static long[] time(int iterations, Task task) throws Exception {
+        task.run();  // échauffement
+        long[] nanos = new long[iterations];
+        for (int i = 0; i < iterations; i++) {
+            long start = System.nanoTime();
+            task.run();
+            nanos[i] = System.nanoTime() - start;
+        }
+        return nanos;
+    }
+
+    private static long total(long[] nanos) {
+        long total = 0;
+        for (long n : nanos) {
+            total += n;
+        }
+        return total;
+    }
+
+    private static long best(long[] nanos) {
+        long best = Long.MAX_VALUE;
+        for (long n : nanos) {
+            best = Math.min(best, n);
+        }
+        return best;
+    }
+
+    private static double seconds(long nanos) {
+        return nanos / 1e9;
+    }
+}
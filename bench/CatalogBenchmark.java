@@ -0,0 +1,79 @@
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Coût du catalogue du serveur principal selon le nombre de fichiers qu'il contient :
+ * enregistrement d'un envoi (écriture du journal), chargement au démarrage depuis
+ * l'instantané file_mapping.txt, recherche d'un fichier (acquire/release, fait à chaque
+ * téléchargement) et parcours de la liste des fichiers (commande list).
+ *
+ * Usage : java CatalogBenchmark [nombre de fichiers...]   (1000 10000 100000 par défaut)
+ */
+public class CatalogBenchmark {
+
+    private static final int PARTS_PER_FILE = 4;
+    private static final int LOOKUPS = 1_000_000;
+
+    public static void main(String[] args) throws Exception {
+        int[] sizes = args.length > 0 ? Arrays.stream(args).mapToInt(Integer::parseInt).toArray()
+                : new int[] { 1000, 10_000, 100_000 };
+        for (int size : sizes) {
+            measure(size);
+        }
+    }
+
+    private static void measure(int fileCount) throws Exception {
+        File directory = Files.createTempDirectory("bench-catalogue").toFile();
+        String snapshot = new File(directory, "file_mapping.txt").getPath();
+        String journal = new File(directory, "file_mapping.journal").getPath();
+        System.out.println("Catalogue de " + fileCount + " fichiers (" + PARTS_PER_FILE + " parties chacun)");
+
+        FileCatalog catalog = FileCatalog.load(snapshot, journal, Integer.MAX_VALUE, 256, parts -> { });
+        BenchmarkRun.rate("  enregistrement (put)", 1, fileCount, () -> {
+            for (int i = 0; i < fileCount; i++) {
+                catalog.put("fichier-" + i + ".bin", parts(i));
+            }
+        });
+        catalog.compact();
+        System.out.println("  instantané : " + new File(snapshot).length() / 1024 + " Ko");
+
+        BenchmarkRun.rate("  chargement (fichiers)", 3, fileCount,
+                () -> FileCatalog.load(snapshot, journal, Integer.MAX_VALUE, 256, parts -> { }));
+
+        Random random = new Random(7);
+        String[] names = new String[4096];
+        for (int i = 0; i < names.length; i++) {
+            names[i] = "fichier-" + random.nextInt(fileCount) + ".bin";
+        }
+        BenchmarkRun.rate("  recherche (acquire/release)", 5, LOOKUPS, () -> {
+            for (int i = 0; i < LOOKUPS; i++) {
+                FileCatalog.FileEntry entry = catalog.acquire(names[i & (names.length - 1)]);
+                catalog.release(entry);
+            }
+        });
+        BenchmarkRun.rate("  liste (fichiers)", 5, fileCount, () -> {
+            List<String> listed = new ArrayList<>(catalog.fileNames());
+            if (listed.size() != fileCount) {
+                throw new IllegalStateException(listed.size() + " fichiers listés");
+            }
+        });
+
+        for (File file : directory.listFiles()) {
+            file.delete();
+        }
+        directory.delete();
+    }
+
+    private static List<FileCatalog.PartEntry> parts(int file) {
+        List<FileCatalog.PartEntry> parts = new ArrayList<>();
+        for (int p = 0; p < PARTS_PER_FILE; p++) {
+            parts.add(new FileCatalog.PartEntry("fichier-" + file + ".bin.v1.part" + (p + 1),
+                    Arrays.asList("127.0.0.1:5001", "127.0.0.1:5002"), 1 << 20, 0, 0, 0x1234abcdL));
+        }
+        return parts;
+    }
+}
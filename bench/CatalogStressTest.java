@@ -0,0 +1,392 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+/**
+ * Test de charge du catalogue : des threads enregistrent, suppriment, déplacent, épinglent et
+ * listent en même temps les mêmes fichiers, pendant que le journal est compacté en arrière-plan
+ * (seuil bas). Vérifie ensuite que :
+ *   - une partie n'est jamais libérée tant qu'une version épinglée ou courante la référence ;
+ *   - aucune partie n'est libérée deux fois, et les morceaux partagés ne le sont pas tant qu'un
+ *     fichier les garde ;
+ *   - le catalogue rechargé depuis l'instantané et le journal est identique à l'état en mémoire ;
+ *   - une fois tous les fichiers supprimés, chaque partie enregistrée a été libérée.
+ *
+ * Puis la même charge passe par une grappe locale (LocalCluster, trois serveurs de stockage) :
+ * des clients envoient, suppriment et listent les mêmes fichiers, dont les contenus partagent des
+ * morceaux. Le serveur principal arrêté, son catalogue rechargé doit correspondre exactement aux
+ * parties stockées sur les serveurs : aucune partie orpheline, aucune entrée vers une partie supprimée.
+ *
+ * Usage : java CatalogStressTest [secondes] [threads par rôle]   (5 et 4 par défaut)
+ * Code de sortie 1 si un invariant est violé.
+ */
+public class CatalogStressTest {
+
+    private static final int FILES = 64;
+    private static final int CHUNKS = 16;
+    private static final int COMPACTION_THRESHOLD = 200;
+    private static final List<String> SERVERS = Arrays.asList("127.0.0.1:5001", "127.0.0.1:5002", "127.0.0.1:5003");
+
+    private static final Queue<String> errors = new ConcurrentLinkedQueue<>();
+    private static final Map<String, Boolean> released = new ConcurrentHashMap<>();
+    private static final Set<String> stored = ConcurrentHashMap.newKeySet();
+    private static final AtomicLong versions = new AtomicLong();
+    private static volatile boolean removingAnchors;
+
+    public static void main(String[] args) throws Exception {
+        int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 5;
+        int threadsPerRole = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+
+        catalogRun(seconds, threadsPerRole);
+        clusterRun(seconds, threadsPerRole);
+        if (!errors.isEmpty()) {
+            errors.stream().limit(20).forEach(error -> System.out.println("ÉCHEC " + error));
+            System.out.println(errors.size() + " erreurs");
+            System.exit(1);
+        }
+        System.out.println("OK");
+    }
+
+    private static void catalogRun(int seconds, int threadsPerRole) throws Exception {
+        File directory = Files.createTempDirectory("stress-catalogue").toFile();
+        File snapshot = new File(directory, "file_mapping.txt");
+        File journal = new File(directory, "file_mapping.journal");
+        FileCatalog catalog = FileCatalog.load(snapshot.getPath(), journal.getPath(), COMPACTION_THRESHOLD, 16,
+                CatalogStressTest::released);
+
+        // Chaque morceau partagé reste référencé par un fichier « ancre » que personne ne touche
+        for (int c = 0; c < CHUNKS; c++) {
+            catalog.put("ancre-" + c, Collections.singletonList(record(chunk(c))));
+        }
+
+        long deadline = System.nanoTime() + seconds * 1_000_000_000L;
+        AtomicLong operations = new AtomicLong();
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < threadsPerRole; t++) {
+            threads.add(worker("ecriture-" + t, deadline, operations, () -> {
+                catalog.put(fileName(), newVersion());
+            }));
+            threads.add(worker("suppression-" + t, deadline, operations, () -> {
+                catalog.remove(fileName());
+            }));
+            threads.add(worker("deplacement-" + t, deadline, operations, () -> {
+                String fileName = fileName();
+                FileCatalog.FileEntry entry = catalog.get(fileName);
+                if (entry != null) {
+                    FileCatalog.PartEntry part = entry.parts.get(ThreadLocalRandom.current().nextInt(entry.parts.size()));
+                    List<String> servers = new ArrayList<>(SERVERS);
+                    Collections.shuffle(servers, ThreadLocalRandom.current());
+                    catalog.replacePart(Collections.singletonList(fileName), part.withServers(servers.subList(0, 2)));
+                }
+            }));
+            threads.add(worker("lecture-" + t, deadline, operations, () -> {
+                FileCatalog.FileEntry entry = catalog.acquire(fileName());
+                if (entry != null) {
+                    try {
+                        checkNotReleased(entry, "épinglée");
+                        Thread.yield();
+                        checkNotReleased(entry, "épinglée");
+                    } finally {
+                        catalog.release(entry);
+                    }
+                }
+            }));
+            threads.add(worker("liste-" + t, deadline, operations, () -> {
+                for (String fileName : catalog.fileNames()) {
+                    FileCatalog.FileEntry entry = catalog.get(fileName);
+                    if (entry != null && !entry.fileName.equals(fileName)) {
+                        errors.add("liste : " + fileName + " associé à la version de " + entry.fileName);
+                    }
+                }
+            }));
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        System.out.println(operations.get() + " opérations en " + seconds + " s sur " + threads.size() + " threads");
+
+        for (String fileName : catalog.fileNames()) {
+            checkNotReleased(catalog.get(fileName), "courante");
+        }
+
+        // Attend la compaction éventuellement en cours, puis laisse quelques enregistrements dans le journal
+        catalog.compact();
+        for (int i = 0; i < COMPACTION_THRESHOLD / 2; i++) {
+            if (i % 3 == 0) {
+                catalog.remove(fileName());
+            } else {
+                catalog.put(fileName(), newVersion());
+            }
+        }
+        File copy = Files.createTempDirectory("stress-catalogue-copie").toFile();
+        for (File file : directory.listFiles()) {
+            Files.copy(file.toPath(), new File(copy, file.getName()).toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+        FileCatalog reloaded = FileCatalog.load(new File(copy, snapshot.getName()).getPath(),
+                new File(copy, journal.getName()).getPath(), COMPACTION_THRESHOLD, 16, parts -> { });
+        Map<String, List<String>> expected = contents(catalog);
+        Map<String, List<String>> actual = contents(reloaded);
+        if (!expected.equals(actual)) {
+            for (String fileName : union(expected.keySet(), actual.keySet())) {
+                if (!String.valueOf(expected.get(fileName)).equals(String.valueOf(actual.get(fileName)))) {
+                    errors.add("rechargement : " + fileName + " en mémoire " + expected.get(fileName)
+                            + ", rechargé " + actual.get(fileName));
+                }
+            }
+        }
+
+        removingAnchors = true;
+        for (String fileName : new ArrayList<>(catalog.fileNames())) {
+            catalog.remove(fileName);
+        }
+        for (String partName : stored) {
+            if (!released.containsKey(partName)) {
+                errors.add("partie jamais libérée : " + partName);
+            }
+        }
+        System.out.println(expected.size() + " fichiers rechargés, " + released.size() + " parties libérées sur "
+                + stored.size());
+
+        delete(directory);
+        delete(copy);
+    }
+
+    private static final int CLUSTER_FILES = 8;
+    private static final int CONTENTS = 4;
+
+    private static void clusterRun(int seconds, int threadsPerRole) throws Exception {
+        // Quelques contenus de base : chaque envoi en prend un préfixe, les versions partagent donc des morceaux
+        Random random = new Random(42);
+        byte[][] contents = new byte[CONTENTS][3 << 20];
+        for (byte[] content : contents) {
+            random.nextBytes(content);
+        }
+        try (LocalCluster cluster = LocalCluster.start(3)) {
+            long deadline = System.nanoTime() + seconds * 1_000_000_000L;
+            AtomicLong operations = new AtomicLong();
+            List<Thread> threads = new ArrayList<>();
+            for (int t = 0; t < threadsPerRole; t++) {
+                threads.add(clusterWorker(cluster, "envoi-" + t, deadline, operations, client -> {
+                    ThreadLocalRandom current = ThreadLocalRandom.current();
+                    byte[] content = contents[current.nextInt(CONTENTS)];
+                    try {
+                        client.upload(clusterFileName(), content, current.nextInt(1, content.length + 1));
+                    } catch (IOException e) {
+                        if (!e.getMessage().contains("Serveur occupé")) {
+                            throw e;
+                        }
+                    }
+                }));
+                threads.add(clusterWorker(cluster, "suppression-" + t, deadline, operations,
+                        client -> client.delete(clusterFileName())));
+                threads.add(clusterWorker(cluster, "liste-" + t, deadline, operations, client -> {
+                    String response = client.list();
+                    String prefix = "Fichiers disponibles : ";
+                    if (!response.startsWith(prefix)) {
+                        throw new IOException(response);
+                    }
+                    for (String fileName : response.substring(prefix.length()).split(", ")) {
+                        if (!fileName.isEmpty() && !fileName.startsWith("grappe-")) {
+                            errors.add("liste : fichier inconnu « " + fileName + " »");
+                        }
+                    }
+                }));
+            }
+            for (Thread thread : threads) {
+                thread.start();
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            cluster.stopCoordinator();
+            BenchmarkRun.out.println(operations.get() + " opérations sur la grappe en " + seconds + " s sur "
+                    + threads.size() + " clients");
+            checkCluster(cluster);
+        }
+    }
+
+    private static String clusterFileName() {
+        return "grappe-" + ThreadLocalRandom.current().nextInt(CLUSTER_FILES);
+    }
+
+    interface ClusterOperation {
+        void run(CoordinatorClient client) throws Exception;
+    }
+
+    private static Thread clusterWorker(LocalCluster cluster, String name, long deadline, AtomicLong operations,
+            ClusterOperation operation) {
+        return new Thread(() -> {
+            try (CoordinatorClient client = new CoordinatorClient(cluster.connect())) {
+                while (System.nanoTime() < deadline) {
+                    operation.run(client);
+                    operations.incrementAndGet();
+                }
+            } catch (Exception e) {
+                errors.add(name + " : " + e);
+            }
+        }, name);
+    }
+
+    // Compare le catalogue durable du serveur principal arrêté aux parties présentes sur chaque serveur
+    private static void checkCluster(LocalCluster cluster) throws IOException {
+        File copy = Files.createTempDirectory("stress-grappe-catalogue").toFile();
+        for (String name : new String[] {"file_mapping.txt", "file_mapping.journal", "file_mapping.journal.ancien"}) {
+            File file = cluster.coordinatorFile(name);
+            if (file.exists()) {
+                Files.copy(file.toPath(), new File(copy, name).toPath());
+            }
+        }
+        FileCatalog catalog = FileCatalog.load(new File(copy, "file_mapping.txt").getPath(),
+                new File(copy, "file_mapping.journal").getPath(), COMPACTION_THRESHOLD, 16, parts -> { });
+        Set<String> expected = new HashSet<>();
+        for (String fileName : catalog.fileNames()) {
+            for (FileCatalog.PartEntry part : catalog.get(fileName).parts) {
+                for (int i = 0; i < part.servers.size(); i++) {
+                    String server = part.servers.get(i);
+                    if (part.isErasureCoded()) {
+                        if (!server.equals(FileCatalog.PartEntry.MISSING_SHARD)) {
+                            expected.add(server + "/" + part.shardName(i));
+                        }
+                    } else {
+                        expected.add(server + "/" + part.partName);
+                    }
+                }
+            }
+        }
+        Set<String> actual = new HashSet<>();
+        for (Map.Entry<String, File> node : cluster.storageDirectories().entrySet()) {
+            try (Stream<Path> files = Files.list(node.getValue().toPath())) {
+                files.filter(Files::isRegularFile).filter(PartScrubber::isStoredPart)
+                        .forEach(path -> actual.add(node.getKey() + "/" + path.getFileName()));
+            }
+        }
+        for (String part : expected) {
+            if (!actual.contains(part)) {
+                errors.add("grappe : entrée vers une partie absente " + part);
+            }
+        }
+        for (String part : actual) {
+            if (!expected.contains(part)) {
+                errors.add("grappe : partie orpheline " + part);
+            }
+        }
+        BenchmarkRun.out.println(catalog.fileNames().size() + " fichiers au catalogue de la grappe, "
+                + actual.size() + " parties stockées");
+        delete(copy);
+    }
+
+    interface Operation {
+        void run() throws Exception;
+    }
+
+    private static Thread worker(String name, long deadline, AtomicLong operations, Operation operation) {
+        return new Thread(() -> {
+            try {
+                while (System.nanoTime() < deadline) {
+                    operation.run();
+                    operations.incrementAndGet();
+                }
+            } catch (Exception e) {
+                errors.add(name + " : " + e);
+            }
+        }, name);
+    }
+
+    private static void released(List<FileCatalog.PartEntry> parts) {
+        for (FileCatalog.PartEntry part : parts) {
+            if (part.partName.startsWith(FileCatalog.CHUNK_PREFIX)) {
+                if (!removingAnchors) {
+                    errors.add("morceau partagé libéré alors que son ancre existe : " + part.partName);
+                }
+            } else if (released.put(part.partName, Boolean.TRUE) != null) {
+                errors.add("partie libérée deux fois : " + part.partName);
+            }
+        }
+    }
+
+    private static void checkNotReleased(FileCatalog.FileEntry entry, String state) {
+        if (entry == null) {
+            return;
+        }
+        for (FileCatalog.PartEntry part : entry.parts) {
+            if (released.containsKey(part.partName)) {
+                errors.add("partie " + part.partName + " libérée alors que la version " + state + " de "
+                        + entry.fileName + " la référence");
+            }
+        }
+    }
+
+    // Certains noms contiennent les séparateurs du journal et des espaces, que le catalogue échappe
+    private static String fileName() {
+        int index = ThreadLocalRandom.current().nextInt(FILES);
+        return index % 4 == 0 ? " fichier, n°" + index + ";100%|x " : "fichier-" + index;
+    }
+
+    // Deux parties propres à la version et un morceau partagé
+    private static List<FileCatalog.PartEntry> newVersion() {
+        long version = versions.incrementAndGet();
+        List<FileCatalog.PartEntry> parts = new ArrayList<>();
+        for (int p = 1; p <= 2; p++) {
+            parts.add(record(new FileCatalog.PartEntry("v" + version + ".part" + p, SERVERS.subList(0, 2), 1 << 20)));
+        }
+        parts.add(chunk(ThreadLocalRandom.current().nextInt(CHUNKS)));
+        return parts;
+    }
+
+    private static FileCatalog.PartEntry chunk(int index) {
+        return new FileCatalog.PartEntry(FileCatalog.CHUNK_PREFIX + String.format("%064x", index) + ".part",
+                SERVERS.subList(0, 2), 1 << 20, 0, 0, 0x1234abcdL);
+    }
+
+    private static FileCatalog.PartEntry record(FileCatalog.PartEntry part) {
+        if (!part.partName.startsWith(FileCatalog.CHUNK_PREFIX)) {
+            stored.add(part.partName);
+        }
+        return part;
+    }
+
+    private static Map<String, List<String>> contents(FileCatalog catalog) {
+        Map<String, List<String>> contents = new TreeMap<>();
+        for (String fileName : catalog.fileNames()) {
+            List<String> parts = new ArrayList<>();
+            for (FileCatalog.PartEntry part : catalog.get(fileName).parts) {
+                parts.add(part.partName + ";" + part.joinedServers() + ";" + part.size + ";" + part.attributes());
+            }
+            contents.put(fileName, parts);
+        }
+        return contents;
+    }
+
+    private static Set<String> union(Set<String> a, Set<String> b) {
+        Set<String> union = new HashSet<>(a);
+        union.addAll(b);
+        return union;
+    }
+
+    private static void delete(File directory) {
+        for (File file : directory.listFiles()) {
+            file.delete();
+        }
+        directory.delete();
+    }
+}
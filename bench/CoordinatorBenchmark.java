@@ -0,0 +1,55 @@
+import java.util.Random;
+
+/**
+ * Mesure le serveur principal de bout en bout sur une seule machine (LocalCluster) : découpage
+ * et envoi d'un fichier (upload), rassemblement de ses parties (download), lecture de plages,
+ * et nombre d'envois et de téléchargements de petits fichiers par seconde. Les propriétés
+ * transfert.* passées à ce programme sont transmises au serveur principal.
+ *
+ * Usage : java CoordinatorBenchmark [taille en Mo] [itérations] [petits fichiers]
+ */
+public class CoordinatorBenchmark {
+
+    private static final int STORAGE_SERVERS = 3;
+    private static final int SMALL_FILE_SIZE = 4096;
+    private static final int RANGE_READS = 200;
+
+    public static void main(String[] args) throws Exception {
+        int sizeMb = args.length > 0 ? Integer.parseInt(args[0]) : 64;
+        int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        int smallFiles = args.length > 2 ? Integer.parseInt(args[2]) : 500;
+        int size = sizeMb * 1024 * 1024;
+
+        try (LocalCluster cluster = LocalCluster.start(STORAGE_SERVERS);
+             CoordinatorClient client = new CoordinatorClient(cluster.connect())) {
+            byte[] data = new byte[size];
+            new Random(42).nextBytes(data);
+            BenchmarkRun.out.println("Fichier de " + sizeMb + " Mo, " + iterations + " itérations, "
+                    + STORAGE_SERVERS + " serveurs de stockage");
+
+            BenchmarkRun.throughput("upload (découpage)", iterations, size, () -> client.upload("gros.bin", data, size));
+            BenchmarkRun.throughput("download (rassemblement)", iterations, size, () -> client.download("gros.bin", size));
+
+            Random random = new Random(1);
+            int rangeLength = Math.min(size, 256 * 1024);
+            BenchmarkRun.rate("download_range (256 Ko)", iterations, RANGE_READS, () -> {
+                for (int i = 0; i < RANGE_READS; i++) {
+                    client.downloadRange("gros.bin", random.nextInt(size - rangeLength + 1), rangeLength);
+                }
+            });
+
+            byte[] small = new byte[SMALL_FILE_SIZE];
+            new Random(3).nextBytes(small);
+            BenchmarkRun.rate("upload petits fichiers (4 Ko)", iterations, smallFiles, () -> {
+                for (int i = 0; i < smallFiles; i++) {
+                    client.upload("petit-" + i + ".bin", small, small.length);
+                }
+            });
+            BenchmarkRun.rate("download petits fichiers (4 Ko)", iterations, smallFiles, () -> {
+                for (int i = 0; i < smallFiles; i++) {
+                    client.download("petit-" + i + ".bin", small.length);
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,92 @@
+import java.io.*;
+import java.net.Socket;
+
+/**
+ * Connexion d'un programme de bench/ au serveur principal, avec les commandes du protocole
+ * d'origine (une commande à la fois, réponse lue en entier avant la suivante). Les octets
+ * téléchargés sont lus puis ignorés.
+ */
+class CoordinatorClient implements Closeable {
+
+    private final Socket socket;
+    private final DataOutputStream dos;
+    private final DataInputStream dis;
+
+    CoordinatorClient(Socket socket) throws IOException {
+        this.socket = socket;
+        this.dos = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 256 * 1024));
+        this.dis = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 256 * 1024));
+    }
+
+    void upload(String name, byte[] data, int length) throws IOException {
+        dos.writeUTF("upload");
+        dos.writeUTF(name);
+        dos.writeLong(length);
+        dos.write(data, 0, length);
+        dos.flush();
+        String response = dis.readUTF();
+        if (response.startsWith("Erreur")) {
+            throw new IOException(response);
+        }
+    }
+
+    /** Télécharge le fichier entier ; retourne sa taille (expected -1 : quelconque). */
+    long download(String name, long expected) throws IOException {
+        dos.writeUTF("download");
+        dos.writeUTF(name);
+        dos.flush();
+        String response = dis.readUTF();
+        if (!response.startsWith("Downloading")) {
+            throw new IOException(response);
+        }
+        long size = dis.readLong();
+        dis.skipNBytes(size);
+        if (expected >= 0 && size != expected) {
+            throw new IOException(name + " : " + size + " octets au lieu de " + expected);
+        }
+        return size;
+    }
+
+    /** Lit une plage de la version courante du fichier ; retourne le nombre d'octets reçus. */
+    long downloadRange(String name, long offset, long length) throws IOException {
+        dos.writeUTF("download_range");
+        dos.writeUTF(name);
+        dos.writeUTF("");
+        dos.writeLong(offset);
+        dos.writeLong(length);
+        dos.flush();
+        String response = dis.readUTF();
+        if (!response.startsWith("Downloading")) {
+            throw new IOException(response);
+        }
+        dis.readUTF();  // version
+        dis.readLong();  // taille totale
+        dis.readLong();  // début
+        long count = dis.readLong();
+        dis.skipNBytes(count);
+        return count;
+    }
+
+    String list() throws IOException {
+        dos.writeUTF("list");
+        dos.flush();
+        return dis.readUTF();
+    }
+
+    /** Supprime le fichier ; retourne false s'il n'existait pas. */
+    boolean delete(String name) throws IOException {
+        dos.writeUTF("DELETE_FILE");
+        dos.writeUTF(name);
+        dos.flush();
+        String response = dis.readUTF();
+        if (response.startsWith("Erreur")) {
+            throw new IOException(response);
+        }
+        return !response.startsWith("Fichier non trouvé");
+    }
+
+    @Override
+    public void close() throws IOException {
+        socket.close();
+    }
+}
@@ -0,0 +1,65 @@
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Mesure le débit du codeur Reed-Solomon : calcul des parités d'une partie, puis
+ * reconstruction quand des fragments de données manquent (autant que de parités).
+ * Les octets reconstruits sont comparés à l'original.
+ *
+ * Usage : java ErasureBenchmark [k] [m] [taille de partie en Mo] [itérations]
+ */
+public class ErasureBenchmark {
+
+    public static void main(String[] args) {
+        int dataShards = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+        int parityShards = args.length > 1 ? Integer.parseInt(args[1]) : 2;
+        int partMb = args.length > 2 ? Integer.parseInt(args[2]) : 8;
+        int iterations = args.length > 3 ? Integer.parseInt(args[3]) : 20;
+
+        ReedSolomon codec = new ReedSolomon(dataShards, parityShards);
+        int total = dataShards + parityShards;
+        int shardSize = (partMb * 1024 * 1024 + dataShards - 1) / dataShards;
+        long partSize = (long) shardSize * dataShards;
+
+        Random random = new Random(42);
+        byte[][] shards = new byte[total][shardSize];
+        for (int d = 0; d < dataShards; d++) {
+            random.nextBytes(shards[d]);
+        }
+        byte[][] original = new byte[dataShards][];
+        for (int d = 0; d < dataShards; d++) {
+            original[d] = shards[d].clone();
+        }
+
+        System.out.println("Disposition " + dataShards + "+" + parityShards + ", partie de " + partMb + " Mo, "
+                + iterations + " itérations");
+
+        report("encodage", iterations, partSize, () -> codec.encode(shards, shardSize));
+
+        // Les premiers fragments de données sont perdus : le décodage doit passer par toutes les parités
+        int lost = Math.min(parityShards, dataShards);
+        boolean[] present = new boolean[total];
+        Arrays.fill(present, true);
+        for (int d = 0; d < lost; d++) {
+            present[d] = false;
+        }
+        report("reconstruction -" + lost, iterations, partSize, () -> codec.decodeData(shards, present, shardSize));
+
+        for (int d = 0; d < dataShards; d++) {
+            if (!Arrays.equals(original[d], shards[d])) {
+                throw new IllegalStateException("Fragment " + d + " mal reconstruit");
+            }
+        }
+        System.out.println("Fragments reconstruits identiques à l'original.");
+    }
+
+    private static void report(String name, int iterations, long size, Runnable operation) {
+        operation.run();  // échauffement
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            operation.run();
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("%-24s %8.1f Mo/s%n", name, size * iterations / seconds / (1024 * 1024));
+    }
+}
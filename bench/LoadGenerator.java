@@ -0,0 +1,302 @@
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Génère une charge réaliste sur un serveur principal et mesure ses débits et ses latences :
+ * N clients simultanés, chacun sur sa connexion, enchaînent envois, téléchargements, listes et
+ * suppressions selon un mélange et une répartition des tailles de fichiers donnés. Sans cible,
+ * une grappe locale est démarrée (LocalCluster) ; les propriétés transfert.* lui sont transmises.
+ *
+ * Réglages (propriétés système) :
+ *   -Dload.target=hôte:port          serveur principal existant (sinon grappe locale)
+ *   -Dload.storageServers=3          serveurs de stockage de la grappe locale
+ *   -Dload.clients=16                clients simultanés
+ *   -Dload.seconds=30                durée mesurée, après load.warmupSeconds=5 d'échauffement
+ *   -Dload.files=200                 fichiers manipulés, envoyés une première fois avant la mesure
+ *   -Dload.mix=upload=20,download=70,list=5,delete=5
+ *   -Dload.sizes=4k=60,64k-1m=30,8m=10   tailles (ou intervalles, tirés uniformément) et poids
+ *   -Dload.rate=0                    opérations par seconde au total ; 0 : chaque client enchaîne
+ *                                    ses opérations sans attendre (boucle fermée)
+ *
+ * Avec un débit imposé, la latence d'une opération est comptée depuis l'instant où elle
+ * aurait dû partir : un serveur qui prend du retard voit ce retard dans les centiles, au lieu
+ * de ralentir les clients sans que la mesure le montre.
+ */
+public class LoadGenerator {
+
+    enum Operation { UPLOAD, DOWNLOAD, LIST, DELETE }
+
+    /** Compteurs et latences d'un type d'opération, partagés par tous les clients. */
+    static class Stats {
+        final LatencyHistogram latency = new LatencyHistogram();
+        final LongAdder bytes = new LongAdder();
+        final LongAdder errors = new LongAdder();
+        final LongAdder absent = new LongAdder();  // fichier supprimé entre-temps par un autre client
+        volatile String lastError;
+    }
+
+    private final int clients = Integer.getInteger("load.clients", 16);
+    private final long warmupNanos = TimeUnit.SECONDS.toNanos(Long.getLong("load.warmupSeconds", 5));
+    private final long measuredNanos = TimeUnit.SECONDS.toNanos(Long.getLong("load.seconds", 30));
+    private final int files = Integer.getInteger("load.files", 200);
+    private final double rate = Double.parseDouble(System.getProperty("load.rate", "0"));
+    private final Weighted<Operation> mix = parseMix(System.getProperty("load.mix", "upload=20,download=70,list=5,delete=5"));
+    private final Weighted<long[]> sizes = parseSizes(System.getProperty("load.sizes", "4k=60,64k-1m=30,8m=10"));
+    private final Map<Operation, Stats> stats = new EnumMap<>(Operation.class);
+    private final LongAdder completed = new LongAdder();
+    private final Connector connector;
+
+    interface Connector {
+        CoordinatorClient connect() throws IOException;
+    }
+
+    LoadGenerator(Connector connector) {
+        this.connector = connector;
+        for (Operation operation : Operation.values()) {
+            stats.put(operation, new Stats());
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        String target = System.getProperty("load.target");
+        if (target != null) {
+            String[] address = target.split(":");
+            new LoadGenerator(() -> new CoordinatorClient(new java.net.Socket(address[0], Integer.parseInt(address[1])))).run();
+            return;
+        }
+        try (LocalCluster cluster = LocalCluster.start(Integer.getInteger("load.storageServers", 3))) {
+            new LoadGenerator(() -> new CoordinatorClient(cluster.connect())).run();
+        }
+    }
+
+    void run() throws Exception {
+        BenchmarkRun.out.println(clients + " clients, " + files + " fichiers, mélange " + mix + ", tailles " + sizes
+                + (rate > 0 ? ", " + rate + " op/s" : ", boucle fermée"));
+        prefill();
+
+        ExecutorService pool = Executors.newFixedThreadPool(clients);
+        long start = System.nanoTime();
+        long measureFrom = start + warmupNanos;
+        long deadline = measureFrom + measuredNanos;
+        List<Future<?>> workers = new ArrayList<>();
+        for (int c = 0; c < clients; c++) {
+            long seed = c;
+            workers.add(pool.submit(() -> {
+                runClient(new Random(seed), start, measureFrom, deadline);
+                return null;
+            }));
+        }
+        long lastCompleted = 0;
+        while (System.nanoTime() < deadline) {
+            Thread.sleep(5000);
+            long done = completed.sum();
+            BenchmarkRun.out.printf("  %3d s : %.0f op/s%n", TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - start),
+                    (done - lastCompleted) / 5.0);
+            lastCompleted = done;
+        }
+        for (Future<?> worker : workers) {
+            worker.get();
+        }
+        pool.shutdown();
+        report(measuredNanos / 1e9);
+    }
+
+    // Chaque fichier est envoyé une fois, pour que les téléchargements trouvent dès le début ce qu'ils cherchent
+    private void prefill() throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(clients);
+        List<Future<?>> uploads = new ArrayList<>();
+        for (int c = 0; c < clients; c++) {
+            int first = c;
+            uploads.add(pool.submit(() -> {
+                Random random = new Random(-1 - first);
+                byte[] data = new byte[(int) maxSize()];
+                random.nextBytes(data);
+                try (CoordinatorClient client = connector.connect()) {
+                    for (int f = first; f < files; f += clients) {
+                        client.upload(fileName(f), data, (int) drawSize(random));
+                    }
+                }
+                return null;
+            }));
+        }
+        for (Future<?> upload : uploads) {
+            upload.get();
+        }
+        pool.shutdown();
+    }
+
+    private void runClient(Random random, long start, long measureFrom, long deadline) throws IOException {
+        byte[] data = new byte[(int) maxSize()];
+        random.nextBytes(data);
+        // Débit imposé : ce client part toutes les interval nanosecondes, décalé des autres
+        long interval = rate > 0 ? (long) (clients * 1e9 / rate) : 0;
+        long next = start + (interval > 0 ? random.nextInt((int) Math.min(interval, Integer.MAX_VALUE)) : 0);
+        CoordinatorClient client = connector.connect();
+        try {
+            while (true) {
+                long now = System.nanoTime();
+                if (interval > 0) {
+                    if (next > now) {
+                        LockSupport.parkNanos(next - now);
+                    }
+                } else {
+                    next = now;
+                }
+                if (next >= deadline) {
+                    return;
+                }
+                long intended = next;
+                next += interval;
+
+                Operation operation = mix.draw(random);
+                Stats operationStats = stats.get(operation);
+                String name = fileName(random.nextInt(files));
+                long bytes = 0;
+                try {
+                    switch (operation) {
+                        case UPLOAD:
+                            int size = (int) drawSize(random);
+                            client.upload(name, data, size);
+                            bytes = size;
+                            break;
+                        case DOWNLOAD:
+                            bytes = client.download(name, -1);
+                            break;
+                        case LIST:
+                            client.list();
+                            break;
+                        case DELETE:
+                            if (!client.delete(name)) {
+                                operationStats.absent.increment();
+                            }
+                            break;
+                    }
+                } catch (IOException e) {
+                    if (e.getMessage() != null && e.getMessage().contains("Aucune partie trouvée")) {
+                        operationStats.absent.increment();
+                    } else {
+                        // La connexion peut être désynchronisée : une nouvelle la remplace
+                        operationStats.errors.increment();
+                        operationStats.lastError = e.getMessage();
+                        client.close();
+                        client = connector.connect();
+                    }
+                    continue;
+                }
+                completed.increment();
+                if (intended >= measureFrom) {
+                    operationStats.latency.recordSince(intended);
+                    operationStats.bytes.add(bytes);
+                }
+            }
+        } finally {
+            client.close();
+        }
+    }
+
+    private void report(double seconds) {
+        LatencyHistogram all = new LatencyHistogram();
+        BenchmarkRun.out.printf("Résultats sur %.0f s :%n", seconds);
+        for (Map.Entry<Operation, Stats> entry : stats.entrySet()) {
+            Stats s = entry.getValue();
+            if (s.latency.count() + s.errors.sum() + s.absent.sum() == 0) {
+                continue;  // absente du mélange
+            }
+            all.add(s.latency);
+            BenchmarkRun.out.printf("  %-9s %8.1f op/s %8.1f Mo/s  erreurs=%d absents=%d%n            %s%n",
+                    entry.getKey().name().toLowerCase(), s.latency.count() / seconds,
+                    s.bytes.sum() / seconds / (1024 * 1024), s.errors.sum(), s.absent.sum(), s.latency.describe());
+            if (s.lastError != null) {
+                BenchmarkRun.out.println("            dernière erreur : " + s.lastError);
+            }
+        }
+        BenchmarkRun.out.printf("  %-9s %8.1f op/s%n            %s%n", "total", all.count() / seconds, all.describe());
+    }
+
+    private static String fileName(int index) {
+        return "charge-" + index + ".bin";
+    }
+
+    private long drawSize(Random random) {
+        long[] range = sizes.draw(random);
+        return range[0] + (range[1] > range[0] ? (long) (random.nextDouble() * (range[1] - range[0] + 1)) : 0);
+    }
+
+    private long maxSize() {
+        long max = 0;
+        for (long[] range : sizes.values) {
+            max = Math.max(max, range[1]);
+        }
+        return max;
+    }
+
+    /** Tirage pondéré parmi quelques valeurs. */
+    static class Weighted<T> {
+        final List<T> values = new ArrayList<>();
+        private final List<Double> cumulative = new ArrayList<>();
+        private final List<String> labels = new ArrayList<>();
+        private double total;
+
+        void add(String label, T value, double weight) {
+            if (weight <= 0) {
+                return;
+            }
+            total += weight;
+            values.add(value);
+            cumulative.add(total);
+            labels.add(label + "=" + (long) weight);
+        }
+
+        T draw(Random random) {
+            double point = random.nextDouble() * total;
+            for (int i = 0; i < values.size(); i++) {
+                if (point < cumulative.get(i)) {
+                    return values.get(i);
+                }
+            }
+            return values.get(values.size() - 1);
+        }
+
+        @Override
+        public String toString() {
+            return String.join(",", labels);
+        }
+    }
+
+    private static Weighted<Operation> parseMix(String spec) {
+        Weighted<Operation> mix = new Weighted<>();
+        for (String item : spec.split(",")) {
+            String[] parts = item.trim().split("=");
+            mix.add(parts[0], Operation.valueOf(parts[0].toUpperCase()), Double.parseDouble(parts[1]));
+        }
+        if (mix.values.isEmpty()) {
+            throw new IllegalArgumentException("load.mix vide : " + spec);
+        }
+        return mix;
+    }
+
+    // "4k=60,64k-1m=30" : une taille ou un intervalle, et son poids
+    private static Weighted<long[]> parseSizes(String spec) {
+        Weighted<long[]> sizes = new Weighted<>();
+        for (String item : spec.split(",")) {
+            String[] parts = item.trim().split("=");
+            String[] bounds = parts[0].split("-");
+            long low = parseSize(bounds[0]);
+            long high = bounds.length > 1 ? parseSize(bounds[1]) : low;
+            sizes.add(parts[0], new long[] { low, Math.max(low, high) }, Double.parseDouble(parts[1]));
+        }
+        if (sizes.values.isEmpty()) {
+            throw new IllegalArgumentException("load.sizes vide : " + spec);
+        }
+        return sizes;
+    }
+
+    private static long parseSize(String size) {
+        String value = size.trim().toLowerCase();
+        long unit = value.endsWith("k") ? 1024 : value.endsWith("m") ? 1024 * 1024 : 1;
+        return Long.parseLong(unit == 1 ? value : value.substring(0, value.length() - 1)) * unit;
+    }
+}
@@ -0,0 +1,162 @@
+import java.io.*;
+import java.net.*;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Grappe locale pour les programmes de bench/ : des serveurs de stockage dans ce processus
+ * (ServeurSecondaire.serve sur des ports libres) et un serveur principal. Celui-ci lit
+ * config.txt et son catalogue dans son répertoire courant : il est lancé dans une autre JVM,
+ * dans un répertoire temporaire supprimé à la fermeture. Les propriétés transfert.* de ce
+ * processus lui sont transmises (compression, mode de stockage...) ; son cache est désactivé
+ * sauf si transfert.cache.bytes est donné, pour que les lectures atteignent les serveurs.
+ *
+ * Les serveurs de stockage journalisent chaque partie sur System.out : leurs messages vont
+ * dans stockage.log, et les résultats s'écrivent sur BenchmarkRun.out.
+ */
+class LocalCluster implements Closeable {
+
+    private final File directory;
+    private final Process coordinator;
+    private final PrintStream console;
+    // Répertoire de stockage de chaque serveur, par adresse telle qu'elle figure dans config.txt
+    private final Map<String, File> storage;
+    final int port;
+
+    private LocalCluster(File directory, Process coordinator, PrintStream console, Map<String, File> storage, int port) {
+        this.directory = directory;
+        this.coordinator = coordinator;
+        this.console = console;
+        this.storage = Collections.unmodifiableMap(storage);
+        this.port = port;
+    }
+
+    /** Démarre storageServers serveurs de stockage et le serveur principal, et attend qu'il accepte les connexions. */
+    static LocalCluster start(int storageServers) throws Exception {
+        File directory = Files.createTempDirectory("bench-grappe").toFile();
+        PrintStream console = System.out;
+        BenchmarkRun.out = console;
+        System.setOut(new PrintStream(new FileOutputStream(new File(directory, "stockage.log")), true));
+        StringBuilder config = new StringBuilder();
+        Map<String, File> storage = new LinkedHashMap<>();
+        for (int i = 0; i < storageServers; i++) {
+            File storageDir = new File(directory, "stockage" + i);
+            String address = "127.0.0.1:" + startStorageServer(storageDir);
+            storage.put(address, storageDir);
+            config.append(address).append('\n');
+        }
+        Files.writeString(new File(directory, "config.txt").toPath(), config);
+
+        int port;
+        try (ServerSocket probe = new ServerSocket(0)) {
+            port = probe.getLocalPort();
+        }
+        LocalCluster cluster = new LocalCluster(directory, startCoordinator(directory, port), console, storage, port);
+        try {
+            cluster.awaitCoordinator();
+        } catch (Exception e) {
+            cluster.close();
+            throw e;
+        }
+        return cluster;
+    }
+
+    Socket connect() throws IOException {
+        Socket socket = new Socket("127.0.0.1", port);
+        socket.setTcpNoDelay(true);
+        return socket;
+    }
+
+    Map<String, File> storageDirectories() {
+        return storage;
+    }
+
+    /** Fichier du répertoire du serveur principal (catalogue : file_mapping.txt et son journal). */
+    File coordinatorFile(String name) {
+        return new File(directory, name);
+    }
+
+    /**
+     * Arrête le serveur principal et attend sa fin ; les serveurs de stockage et le répertoire
+     * restent jusqu'à close, pour examiner le catalogue et les parties stockées.
+     */
+    void stopCoordinator() {
+        coordinator.destroy();
+        try {
+            coordinator.waitFor();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        stopCoordinator();
+        System.out.close();
+        System.setOut(console);
+        deleteRecursively(directory);
+    }
+
+    private static int startStorageServer(File storage) throws IOException {
+        ServerSocketChannel channel = ServerSocketChannel.open().bind(new InetSocketAddress("127.0.0.1", 0));
+        Thread thread = new Thread(() -> {
+            try {
+                ServeurSecondaire.serve(channel, storage, ConnectionExecutor.fromSystemProperties("Banc"));
+            } catch (IOException ignored) {
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+        return ((InetSocketAddress) channel.getLocalAddress()).getPort();
+    }
+
+    private static Process startCoordinator(File directory, int port) throws IOException {
+        List<String> command = new ArrayList<>();
+        command.add(new File(System.getProperty("java.home"), "bin/java").getPath());
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        for (String name : System.getProperties().stringPropertyNames()) {
+            if (name.startsWith("transfert.")) {
+                command.add("-D" + name + "=" + System.getProperty(name));
+            }
+        }
+        if (System.getProperty("transfert.cache.bytes") == null) {
+            command.add("-Dtransfert.cache.bytes=0");
+        }
+        command.add("-Dtransfert.port=" + port);
+        command.add("-Dtransfert.stats.seconds=0");
+        command.add("ServeurPrincipal");
+        return new ProcessBuilder(command).directory(directory)
+                .redirectErrorStream(true).redirectOutput(new File(directory, "principal.log")).start();
+    }
+
+    private void awaitCoordinator() throws Exception {
+        long deadline = System.currentTimeMillis() + 30_000;
+        while (true) {
+            try {
+                new Socket("127.0.0.1", port).close();
+                return;
+            } catch (ConnectException e) {
+                if (!coordinator.isAlive() || System.currentTimeMillis() > deadline) {
+                    throw new IOException("Le serveur principal n'a pas démarré", e);
+                }
+                Thread.sleep(100);
+            }
+        }
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+}
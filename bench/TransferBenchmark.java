@@ -0,0 +1,133 @@
+import java.io.*;
+import java.net.*;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.file.Files;
+import java.util.Random;
+
+/**
+ * Compare le débit des chemins de stockage et de lecture du serveur secondaire :
+ * transfert direct (transferTo), copie par tampon hors tas de 256 Ko, et l'ancienne
+ * boucle par tableau de 4 Ko. Tout tourne en local sur l'interface de bouclage.
+ *
+ * Usage : java TransferBenchmark [taille en Mo] [itérations]
+ */
+public class TransferBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int sizeMb = args.length > 0 ? Integer.parseInt(args[0]) : 256;
+        int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        long size = sizeMb * 1024L * 1024L;
+
+        File storage = Files.createTempDirectory("bench-storage").toFile();
+        File source = new File(storage, "source.part");
+        writeRandomFile(source, size);
+
+        ServerSocketChannel server = ServerSocketChannel.open().bind(new InetSocketAddress("127.0.0.1", 0));
+        Thread serverThread = new Thread(() -> {
+            try {
+                ServeurSecondaire.serve(server, storage, ConnectionExecutor.fromSystemProperties("Banc"));
+            } catch (IOException ignored) {
+            }
+        });
+        serverThread.setDaemon(true);
+        serverThread.start();
+        int port = ((InetSocketAddress) server.getLocalAddress()).getPort();
+
+        ServerSocket legacyServer = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        Thread legacyThread = new Thread(() -> serveLegacy(legacyServer, source));
+        legacyThread.setDaemon(true);
+        legacyThread.start();
+
+        System.out.println("Taille de la partie : " + sizeMb + " Mo, " + iterations + " itérations");
+
+        ServeurSecondaire.zeroCopy = true;
+        BenchmarkRun.throughput("GET_PART transferTo", iterations, size, () -> getPart(port, "source.part"));
+
+        ServeurSecondaire.zeroCopy = false;
+        BenchmarkRun.throughput("GET_PART tampon 256 Ko", iterations, size, () -> getPart(port, "source.part"));
+        BenchmarkRun.throughput("store    tampon 256 Ko", iterations, size, () -> store(port, source));
+
+        BenchmarkRun.throughput("GET_PART ancien 4 Ko", iterations, size,
+                () -> getPart(legacyServer.getLocalPort(), "source.part"));
+
+        for (File file : storage.listFiles()) {
+            file.delete();
+        }
+        storage.delete();
+    }
+
+    private static void getPart(int port, String partName) throws IOException {
+        try (Socket socket = new Socket("127.0.0.1", port)) {
+            DataOutputStream dos = new DataOutputStream(socket.getOutputStream());
+            DataInputStream dis = new DataInputStream(socket.getInputStream());
+            dos.writeUTF("GET_PART");
+            dos.writeUTF(partName);
+            if (!"PART_FOUND".equals(dis.readUTF())) {
+                throw new IOException("Partie absente : " + partName);
+            }
+            long remaining = dis.readLong();
+            byte[] buffer = new byte[256 * 1024];
+            while (remaining > 0) {
+                int read = dis.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                if (read == -1) {
+                    throw new EOFException();
+                }
+                remaining -= read;
+            }
+        }
+    }
+
+    private static void store(int port, File source) throws IOException {
+        try (Socket socket = new Socket("127.0.0.1", port);
+             FileInputStream fis = new FileInputStream(source)) {
+            DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 256 * 1024));
+            DataInputStream dis = new DataInputStream(socket.getInputStream());
+            dos.writeUTF("store");
+            dos.writeUTF("copy.part");
+            dos.writeLong(source.length());
+            byte[] buffer = new byte[256 * 1024];
+            int read;
+            while ((read = fis.read(buffer)) != -1) {
+                dos.write(buffer, 0, read);
+            }
+            dos.flush();
+            String response = dis.readUTF();
+            if (response.startsWith("Erreur")) {
+                throw new IOException(response);
+            }
+        }
+    }
+
+    // Reproduit l'ancienne boucle de handleGetPart (FileInputStream + tableau de 4 Ko)
+    private static void serveLegacy(ServerSocket serverSocket, File part) {
+        while (true) {
+            try (Socket socket = serverSocket.accept();
+                 DataInputStream dis = new DataInputStream(socket.getInputStream());
+                 DataOutputStream dos = new DataOutputStream(socket.getOutputStream());
+                 FileInputStream fis = new FileInputStream(part)) {
+                dis.readUTF();
+                dis.readUTF();
+                dos.writeUTF("PART_FOUND");
+                dos.writeLong(part.length());
+                byte[] buffer = new byte[4096];
+                int bytesRead;
+                while ((bytesRead = fis.read(buffer)) != -1) {
+                    dos.write(buffer, 0, bytesRead);
+                }
+            } catch (IOException e) {
+                return;
+            }
+        }
+    }
+
+    private static void writeRandomFile(File file, long size) throws IOException {
+        Random random = new Random(42);
+        byte[] buffer = new byte[1024 * 1024];
+        try (FileOutputStream fos = new FileOutputStream(file)) {
+            for (long written = 0; written < size; written += buffer.length) {
+                random.nextBytes(buffer);
+                fos.write(buffer, 0, (int) Math.min(buffer.length, size - written));
+            }
+        }
+    }
+}